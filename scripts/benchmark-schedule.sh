@@ -0,0 +1,57 @@
+#!/bin/sh
+# Compares processing files in the order they were listed against
+# `--schedule=locality`, with a cold page cache before each run. Creates a tree
+# of small files in shuffled order (so that listing order, creation order and
+# inode order all differ), then reads every file with a dry run.
+#
+# Must be run as root (to drop the page cache) from the project folder after
+# `mvn package`. The size of the tree can be changed with FILES and DIRS, and
+# where it is created with DIR. Results mostly depend on the disk: expect large
+# differences on spinning disks and network file systems, and small ones on SSDs.
+
+set -e
+
+JAR=$(ls target/easy-append-*-jar-with-dependencies.jar | head -n 1)
+DIR=${DIR:-/tmp/easy-append-benchmark}
+FILES=${FILES:-20000}
+DIRS=${DIRS:-200}
+RUNS=${RUNS:-3}
+
+if [ ! -w /proc/sys/vm/drop_caches ]; then
+    echo "Must be run as root to drop the page cache." >&2
+    exit 1
+fi
+
+if [ ! -d "$DIR" ]; then
+    echo "Creating $FILES files in $DIRS folders in $DIR"
+    mkdir -p "$DIR"
+    i=0
+    while [ $i -lt $DIRS ]; do
+        mkdir -p "$DIR/d$i"
+        i=$((i + 1))
+    done
+
+    # Spread consecutive files across folders, so that each folder's inodes
+    # are scattered
+    seq 0 $((FILES - 1)) | shuf | while read -r n; do
+        head -c $((512 + n % 4096)) /dev/urandom | base64 > "$DIR/d$((n % DIRS))/f$n.txt"
+    done
+fi
+
+run() {
+    sync
+    echo 3 > /proc/sys/vm/drop_caches
+    start=$(date +%s%N)
+    # The regex is never matched, so every file is read and none are written
+    java -jar "$JAR" --dry-run "$@" --append --contains='^never matched$' x \
+        -r "$DIR" > /dev/null
+    end=$(date +%s%N)
+    echo $(((end - start) / 1000000))
+}
+
+r=1
+while [ $r -le $RUNS ]; do
+    echo "Run $r: listed order $(run --schedule=listed) ms," \
+        "locality order $(run --schedule=locality) ms"
+    r=$((r + 1))
+done
@@ -1,4 +1,12 @@
 @echo off
 REM This script provides an easier way to run the program.
 
-java -jar easy-append-v0.2.jar %*
\ No newline at end of file
+set JAR=%~dp0easy-append-v0.2.jar
+set CDS_ARCHIVE=%~dp0easy-append-v0.2.jsa
+
+REM Use the class data sharing archive if the release includes one.
+if exist "%CDS_ARCHIVE%" (
+	java -Xshare:auto -Xlog:cds=off,cds+dynamic=off -XX:SharedArchiveFile="%CDS_ARCHIVE%" -jar "%JAR%" %*
+) else (
+	java -jar "%JAR%" %*
+)
\ No newline at end of file
@@ -1,4 +1,14 @@
 #!/bin/bash
 # This script provides an easier way to run the program.
 
-java -jar easy-append-v0.2.jar "$@"
\ No newline at end of file
+DIR="$(cd "$(dirname "$0")" && pwd)"
+JAR="$DIR/easy-append-v0.2.jar"
+CDS_ARCHIVE="$DIR/easy-append-v0.2.jsa"
+
+# Use the class data sharing archive if the release includes one. It was
+# created for a particular JVM, so fall back silently if it doesn't match.
+if [ -f "$CDS_ARCHIVE" ]; then
+	exec java -Xshare:auto -Xlog:cds=off,cds+dynamic=off -XX:SharedArchiveFile="$CDS_ARCHIVE" -jar "$JAR" "$@"
+fi
+
+exec java -jar "$JAR" "$@"
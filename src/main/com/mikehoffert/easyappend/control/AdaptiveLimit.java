@@ -0,0 +1,144 @@
+package com.mikehoffert.easyappend.control;
+
+/**
+ * Limits how many files are worked on at once, adjusting the limit to the
+ * latency of the storage (AIMD: additive increase, multiplicative decrease).
+ * While files take about as long as usual for their size, the limit grows by
+ * one whenever it is reached. When a file takes much longer than usual for its
+ * size, which means the storage is saturated (such as a busy network file
+ * system), the limit is cut, at most once for each limit's worth of files. Fast
+ * local disks therefore end up with many files in flight, and slow shared ones
+ * with few.<p>
+ *
+ * A file's time is divided by its size in units of {@link #BYTES_PER_FILE}
+ * (plus one, for the fixed cost of opening and closing it), so large files
+ * spread among small ones don't look like saturation just because they take
+ * longer.<p>
+ *
+ * All methods are thread-safe.
+ */
+public class AdaptiveLimit
+{
+	/**
+	 * How much slower than usual a file must be to cut the limit.
+	 */
+	private static final double TOLERANCE = 2.0;
+
+	/**
+	 * How much the limit is cut by.
+	 */
+	private static final double BACKOFF = 0.75;
+
+	/**
+	 * How quickly the usual latency follows new samples.
+	 */
+	private static final double SMOOTHING = 0.05;
+
+	/**
+	 * About as many bytes as take as long to transfer as the fixed cost of a
+	 * file. Files up to this size are compared by their time alone.
+	 */
+	static final double BYTES_PER_FILE = 64 * 1024;
+
+	private final int min;
+
+	private final int max;
+
+	/**
+	 * The current limit.
+	 */
+	private int limit;
+
+	/**
+	 * The highest limit so far.
+	 */
+	private int peak;
+
+	/**
+	 * The number of files in flight.
+	 */
+	private int inFlight = 0;
+
+	/**
+	 * The usual time a file takes for its size, in nanoseconds per unit,
+	 * smoothed over recent files. Zero until the first file finishes.
+	 */
+	private double usualCost = 0;
+
+	/**
+	 * The number of files finished since the limit was last cut.
+	 */
+	private int sinceCut = 0;
+
+	/**
+	 * Initializes the limit at its minimum.
+	 * @param min The lowest the limit can go, at least 1.
+	 * @param max The highest the limit can go, at least <tt>min</tt>.
+	 */
+	public AdaptiveLimit(int min, int max)
+	{
+		this.min = min;
+		this.max = max;
+		this.limit = min;
+		this.peak = min;
+	}
+
+	/**
+	 * Waits until another file can be worked on, then counts it as in flight.
+	 * @throws InterruptedException Interrupted while waiting.
+	 */
+	public synchronized void acquire() throws InterruptedException
+	{
+		while(inFlight >= limit) wait();
+		inFlight++;
+	}
+
+	/**
+	 * Counts a file as finished, and adjusts the limit to how long it took for
+	 * its size.
+	 * @param nanos How long the file took, in nanoseconds.
+	 * @param bytes The size of the file.
+	 */
+	public synchronized void release(long nanos, long bytes)
+	{
+		double cost = nanos / (1 + Math.max(0, bytes) / BYTES_PER_FILE);
+		boolean saturated = inFlight >= limit;
+		inFlight--;
+		sinceCut++;
+
+		// The files that were in flight when the limit was cut are slow for
+		// the same reason, so they don't cut it again
+		if(usualCost > 0 && cost > usualCost * TOLERANCE)
+		{
+			if(sinceCut >= limit)
+			{
+				limit = Math.max(min, (int) (limit * BACKOFF));
+				sinceCut = 0;
+			}
+		}
+		else if(saturated && limit < max)
+		{
+			limit++;
+			peak = Math.max(peak, limit);
+		}
+
+		usualCost = usualCost == 0 ? cost : usualCost + (cost - usualCost) * SMOOTHING;
+		notifyAll();
+	}
+
+	/**
+	 * @return The current limit.
+	 */
+	public synchronized int getLimit()
+	{
+		return limit;
+	}
+
+	/**
+	 * @return The highest limit so far.
+	 */
+	public synchronized int getPeak()
+	{
+		return peak;
+	}
+}
@@ -0,0 +1,495 @@
+package com.mikehoffert.easyappend.control;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import com.mikehoffert.easyappend.model.BufferPool;
+import com.mikehoffert.easyappend.model.Sniffer;
+
+/**
+ * Applies a {@link Recipe} to many files with asynchronous I/O. Each file goes
+ * through a chain of stages (read, check, match, write) that are started by
+ * the completion of the previous one, so no thread waits on any particular
+ * file. Many files can be in flight with only a small pool of threads, which
+ * keeps storage with high latency (such as network file systems) busy.<p>
+ *
+ * Files are submitted from a single thread, which blocks while the most files
+ * (or bytes) are in flight. Files that would have to be buffered whole but are
+ * larger than {@link #MAX_BUFFERED_SIZE} aren't taken, so they can be written
+ * the regular way, in blocks.
+ */
+public class AsyncPipeline implements Closeable
+{
+	/**
+	 * Receives the outcome of each file. Called from the pool's threads, one
+	 * file at a time per thread.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called once a file has been written.
+		 * @param source The file that was read.
+		 * @param destination The file that was written.
+		 * @param result What was added.
+		 */
+		public void written(Path source, Path destination, Recipe.Result result);
+
+		/**
+		 * Called for a file being modified in place that nothing is added to,
+		 * which is left as it was.
+		 * @param source The file.
+		 * @param result What was (not) applied.
+		 */
+		public void unchanged(Path source, Recipe.Result result);
+
+		/**
+		 * Called for a file that looks like a binary file, which isn't written.
+		 * Only files submitted to be skipped if binary are checked.
+		 * @param source The file.
+		 */
+		public void skippedBinary(Path source);
+
+		/**
+		 * Called for each file that fails. No more files are started once one
+		 * has failed, but the files already in flight are finished.
+		 * @param source The file.
+		 * @param e What went wrong.
+		 */
+		public void failed(Path source, IOException e);
+	}
+
+	/**
+	 * The largest file that is read whole into a buffer.
+	 */
+	public static final int MAX_BUFFERED_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * The most bytes buffered for all the files in flight together.
+	 */
+	static final int MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+
+	private Recipe recipe;
+
+	private int maxInFlight;
+
+	private boolean strictUtf8;
+
+	/**
+	 * Where the buffers that files are read into come from.
+	 */
+	private BufferPool bufferPool;
+
+	private Listener listener;
+
+	/**
+	 * Runs the completion handlers (and, on platforms without native
+	 * asynchronous file I/O, the I/O itself).
+	 */
+	private ExecutorService pool;
+
+	/**
+	 * One permit per file that may be in flight.
+	 */
+	private Semaphore permits;
+
+	/**
+	 * One permit per byte that may be buffered.
+	 */
+	private Semaphore bytePermits = new Semaphore(MAX_BUFFERED_BYTES);
+
+	/**
+	 * The first failure, or null if no file has failed.
+	 */
+	private volatile IOException failure = null;
+
+	/**
+	 * Initializes the pipeline.
+	 * @param recipe The additions to apply.
+	 * @param maxInFlight The most files in flight at once.
+	 * @param strictUtf8 True if, when read as UTF-8, a file that is not valid
+	 * UTF-8 is binary.
+	 * @param bufferPool Where the buffers that files are read into come from.
+	 * Each is given back once its file has left the pipeline, even if it
+	 * failed.
+	 * @param listener Receives the outcome of each file.
+	 */
+	public AsyncPipeline(Recipe recipe, int maxInFlight, boolean strictUtf8,
+			BufferPool bufferPool, Listener listener)
+	{
+		this.recipe = recipe;
+		this.maxInFlight = maxInFlight;
+		this.strictUtf8 = strictUtf8;
+		this.bufferPool = bufferPool;
+		this.listener = listener;
+		this.permits = new Semaphore(maxInFlight);
+
+		int threads = Math.max(1, Math.min(maxInFlight,
+				Runtime.getRuntime().availableProcessors() * 2));
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "easy-append-async");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts applying the recipe to a file, waiting first if the most files
+	 * (or bytes) are already in flight.
+	 * @param source The file to read.
+	 * @param destination The file to write, which may be the source.
+	 * @param skipBinary True to skip the file if it looks like a binary file.
+	 * @return True if the file was started, or false if it would have to be
+	 * buffered whole and is larger than {@link #MAX_BUFFERED_SIZE}.
+	 * @throws FileNotFoundException The source does not exist.
+	 * @throws IOException Could not open the source, or an earlier file failed.
+	 */
+	public boolean submit(Path source, Path destination, boolean skipBinary)
+			throws FileNotFoundException, IOException
+	{
+		if(failure != null) throw failure;
+
+		try
+		{
+			permits.acquire();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for files in flight.", e);
+		}
+
+		Job job = new Job(source, destination, skipBinary);
+		try
+		{
+			if(job.start()) return true;
+
+			job.finish();
+			return false;
+		}
+		catch(NoSuchFileException e)
+		{
+			job.finish();
+			throw new FileNotFoundException(source.toString());
+		}
+		catch(IOException | RuntimeException e)
+		{
+			job.finish();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits until every submitted file is finished.
+	 * @throws IOException A file failed.
+	 */
+	public void await() throws IOException
+	{
+		try
+		{
+			permits.acquire(maxInFlight);
+			permits.release(maxInFlight);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for files in flight.", e);
+		}
+
+		if(failure != null) throw failure;
+	}
+
+	/**
+	 * Stops the pool's threads. Files still in flight are abandoned.
+	 */
+	@Override
+	public void close()
+	{
+		pool.shutdownNow();
+	}
+
+	/**
+	 * A single file going through the stages.
+	 */
+	private class Job
+	{
+		final Path source;
+		final Path destination;
+		final boolean inPlace;
+		final boolean skipBinary;
+
+		AsynchronousFileChannel input;
+		AsynchronousFileChannel output;
+		ByteBuffer buffer;
+		long size;
+
+		/**
+		 * The bytes counted against the bytes in flight.
+		 */
+		int reserved = 0;
+
+		/**
+		 * True if the recipe only appends, so only the start of the file (if
+		 * anything) is read, to check that it isn't binary.
+		 */
+		boolean appendOnly;
+
+		/**
+		 * True once the file has left the pipeline.
+		 */
+		boolean finished = false;
+
+		Job(Path source, Path destination, boolean skipBinary)
+		{
+			this.source = source;
+			this.destination = destination;
+			this.skipBinary = skipBinary;
+			this.inPlace = source.toAbsolutePath().normalize().equals(
+					destination.toAbsolutePath().normalize());
+		}
+
+		/**
+		 * Opens the file and starts reading it, waiting first if too many
+		 * bytes are in flight.
+		 * @return False if the file is too large to buffer, in which case it
+		 * isn't read.
+		 * @throws IOException Could not open the file.
+		 */
+		boolean start() throws IOException
+		{
+			Set<StandardOpenOption> options = inPlace ?
+					EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE) :
+					EnumSet.of(StandardOpenOption.READ);
+			input = AsynchronousFileChannel.open(source, options, pool);
+			size = input.size();
+
+			appendOnly = inPlace && recipe.isAppendOnly();
+			long toRead = appendOnly ? (skipBinary ? Math.min(size, Sniffer.PREFIX_SIZE) : 0) :
+					size;
+			if(toRead > MAX_BUFFERED_SIZE) return false;
+
+			try
+			{
+				bytePermits.acquire((int) toRead);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for files in flight.", e);
+			}
+			reserved = (int) toRead;
+
+			buffer = bufferPool.acquireBytes((int) Math.max(1, toRead));
+			buffer.limit((int) toRead);
+			read();
+			return true;
+		}
+
+		/**
+		 * Reads until the buffer is full or the file ends.
+		 */
+		void read()
+		{
+			if(!buffer.hasRemaining())
+			{
+				readDone();
+				return;
+			}
+
+			input.read(buffer, buffer.position(), null, new CompletionHandler<Integer, Void>()
+			{
+				@Override
+				public void completed(Integer read, Void attachment)
+				{
+					if(read < 0) readDone();
+					else read();
+				}
+
+				@Override
+				public void failed(Throwable e, Void attachment)
+				{
+					fail(e);
+				}
+			});
+		}
+
+		/**
+		 * Checks and matches the content, then starts writing.
+		 */
+		void readDone()
+		{
+			try
+			{
+				// The contents are matched and written straight from the buffer
+				ByteBuffer contents = (ByteBuffer) buffer.flip();
+				int length = contents.remaining();
+
+				if(skipBinary)
+				{
+					boolean truncated = length > Sniffer.PREFIX_SIZE || size > length;
+					byte[] prefix = new byte[Math.min(length, Sniffer.PREFIX_SIZE)];
+					contents.duplicate().get(prefix);
+					if(Sniffer.isBinary(prefix, truncated, recipe.getCharset(), strictUtf8))
+					{
+						listener.skippedBinary(source);
+						finish();
+						return;
+					}
+				}
+
+				final Recipe.Plan plan = recipe.plan(contents.duplicate(), source.toFile(),
+						bufferPool);
+				final Recipe.Result result = plan.result(appendOnly ? size : length);
+
+				// Like the regular path, a file that nothing is added to isn't
+				// written over itself
+				if(inPlace && !result.isModified())
+				{
+					try
+					{
+						listener.unchanged(source, result);
+					}
+					finally
+					{
+						finish();
+					}
+					return;
+				}
+
+				if(appendOnly)
+				{
+					output = input;
+					write(new ByteBuffer[] { ByteBuffer.wrap(plan.append) }, size, result);
+					return;
+				}
+
+				if(inPlace)
+				{
+					output = input;
+				}
+				else
+				{
+					Path parent = destination.toAbsolutePath().getParent();
+					if(parent != null) Files.createDirectories(parent);
+					output = AsynchronousFileChannel.open(destination, EnumSet.of(
+							StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+							StandardOpenOption.TRUNCATE_EXISTING), pool);
+				}
+
+				// Everything was read, so the new content can be written over it
+				write(new ByteBuffer[] { ByteBuffer.wrap(plan.prepend), contents,
+						ByteBuffer.wrap(plan.append) }, 0, result);
+			}
+			catch(IOException | RuntimeException e)
+			{
+				fail(e);
+			}
+		}
+
+		/**
+		 * Writes buffers one after another.
+		 * @param buffers The buffers.
+		 * @param position Where to write the first buffer.
+		 * @param result Passed to the listener once everything is written.
+		 */
+		void write(final ByteBuffer[] buffers, final long position, final Recipe.Result result)
+		{
+			int next = 0;
+			while(next < buffers.length && !buffers[next].hasRemaining()) next++;
+
+			if(next == buffers.length)
+			{
+				try
+				{
+					listener.written(source, destination, result);
+				}
+				finally
+				{
+					finish();
+				}
+				return;
+			}
+
+			output.write(buffers[next], position, null, new CompletionHandler<Integer, Void>()
+			{
+				@Override
+				public void completed(Integer written, Void attachment)
+				{
+					write(buffers, position + written, result);
+				}
+
+				@Override
+				public void failed(Throwable e, Void attachment)
+				{
+					fail(e);
+				}
+			});
+		}
+
+		/**
+		 * Records a failure and finishes the file.
+		 */
+		void fail(Throwable e)
+		{
+			IOException exception = e instanceof IOException ? (IOException) e :
+					new IOException("Could not modify " + source, e);
+			if(failure == null) failure = exception;
+
+			try
+			{
+				listener.failed(source, exception);
+			}
+			finally
+			{
+				finish();
+			}
+		}
+
+		/**
+		 * Closes the channels, gives the buffer back and lets another file
+		 * into the pipeline.
+		 */
+		void finish()
+		{
+			if(finished) return;
+			finished = true;
+
+			for(AsynchronousFileChannel channel : new AsynchronousFileChannel[] { input, output })
+			{
+				if(channel == null) continue;
+				try
+				{
+					channel.close();
+				}
+				catch(IOException e)
+				{
+					if(failure == null) failure = e;
+				}
+			}
+
+			// Nothing reads into or writes from the buffer once the file is
+			// finished
+			if(buffer != null) bufferPool.release(buffer);
+			bytePermits.release(reserved);
+			permits.release();
+		}
+	}
+}
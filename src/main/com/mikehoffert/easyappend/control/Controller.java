@@ -3,13 +3,35 @@ package com.mikehoffert.easyappend.control;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import com.mikehoffert.easyappend.model.ArchiveWriter;
+import com.mikehoffert.easyappend.model.AnchoredInsertion;
+import com.mikehoffert.easyappend.model.AtomicWriter;
+import com.mikehoffert.easyappend.model.Backups;
+import com.mikehoffert.easyappend.model.BufferPool;
 import com.mikehoffert.easyappend.model.BufferedFile;
+import com.mikehoffert.easyappend.model.Durability;
+import com.mikehoffert.easyappend.model.GzipFile;
+import com.mikehoffert.easyappend.model.SegmentedMatcher;
 
 /**
  * Provides interaction with the model classes.
@@ -26,6 +48,12 @@ public class Controller implements Observable
 	 */
 	private List<TextAddition> additions = new ArrayList<>();
 	
+	/**
+	 * The additions of files that have their own (such as from rule files),
+	 * instead of the ones above.
+	 */
+	private Map<BufferedFile, List<TextAddition>> additionsByFile = new HashMap<>();
+	
 	/**
 	 * All observers of this class.
 	 */
@@ -37,9 +65,22 @@ public class Controller implements Observable
 	private boolean dryRun = false;
 	
 	/**
-	 * Location to place written files. If null, use their current locations.
+	 * Where unified diffs of the changes are written in a dry run, or null to
+	 * not write them.
+	 */
+	private PrintWriter diff = null;
+	
+	/**
+	 * Locations to place written files. Each file is written to all of them.
+	 * If empty, use their current locations.
+	 */
+	private List<Path> locations = new ArrayList<>();
+	
+	/**
+	 * The archive that files are written into, if the location is an archive.
+	 * Opened when the first file is written.
 	 */
-	private Path location = null;
+	private ArchiveWriter archive = null;
 	
 	/**
 	 * The charset that all files are presumed to be using. Will default to
@@ -47,6 +88,140 @@ public class Controller implements Observable
 	 */
 	private Charset charset = StandardCharsets.UTF_8;
 	
+	/**
+	 * If true, the charset, byte order mark and line ending of each file are
+	 * detected instead of using the charset.
+	 */
+	private boolean detectFormat = false;
+	
+	/**
+	 * The base path that output locations are relative to for streamed files,
+	 * which can't be known in advance. Defaults to the working directory.
+	 */
+	private Path basePath = null;
+	
+	/**
+	 * Writes files atomically. If null, files are overwritten in place.
+	 */
+	private AtomicWriter atomicWriter = null;
+	
+	/**
+	 * If true, originals are kept as hard links before being replaced.
+	 */
+	private boolean backup = false;
+	
+	/**
+	 * The folder to keep backups in. If null, backups are kept next to the
+	 * originals.
+	 */
+	private Path backupDirectory = null;
+	
+	/**
+	 * If true, files are restored from their backups instead of being modified.
+	 */
+	private boolean restore = false;
+	
+	/**
+	 * True once writing has been prepared.
+	 */
+	private boolean prepared = false;
+	
+	/**
+	 * Every file written (including backups) since it was last taken, or null
+	 * if written files aren't tracked.
+	 */
+	private List<Path> written = null;
+	
+	/**
+	 * The shard of the job that this controller handles, from 0 to
+	 * <tt>shards - 1</tt>.
+	 */
+	private int shard = 0;
+	
+	/**
+	 * The number of shards the job is split into. Files in other shards are
+	 * skipped.
+	 */
+	private int shards = 1;
+	
+	/**
+	 * If true, files that look like binary files are skipped.
+	 */
+	private boolean skipBinary = true;
+	
+	/**
+	 * If true, files that aren't valid UTF-8 (when using UTF-8) are also
+	 * skipped as binary files.
+	 */
+	private boolean skipInvalidUtf8 = false;
+	
+	/**
+	 * The file keys (device and inode) of the files processed so far, so that
+	 * a file listed several times (such as through hard links or symbolic
+	 * links) is only processed once.
+	 */
+	private Set<Object> processedKeys = Collections.synchronizedSet(new HashSet<Object>());
+	
+	/**
+	 * If true, listed files are processed in an order close to how they are
+	 * laid out on disk, instead of the order they were listed in.
+	 */
+	private boolean localitySchedule = false;
+	
+	/**
+	 * The fewest and most listed files that are worked on at once. The number
+	 * in between is adjusted to the latency of the storage.
+	 */
+	private int minJobs = 1;
+	private int maxJobs = 1;
+	
+	/**
+	 * The most listed files in flight with asynchronous I/O, or 0 to not use
+	 * asynchronous I/O.
+	 */
+	private int asyncInFlight = 0;
+	
+	/**
+	 * Messages sent by the current thread while it works on a file alongside
+	 * other threads, which are held back so that each file's messages are
+	 * sent together. Null when messages are sent immediately.
+	 */
+	private ThreadLocal<List<Message>> heldMessages = new ThreadLocal<>();
+	
+	/**
+	 * Where files get buffers for reading and writing.
+	 */
+	private BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_MAX_RETAINED);
+	
+	/**
+	 * If true, gzip files have text added as new compressed members.
+	 */
+	private boolean gzip = false;
+	
+	/**
+	 * If true, text added in place to files written to their own location is
+	 * reported, and journaled if <tt>journalInPlace</tt> is true.
+	 */
+	private boolean inPlace = false;
+	private boolean journalInPlace = false;
+	
+	/**
+	 * Scans very large files for regexes in segments at once, or null to scan
+	 * each file with a single thread.
+	 */
+	private SegmentedMatcher segmentedMatcher;
+	
+	/**
+	 * The text of each addition compiled as a template, once it is first
+	 * needed, so that it is only compiled once for all files.
+	 */
+	private ConcurrentHashMap<TextAddition, Template> templates = new ConcurrentHashMap<>();
+	
+	/**
+	 * Counters describing the run.
+	 */
+	private Stats stats = new Stats();
+	
 	/**
 	 * Adds a new file to the list of files to (potentially) modify.
 	 * @param file The file to add.
@@ -54,9 +229,34 @@ public class Controller implements Observable
 	public void addFile(BufferedFile file)
 	{
 		file.setCharset(charset);
+		file.setDetectFormat(detectFormat);
+		file.setBufferPool(bufferPool);
+		file.setInPlace(inPlace, journalInPlace);
+		file.setSegmentedMatcher(segmentedMatcher);
 		files.add(file);
 	}
 	
+	/**
+	 * Adds a new file with its own text additions, which are applied instead
+	 * of the ones added with {@link #addText(TextAddition)}.
+	 * @param file The file to add.
+	 * @param fileAdditions The additions to apply to this file.
+	 */
+	public void addFile(BufferedFile file, List<TextAddition> fileAdditions)
+	{
+		addFile(file);
+		additionsByFile.put(file, fileAdditions);
+	}
+	
+	/**
+	 * @return The text additions added so far, which apply to files without
+	 * their own.
+	 */
+	public List<TextAddition> getAdditions()
+	{
+		return Collections.unmodifiableList(additions);
+	}
+	
 	/**
 	 * Adds a new text addition that can modify the files. The text additions
 	 * are applied in the order that they are added.
@@ -76,6 +276,17 @@ public class Controller implements Observable
 		this.charset = charset;
 	}
 	
+	/**
+	 * Sets whether the charset, byte order mark and line ending of each file
+	 * are detected from the start of the file, instead of using the same
+	 * charset for all files.
+	 * @param detectFormat True to detect the format of each file.
+	 */
+	public void setDetectFormat(boolean detectFormat)
+	{
+		this.detectFormat = detectFormat;
+	}
+	
 	@Override
 	public void attach(Observer observer)
 	{
@@ -91,15 +302,55 @@ public class Controller implements Observable
 		this.dryRun = dryRun;
 	}
 	
+	/**
+	 * Sets where to write a unified diff of each file's changes in a dry run.
+	 * @param diff Where to write the diffs, or null to not write them.
+	 */
+	public void setDiff(PrintWriter diff)
+	{
+		this.diff = diff;
+	}
+	
 	/**
 	 * Used to send messages to all observers with a single method.
 	 * @param message The message to send.
 	 */
-	private void messageAllObservers(String message, int level)
+	void messageAllObservers(String message, int level)
+	{
+		List<Message> held = heldMessages.get();
+		if(held != null)
+		{
+			held.add(new Message(message, level));
+			return;
+		}
+		
+		synchronized(observers)
+		{
+			for(Observer observer : observers)
+			{
+				observer.message(new Message(message, level));
+			}
+		}
+	}
+	
+	/**
+	 * Sends the messages held back by the current thread, and stops holding
+	 * them back.
+	 */
+	private void releaseMessages()
 	{
-		for(Observer observer : observers)
+		List<Message> held = heldMessages.get();
+		heldMessages.remove();
+		
+		synchronized(observers)
 		{
-			observer.message(new Message(message, level));
+			for(Message message : held)
+			{
+				for(Observer observer : observers)
+				{
+					observer.message(message);
+				}
+			}
 		}
 	}
 	
@@ -111,10 +362,13 @@ public class Controller implements Observable
 	 */
 	public void writeFiles() throws FileNotFoundException, IOException
 	{
+		if(files.isEmpty()) return;
+		prepare();
+		
 		Path commonPath = PathUtils.determineCommonPath(files);
 		// Only print out path info if we specified an alternative location to
 		// write to
-		if(location != null)
+		if(!locations.isEmpty())
 		{
 			if(commonPath == null)
 			{
@@ -126,69 +380,958 @@ public class Controller implements Observable
 			}
 		}
 		
-		for(BufferedFile file : files)
+		List<BufferedFile> queue = files;
+		if(localitySchedule)
+		{
+			// Several files at once are balanced better with large files spread out
+			LocalityScheduler scheduler = new LocalityScheduler();
+			scheduler.setInterleave(asyncInFlight > 0 || maxJobs > 1);
+			queue = scheduler.schedule(files);
+		}
+		if(asyncInFlight > 0 && canWriteAsynchronously())
+		{
+			writeAsynchronously(queue, commonPath);
+		}
+		else if(maxJobs > 1 && canWriteConcurrently())
+		{
+			writeConcurrently(queue, commonPath);
+		}
+		else
 		{
-			messageAllObservers("Working on file " + file, 0);
-			int counter = 0;
-			for(TextAddition addition : additions)
+			for(BufferedFile file : queue)
 			{
-				counter++;
-				messageAllObservers("Evaluating text addition #" + counter +
-						" (" + (addition.isPrepend() ? "prepend" : "append") +  ")", 1);
+				writeFile(file, getAdditions(file), commonPath);
+			}
+		}
+		
+		if(atomicWriter != null) atomicWriter.flush();
+	}
+	
+	/**
+	 * Applies all additions to the files on several threads, with as many
+	 * files in flight as the storage keeps up with.
+	 * @param queue The files, in the order to start them in.
+	 * @param commonPath The base path that output locations are relative to,
+	 * or null if there is none.
+	 * @throws FileNotFoundException The file we're appending or prepending to
+	 * does not exist.
+	 * @throws IOException Could not write to the desired file.
+	 */
+	private void writeConcurrently(List<BufferedFile> queue, final Path commonPath)
+			throws FileNotFoundException, IOException
+	{
+		final AdaptiveLimit limit = new AdaptiveLimit(minJobs, maxJobs);
+		final List<IOException> failures = Collections.synchronizedList(
+				new ArrayList<IOException>());
+		
+		ExecutorService pool = Executors.newFixedThreadPool(maxJobs, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "easy-append-worker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		try
+		{
+			for(final BufferedFile file : queue)
+			{
+				// Don't start any more files once one has failed
+				if(!failures.isEmpty()) break;
 				
-				// Determine if the file contains any required regex
-				boolean applyChange = true;
-				if(addition.getContains() != null)
+				limit.acquire();
+				pool.execute(new Runnable()
 				{
-					boolean contains = file.contains(addition.getContains());
-					applyChange = contains ^ addition.isInverted();
-					
-					messageAllObservers("File " + (contains ? "does" : "does not") +
-							" contain the regex.", 2);
-					
-					if(!applyChange)
+					@Override
+					public void run()
 					{
-						messageAllObservers("Skipping because regex should" +
-								(addition.isInverted() ? " not" : "") + " be matched.", 2);
+						long start = System.nanoTime();
+						long bytes = file.getFile().length();
+						heldMessages.set(new ArrayList<Message>());
+						try
+						{
+							writeFile(file, getAdditions(file), commonPath);
+						}
+						catch(IOException e)
+						{
+							failures.add(e);
+						}
+						finally
+						{
+							releaseMessages();
+							limit.release(System.nanoTime() - start, bytes);
+						}
 					}
+				});
+			}
+			
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing files.", e);
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+		
+		stats.set("jobs.limit", limit.getLimit());
+		stats.set("jobs.limit.max", limit.getPeak());
+		messageAllObservers("Worked on up to " + limit.getPeak() + " files at once.", 0);
+		
+		if(!failures.isEmpty()) throw failures.get(0);
+	}
+	
+	/**
+	 * Determines if the listed files can be worked on at once, which they
+	 * can't be when they are written into an archive one after another.
+	 * @return True if the files can be written concurrently.
+	 */
+	private boolean canWriteConcurrently()
+	{
+		if(!isArchiveLocation()) return true;
+		
+		messageAllObservers("Files are written into an archive one at a time, so --jobs is " +
+				"ignored.", 0);
+		return false;
+	}
+	
+	/**
+	 * @return True if files are written into an archive instead of a folder.
+	 */
+	private boolean isArchiveLocation()
+	{
+		return !locations.isEmpty() && ArchiveWriter.isArchive(locations.get(0));
+	}
+	
+	/**
+	 * Determines if the listed files can be written with asynchronous I/O,
+	 * which writes files in place (or to their location) without any of the
+	 * options that need the regular path.
+	 * @return True if the files can be written asynchronously.
+	 */
+	private boolean canWriteAsynchronously()
+	{
+		String option = dryRun ? "--dry-run" : restore ? "--restore" : backup ? "--backup" :
+				atomicWriter != null ? "--atomic" : detectFormat ? "--charset=auto" :
+				gzip ? "--gzip" : inPlace ? "--in-place" :
+				isArchiveLocation() ? "an archive location" :
+				locations.size() > 1 ? "several locations" :
+				isAnchored(additions) ? "--insert-after or --insert-before" :
+				!additionsByFile.isEmpty() ? "rule files" : null;
+		if(option == null) return true;
+		
+		messageAllObservers("Asynchronous I/O can't be used with " + option +
+				", so files are written one at a time instead.", 0);
+		return false;
+	}
+	
+	/**
+	 * Applies all additions to the files with asynchronous I/O, keeping many
+	 * files in flight on a few threads.
+	 * @param queue The files, in the order to start them in.
+	 * @param commonPath The base path that output locations are relative to,
+	 * or null if there is none.
+	 * @throws FileNotFoundException The file we're appending or prepending to
+	 * does not exist.
+	 * @throws IOException Could not write to the desired file.
+	 */
+	private void writeAsynchronously(List<BufferedFile> queue, Path commonPath)
+			throws FileNotFoundException, IOException
+	{
+		AsyncPipeline.Listener listener = new AsyncPipeline.Listener()
+		{
+			@Override
+			public void written(Path source, Path destination, Recipe.Result result)
+			{
+				evaluated(source, result);
+				if(!locations.isEmpty())
+				{
+					messageAllObservers("File written to: " + destination, 1);
 				}
+				messageAllObservers("File written.", 1);
+				stats.increment("files.written");
+				releaseMessages();
+			}
+			
+			@Override
+			public void unchanged(Path source, Recipe.Result result)
+			{
+				evaluated(source, result);
+				messageAllObservers("Nothing was added, so the file was left as it was.", 1);
+				stats.increment("files.unchanged");
+				releaseMessages();
+			}
+			
+			/**
+			 * Reports which additions applied to a file, holding the messages
+			 * back until the file is done.
+			 */
+			private void evaluated(Path source, Recipe.Result result)
+			{
+				stats.increment("files.processed");
+				heldMessages.set(new ArrayList<Message>());
+				messageAllObservers("Working on file " + source, 0);
 				
-				if(applyChange)
+				for(int i = 0; i < additions.size(); i++)
 				{
-					if(addition.isPrepend())
+					TextAddition addition = additions.get(i);
+					messageAllObservers("Evaluating text addition #" + (i + 1) +
+							" (" + (addition.isPrepend() ? "prepend" : "append") +  ")", 1);
+					if(result.isApplied(i))
 					{
-						file.setPrependText(addition.getText(), addition.isSameLine());
-						messageAllObservers("Text will be prepended.", 2);
+						stats.increment("additions.applied");
+						messageAllObservers("Text " + (addition.isPrepend() ? "prepended" :
+								"appended") + ".", 2);
 					}
 					else
 					{
-						file.setAppendText(addition.getText(), addition.isSameLine());
-						messageAllObservers("Text will be appended.", 2);
+						messageAllObservers("Skipping because regex should" +
+								(addition.isInverted() ? " not" : "") + " be matched.", 2);
 					}
 				}
 			}
+			
+			@Override
+			public void skippedBinary(Path source)
+			{
+				stats.increment("files.skipped.binary");
+				messageAllObservers("Skipping binary file " + source, 0);
+			}
+			
+			@Override
+			public void failed(Path source, IOException e)
+			{
+				stats.increment("files.failed");
+				messageAllObservers("Could not modify " + source + ": " + e, 0);
+			}
+		};
 		
-			File outputFile = PathUtils.determineFileLocation(file.getFile(), commonPath, location);
+		try(AsyncPipeline pipeline = new AsyncPipeline(Recipe.compile(additions, charset, commonPath),
+				asyncInFlight, skipInvalidUtf8, bufferPool, listener))
+		{
+			for(BufferedFile file : queue)
+			{
+				if(!admit(file, commonPath)) continue;
+				
+				File outputFile = PathUtils.determineFileLocation(file.getFile(), commonPath,
+						locations.isEmpty() ? null : locations.get(0));
+				if(!pipeline.submit(file.getFile().toPath(), outputFile.toPath(),
+						skipBinary && file.isWalked()))
+				{
+					// Too large to buffer, so it is written in blocks instead
+					stats.increment("files.async.large");
+					writeAdmittedFile(file, getAdditions(file), commonPath);
+				}
+			}
 			
-			// Only print out path info if we specified an alternative location to
-			// write to
-			if(location != null)
+			pipeline.await();
+		}
+	}
+	
+	/**
+	 * Commits any atomic writes that are waiting in the current batch.
+	 * @throws IOException Could not commit the files.
+	 */
+	public void flush() throws IOException
+	{
+		if(atomicWriter != null) atomicWriter.flush();
+	}
+	
+	/**
+	 * Starts keeping track of the files that are written, including backups.
+	 */
+	public void trackWrites()
+	{
+		if(written == null) written = Collections.synchronizedList(new ArrayList<Path>());
+	}
+	
+	/**
+	 * Takes the files that have been written since this was last called.
+	 * Written files must be tracked.
+	 * @return The written files.
+	 */
+	public List<Path> takeWritten()
+	{
+		List<Path> taken = written;
+		written = Collections.synchronizedList(new ArrayList<Path>());
+		return taken;
+	}
+	
+	/**
+	 * Commits any atomic writes that are still waiting and finishes the
+	 * archive that files were written into. Must be called once all files have
+	 * been written.
+	 * @throws IOException Could not commit the files or finish the archive.
+	 */
+	public void finish() throws IOException
+	{
+		stats.set("buffers.hits", bufferPool.getHits());
+		stats.set("buffers.misses", bufferPool.getMisses());
+		
+		if(archive != null)
+		{
+			archive.close();
+			archive = null;
+		}
+		
+		if(atomicWriter == null) return;
+		
+		atomicWriter.close();
+		if(atomicWriter.getBarriers() > 0)
+		{
+			messageAllObservers("Waited on " + atomicWriter.getBarriers() + " sync barriers.", 0);
+		}
+	}
+	
+	/**
+	 * Applies text additions to a single file immediately, instead of adding it
+	 * to the list of files. This is used for files that are streamed in, so
+	 * output locations are relative to the base path.
+	 * @param file The file to modify.
+	 * @param fileAdditions The additions to apply to this file, or null to use
+	 * the additions that were added to the controller.
+	 * @throws FileNotFoundException The file we're appending or prepending to
+	 * does not exist.
+	 * @throws IOException Could not write to the desired file.
+	 */
+	public void writeFile(BufferedFile file, List<TextAddition> fileAdditions)
+			throws FileNotFoundException, IOException
+	{
+		if(basePath == null)
+		{
+			basePath = Paths.get("").toAbsolutePath().toFile().getCanonicalFile().toPath();
+		}
+		
+		prepare();
+		file.setCharset(charset);
+		file.setDetectFormat(detectFormat);
+		file.setBufferPool(bufferPool);
+		file.setInPlace(inPlace, journalInPlace);
+		file.setSegmentedMatcher(segmentedMatcher);
+		writeFile(file, fileAdditions == null ? additions : fileAdditions, basePath);
+	}
+	
+	/**
+	 * Prepares for writing the first file. Backups need atomic writes, since
+	 * the backup is a link to the original, which must be replaced instead of
+	 * being modified.
+	 * @throws IOException Could not create the backup journal.
+	 */
+	private void prepare() throws IOException
+	{
+		if(prepared) return;
+		prepared = true;
+		
+		if(backup && !restore && !dryRun)
+		{
+			if(atomicWriter == null) setAtomic(Durability.NONE);
+			atomicWriter.setBackups(new Backups(backupDirectory, atomicWriter.getDurability()));
+		}
+	}
+	
+	/**
+	 * Restores a single file from the backup next to it.
+	 * @param file The file to restore.
+	 * @throws IOException Could not restore the file.
+	 */
+	private void restoreFile(BufferedFile file) throws IOException
+	{
+		File backupFile = PathUtils.determineBackupLocation(file.getFile(), null, null);
+		if(!backupFile.exists())
+		{
+			messageAllObservers("No backup of file " + file, 0);
+			return;
+		}
+		
+		messageAllObservers("Restoring file " + file + " from " + backupFile, 0);
+		if(!dryRun) Backups.restore(file.getFile().toPath(), backupFile.toPath());
+	}
+	
+	/**
+	 * Rolls back the last run that kept backups in a backup folder, by moving
+	 * each backup over the file it was made from.
+	 * @param backupDirectory The backup folder.
+	 * @throws IOException Could not read the journal or restore a file.
+	 */
+	public void restoreFrom(Path backupDirectory) throws IOException
+	{
+		List<Path> entries = Backups.readJournal(backupDirectory);
+		for(int i = 0; i < entries.size(); i += 2)
+		{
+			Path original = entries.get(i);
+			Path backupPath = entries.get(i + 1);
+			
+			messageAllObservers("Restoring file " + original + " from " + backupPath, 0);
+			if(!dryRun && !Backups.restore(original, backupPath))
+			{
+				messageAllObservers("Backup no longer exists.", 1);
+			}
+		}
+		
+		if(!dryRun) Backups.deleteJournal(backupDirectory);
+	}
+	
+	/**
+	 * Forgets which files have been processed, so that files listed again are
+	 * processed again (such as when they change while watching).
+	 */
+	public void forgetProcessed()
+	{
+		processedKeys.clear();
+	}
+	
+	/**
+	 * Identifies a file by its file key (device and inode), following symbolic
+	 * links. On file systems without file keys, the real path is used instead.
+	 * @param file The file.
+	 * @return The key, or a new object (which is never equal to another key)
+	 * if the file can't be read, leaving the error to be reported when it is
+	 * read.
+	 */
+	private static Object fileKey(File file)
+	{
+		try
+		{
+			Path path = file.toPath();
+			Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+			return key != null ? key : path.toRealPath();
+		}
+		catch(IOException e)
+		{
+			return new Object();
+		}
+	}
+	
+	/**
+	 * Counts a listed file and determines if it should be worked on, which it
+	 * isn't if it was already listed (or, when writing in place, is the same
+	 * file as one that was) or is in another shard.
+	 * @param file The file.
+	 * @param commonPath The base path that shards and output locations are
+	 * determined relative to, or null if there is none.
+	 * @return True if the file should be worked on.
+	 */
+	private boolean admit(BufferedFile file, Path commonPath)
+	{
+		stats.increment("files.listed");
+		
+		// Paths to the same file (such as hard links) would modify it twice in
+		// place, but with output locations each path has its own output, so
+		// only paths that are written to the same output are the same
+		Object key = locations.isEmpty() ? fileKey(file.getFile()) :
+				PathUtils.determineRelativePath(file.getFile(), commonPath);
+		if(!processedKeys.add(key))
+		{
+			stats.increment("files.skipped.duplicate");
+			messageAllObservers("Skipping file " + file + ", which is the same file as one " +
+					"listed before.", 0);
+			return false;
+		}
+		
+		if(shards > 1 && PathUtils.determineShard(file.getFile(), commonPath, shards) != shard)
+		{
+			stats.increment("files.skipped.shard");
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Applies the additions to a single file and writes it.
+	 * @param file The file to modify.
+	 * @param fileAdditions The additions to apply.
+	 * @param commonPath The base path that the output location is relative
+	 * to, or null if there is none.
+	 * @throws FileNotFoundException The file we're appending or prepending to
+	 * does not exist.
+	 * @throws IOException Could not write to the desired file.
+	 */
+	private void writeFile(BufferedFile file, List<TextAddition> fileAdditions, Path commonPath)
+			throws FileNotFoundException, IOException
+	{
+		if(admit(file, commonPath)) writeAdmittedFile(file, fileAdditions, commonPath);
+	}
+	
+	/**
+	 * Applies the additions to a single file that has been admitted, and
+	 * writes it.
+	 * @param file The file to modify.
+	 * @param fileAdditions The additions to apply.
+	 * @param commonPath The base path that the output location is relative
+	 * to, or null if there is none.
+	 * @throws FileNotFoundException The file we're appending or prepending to
+	 * does not exist.
+	 * @throws IOException Could not write to the desired file.
+	 */
+	private void writeAdmittedFile(BufferedFile file, List<TextAddition> fileAdditions,
+			Path commonPath) throws FileNotFoundException, IOException
+	{
+		if(restore)
+		{
+			restoreFile(file);
+			return;
+		}
+		
+		// A prepend that was interrupted is finished instead of adding the text
+		// again
+		if(!dryRun && locations.isEmpty() && file.resumeInPlace())
+		{
+			stats.increment("files.resumed");
+			messageAllObservers("Finished an interrupted prepend to " + file, 0);
+			reportShift(file);
+			return;
+		}
+		
+		// Text can't be inserted inside compressed members, and diffs of gzip
+		// files would be of the compressed bytes, so those are left to be skipped
+		// as binary files
+		if(gzip && diff == null && !isAnchored(fileAdditions) && GzipFile.isGzip(file.getFile()))
+		{
+			file = new GzipFile(file.getFile());
+			file.setCharset(charset);
+			file.setBufferPool(bufferPool);
+			file.setSegmentedMatcher(segmentedMatcher);
+			stats.increment("files.gzip");
+		}
+		
+		// Only the start of the file is read to tell, so binary files are never
+		// read entirely. Files listed by name are always worked on.
+		if(skipBinary && file.isWalked() && file.isBinary(skipInvalidUtf8))
+		{
+			stats.increment("files.skipped.binary");
+			messageAllObservers("Skipping binary file " + file, 0);
+			return;
+		}
+		
+		stats.increment("files.processed");
+		messageAllObservers("Working on file " + file, 0);
+		if(detectFormat && file.getFormat() != null)
+		{
+			messageAllObservers("Detected format: " + file.getFormat(), 1);
+		}
+		int counter = 0;
+		for(TextAddition addition : fileAdditions)
+		{
+			counter++;
+			messageAllObservers("Evaluating text addition #" + counter + " (" +
+					(addition.isAnchored() ? "insert" : addition.isPrepend() ? "prepend" :
+					"append") +  ")", 1);
+			
+			// Determine if the file contains any required regex
+			boolean applyChange = true;
+			if(addition.getContains() != null)
 			{
+				boolean contains = file.contains(addition.getContains());
+				applyChange = contains ^ addition.isInverted();
+				
+				messageAllObservers("File " + (contains ? "does" : "does not") +
+						" contain the regex.", 2);
+				
+				if(!applyChange)
+				{
+					messageAllObservers("Skipping because regex should" +
+							(addition.isInverted() ? " not" : "") + " be matched.", 2);
+				}
+			}
+			
+			if(applyChange)
+			{
+				stats.increment("additions.applied");
+				String text = getTemplate(addition).render(file.getFile(), commonPath);
+				if(addition.isAnchored())
+				{
+					file.addTransformer(new AnchoredInsertion(addition.getAnchor(),
+							addition.isAnchorLast(), text, addition.isSameLine()));
+					messageAllObservers("Text will be inserted " + (addition.isAnchorLast() ?
+							"before the last" : "after the first") + " line matching the anchor.", 2);
+				}
+				else if(addition.isPrepend())
+				{
+					file.setPrependText(text, addition.isSameLine());
+					messageAllObservers("Text will be prepended.", 2);
+				}
+				else
+				{
+					file.setAppendText(text, addition.isSameLine());
+					messageAllObservers("Text will be appended.", 2);
+				}
+			}
+		}
+		
+		List<File> outputFiles = new ArrayList<>();
+		String entryName = null;
+		if(isArchiveLocation())
+		{
+			entryName = PathUtils.determineArchiveEntry(file.getFile(), commonPath);
+			messageAllObservers("File will be written to " + locations.get(0) + " as: " +
+					entryName, 1);
+		}
+		else if(locations.isEmpty())
+		{
+			outputFiles.add(file.getFile());
+		}
+		else
+		{
+			// Only print out path info if we specified an alternative location
+			// to write to
+			for(Path location : locations)
+			{
+				File outputFile = PathUtils.determineFileLocation(file.getFile(), commonPath,
+						location);
+				outputFiles.add(outputFile);
 				messageAllObservers("File will be written to: " + outputFile.toString(), 1);
 			}
+		}
+		
+		if(!dryRun)
+		{
+			// Nothing is replaced in an archive, so it needs no atomic writes
+			if(entryName != null)
+			{
+				if(archive == null) archive = ArchiveWriter.open(locations.get(0));
+				file.write(archive, entryName);
+			}
+			else if(atomicWriter != null)
+			{
+				List<File> backupFiles = new ArrayList<>();
+				for(File outputFile : outputFiles)
+				{
+					File backupFile = backup ? PathUtils.determineBackupLocation(outputFile,
+							commonPath, backupDirectory) : null;
+					backupFiles.add(backupFile);
+					if(written != null && backupFile != null) written.add(backupFile.toPath());
+				}
+				file.write(outputFiles, backupFiles, atomicWriter);
+			}
+			else
+			{
+				// Each file is read once, however many locations it goes to
+				file.write(outputFiles);
+				reportShift(file);
+			}
 			
-			if(!dryRun) file.write(outputFile);
+			if(file.getMissedEdits() > 0)
+			{
+				stats.add("additions.anchor.missed", file.getMissedEdits());
+				messageAllObservers("Text was not inserted for " + file.getMissedEdits() +
+						" anchor(s) that no line matched.", 1);
+			}
 			
-			if(!dryRun) messageAllObservers("File written.", 1);
+			if(written != null)
+			{
+				if(entryName != null) written.add(locations.get(0));
+				for(File outputFile : outputFiles) written.add(outputFile.toPath());
+			}
+			stats.increment("files.written");
+			if(outputFiles.size() > 1) stats.add("files.copied", outputFiles.size() - 1);
+		}
+		else if(diff != null)
+		{
+			writeDiff(file, commonPath);
+		}
+		
+		if(!dryRun) messageAllObservers("File written.", 1);
+	}
+	
+	/**
+	 * Writes a unified diff of the changes to a file. The file is named by its
+	 * path relative to the base path in both headers, as <tt>a/</tt> and
+	 * <tt>b/</tt>, so that the diff can be applied from there.
+	 * @param file The file, with its changes set.
+	 * @param commonPath The base path, or null if there is none.
+	 * @throws FileNotFoundException The file does not exist.
+	 * @throws IOException Could not read the file.
+	 */
+	private void writeDiff(BufferedFile file, Path commonPath)
+			throws FileNotFoundException, IOException
+	{
+		String name = PathUtils.determineRelativePath(file.getFile(), commonPath);
+		boolean relative = !new File(name).isAbsolute();
+		String text = file.diff(relative ? "a/" + name : name, relative ? "b/" + name : name);
+		if(text == null) return;
+		
+		stats.increment("files.diffed");
+		
+		// Files worked on at once still print whole diffs
+		synchronized(diff)
+		{
+			diff.print(text);
+			diff.flush();
 		}
 	}
 	
+	/**
+	 * @param file A file that was added.
+	 * @return The additions to apply to it.
+	 */
+	private List<TextAddition> getAdditions(BufferedFile file)
+	{
+		List<TextAddition> fileAdditions = additionsByFile.get(file);
+		return fileAdditions == null ? additions : fileAdditions;
+	}
+	
+	/**
+	 * @param addition A text addition.
+	 * @return Its text compiled as a template.
+	 */
+	private Template getTemplate(TextAddition addition)
+	{
+		Template template = templates.get(addition);
+		if(template == null)
+		{
+			template = Template.compile(addition.getText());
+			Template existing = templates.putIfAbsent(addition, template);
+			if(existing != null) template = existing;
+		}
+		
+		return template;
+	}
+	
+	/**
+	 * @param fileAdditions Text additions.
+	 * @return True if any of the additions inserts text next to an anchor.
+	 */
+	private static boolean isAnchored(List<TextAddition> fileAdditions)
+	{
+		for(TextAddition addition : fileAdditions)
+		{
+			if(addition.isAnchored()) return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Counts how much of a file was moved to add text in place, and reports how
+	 * quickly if adding text in place was asked for.
+	 * @param file The file.
+	 */
+	private void reportShift(BufferedFile file)
+	{
+		if(file.getShiftedBytes() == 0) return;
+		
+		stats.add("shift.bytes", file.getShiftedBytes());
+		stats.add("shift.millis", file.getShiftNanos() / 1000000);
+		
+		if(!inPlace) return;
+		
+		double megabytes = file.getShiftedBytes() / (1024.0 * 1024.0);
+		double seconds = Math.max(file.getShiftNanos(), 1) / 1e9;
+		messageAllObservers(String.format("Moved %.1f MB in place at %.1f MB/s.", megabytes,
+				megabytes / seconds), 1);
+	}
+	
+	/**
+	 * Enables atomic writes, where files are written to a temporary file that
+	 * is then renamed over the original.
+	 * @param durability Whether (and how) written files are synced.
+	 */
+	public void setAtomic(Durability durability)
+	{
+		atomicWriter = new AtomicWriter(durability, AtomicWriter.DEFAULT_BATCH_SIZE);
+	}
+	
+	/**
+	 * Splits the job into shards, so that it can be run by several processes.
+	 * Only the files in this controller's shard are modified.
+	 * @param shard The shard to handle, from 0 to <tt>shards - 1</tt>.
+	 * @param shards The number of shards.
+	 */
+	public void setShard(int shard, int shards)
+	{
+		this.shard = shard;
+		this.shards = shards;
+	}
+	
+	/**
+	 * Sets how many of the files that were added are worked on at once. In
+	 * between the bounds, the number is raised while files keep taking about
+	 * as long as usual, and cut when they take much longer (which means the
+	 * storage is saturated). The limit reached is kept in the stats. Streamed
+	 * files are always worked on one at a time.
+	 * @param minJobs The fewest files worked on at once, at least 1.
+	 * @param maxJobs The most files worked on at once, at least
+	 * <tt>minJobs</tt>.
+	 */
+	public void setJobs(int minJobs, int maxJobs)
+	{
+		this.minJobs = minJobs;
+		this.maxJobs = maxJobs;
+	}
+	
+	/**
+	 * Sets whether gzip files (named <tt>*.gz</tt>) have text added as new
+	 * compressed members, instead of being skipped as binary files. Regexes
+	 * are matched against the decompressed text.
+	 * @param gzip True to add text to gzip files.
+	 */
+	public void setGzip(boolean gzip)
+	{
+		this.gzip = gzip;
+	}
+	
+	/**
+	 * Sets whether text added in place to files written to their own location
+	 * is journaled. Such files are never written as a new copy: text is added
+	 * by moving the content of the file, so it needs no more free space than
+	 * the text, but the file is left partly moved if interrupted unless the
+	 * moves are journaled. A journaled write that was interrupted is finished
+	 * the next time the file is processed, instead of adding the text again.
+	 * Atomic writes (and so backups) always write a new copy. Must be set
+	 * before files are added.
+	 * @param inPlace True to add text in place.
+	 * @param journal True to journal prepends.
+	 */
+	public void setInPlace(boolean inPlace, boolean journal)
+	{
+		this.inPlace = inPlace;
+		this.journalInPlace = journal;
+	}
+	
+	/**
+	 * Sets whether regexes are found in very large files by scanning segments
+	 * of each file at once. A match that crosses from one segment into the
+	 * next is only found if it is no longer than the overlap. Must be set
+	 * before files are added.
+	 * @param overlap The number of chars each segment is scanned past its end,
+	 * or -1 to scan each file with a single thread.
+	 */
+	public void setParallelRegex(int overlap)
+	{
+		segmentedMatcher = overlap < 0 ? null : new SegmentedMatcher(overlap);
+	}
+	
+	/**
+	 * Sets how much memory may be kept in free buffers for reuse by later
+	 * files. Must be set before files are added.
+	 * @param maxRetained The most bytes to keep, or 0 to not reuse buffers.
+	 */
+	public void setBufferPool(long maxRetained)
+	{
+		bufferPool = new BufferPool(maxRetained);
+	}
+	
+	/**
+	 * Sets whether the files that were added are written with asynchronous
+	 * I/O, which keeps many files in flight without a thread for each. This
+	 * takes precedence over {@link #setJobs(int, int)}, but can't be combined
+	 * with dry runs, restoring, backups, atomic writes, detecting formats,
+	 * gzip files or writing in place, in which case files are written as
+	 * usual.
+	 * @param inFlight The most files in flight, or 0 to not use asynchronous
+	 * I/O.
+	 */
+	public void setAsync(int inFlight)
+	{
+		this.asyncInFlight = inFlight;
+	}
+	
+	/**
+	 * Sets whether the files that were added are processed in an order close
+	 * to how they are laid out on disk (by folder, then by inode number),
+	 * instead of the order they were added in.
+	 * @param localitySchedule True to order files by locality.
+	 */
+	public void setLocalitySchedule(boolean localitySchedule)
+	{
+		this.localitySchedule = localitySchedule;
+	}
+	
+	/**
+	 * Sets whether files that aren't valid UTF-8 are skipped as binary files,
+	 * when using UTF-8. Text in other charsets often isn't valid UTF-8, so
+	 * this is off by default.
+	 * @param skipInvalidUtf8 True to skip files that aren't valid UTF-8.
+	 */
+	public void setSkipInvalidUtf8(boolean skipInvalidUtf8)
+	{
+		this.skipInvalidUtf8 = skipInvalidUtf8;
+	}
+	
+	/**
+	 * Sets whether files found by walking folders that look like binary files
+	 * (such as images and jars) are skipped. They are skipped by default.
+	 * Files listed by name are never skipped.
+	 * @param skipBinary True to skip binary files.
+	 */
+	public void setSkipBinary(boolean skipBinary)
+	{
+		this.skipBinary = skipBinary;
+	}
+	
+	/**
+	 * @return The counters describing the run so far.
+	 */
+	public Stats getStats()
+	{
+		return stats;
+	}
+	
+	/**
+	 * Enables backups of the files that are replaced, which are kept as hard
+	 * links. Enables atomic writes if they aren't already.
+	 * @param backupDirectory The folder to keep backups in, or null to keep
+	 * them next to the originals.
+	 */
+	public void setBackup(Path backupDirectory)
+	{
+		this.backup = true;
+		this.backupDirectory = backupDirectory;
+	}
+	
+	/**
+	 * Sets whether files are restored from the backups next to them instead of
+	 * being modified.
+	 * @param restore True to restore files.
+	 */
+	public void setRestore(boolean restore)
+	{
+		this.restore = restore;
+	}
+	
+	/**
+	 * Sets the base path that the output locations of streamed files are
+	 * relative to.
+	 * @param basePath The base path.
+	 */
+	public void setBasePath(Path basePath)
+	{
+		this.basePath = basePath;
+	}
+	
 	/**
 	 * Sets the location to place the output files in.
-	 * @param location The location to place output files.
+	 * @param location The location to place output files, or null to
+	 * overwrite the originals.
 	 */
 	public void setLocation(Path location)
 	{
-		this.location = location;
+		locations.clear();
+		if(location != null) addLocation(location);
+	}
+	
+	/**
+	 * Adds another location to place the output files in. Each file is read
+	 * once and written to every location.
+	 * @param location The location to place output files.
+	 * @throws IllegalArgumentException The location is an archive and there
+	 * are other locations, or there is already an archive location.
+	 */
+	public void addLocation(Path location)
+	{
+		if(!locations.isEmpty() && (isArchiveLocation() || ArchiveWriter.isArchive(location)))
+		{
+			throw new IllegalArgumentException("An archive can't be one of several locations.");
+		}
+		
+		locations.add(location);
 	}
 }
@@ -0,0 +1,130 @@
+package com.mikehoffert.easyappend.control;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The text additions that rule files found while walking folders define for
+ * each folder. A rule file applies to the folder it is in and every folder
+ * below it: its additions come after the ones inherited from the folders above
+ * (and the command line), unless it doesn't inherit, in which case they
+ * replace them. Each folder's additions are worked out once and cached, so
+ * every file in a folder shares the same list (and the templates compiled for
+ * it).
+ */
+public class DirectoryRules
+{
+	/**
+	 * Reads rule files.
+	 */
+	public interface Reader
+	{
+		/**
+		 * Reads a rule file.
+		 * @param file The rule file.
+		 * @return The rules it defines.
+		 * @throws IOException Could not read the file, or it is malformed.
+		 */
+		public Rules read(Path file) throws IOException;
+	}
+
+	/**
+	 * The rules defined by a single rule file.
+	 */
+	public static class Rules
+	{
+		final List<TextAddition> additions;
+		final boolean inherit;
+
+		/**
+		 * @param additions The text additions the file defines.
+		 * @param inherit If true, the additions come after the ones from the
+		 * folders above. If false, they replace them.
+		 */
+		public Rules(List<TextAddition> additions, boolean inherit)
+		{
+			this.additions = additions;
+			this.inherit = inherit;
+		}
+	}
+
+	private final String fileName;
+
+	private final Reader reader;
+
+	/**
+	 * The additions that apply above the folders being walked.
+	 */
+	private final List<TextAddition> base;
+
+	private final Map<Path, List<TextAddition>> cache = new HashMap<>();
+
+	/**
+	 * Initializes the rules.
+	 * @param fileName The name of the rule files.
+	 * @param reader Reads rule files.
+	 * @param base The additions that apply above the folders being walked,
+	 * such as the ones from the command line.
+	 */
+	public DirectoryRules(String fileName, Reader reader, List<TextAddition> base)
+	{
+		this.fileName = fileName;
+		this.reader = reader;
+		this.base = Collections.unmodifiableList(new ArrayList<>(base));
+	}
+
+	/**
+	 * @param file A file.
+	 * @return True if the file is a rule file, which text is never added to.
+	 */
+	public boolean isRuleFile(Path file)
+	{
+		return file.getFileName() != null && file.getFileName().toString().equals(fileName);
+	}
+
+	/**
+	 * Forgets the additions worked out so far, so that rule files that have
+	 * changed (such as while watching) are read again.
+	 */
+	public void clear()
+	{
+		cache.clear();
+	}
+
+	/**
+	 * Determines the additions for the files in a folder.
+	 * @param directory The folder.
+	 * @param root The folder being walked. Rule files above it are ignored.
+	 * @return The additions, in the order they are applied.
+	 * @throws IOException Could not read a rule file, or it is malformed.
+	 */
+	public List<TextAddition> forDirectory(Path directory, Path root) throws IOException
+	{
+		directory = directory.toAbsolutePath().normalize();
+		List<TextAddition> additions = cache.get(directory);
+		if(additions != null) return additions;
+
+		Path parent = directory.getParent();
+		additions = directory.equals(root.toAbsolutePath().normalize()) || parent == null ?
+				base : forDirectory(parent, root);
+
+		Path file = directory.resolve(fileName);
+		if(Files.isRegularFile(file))
+		{
+			Rules rules = reader.read(file);
+			List<TextAddition> merged = new ArrayList<>();
+			if(rules.inherit) merged.addAll(additions);
+			merged.addAll(rules.additions);
+			additions = Collections.unmodifiableList(merged);
+		}
+
+		cache.put(directory, additions);
+		return additions;
+	}
+}
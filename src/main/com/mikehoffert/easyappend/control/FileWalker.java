@@ -0,0 +1,300 @@
+package com.mikehoffert.easyappend.control;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Walks the files inside folders, for recursive mode. Files and folders can be
+ * excluded with patterns and with ignore files found along the way (in the
+ * style of <tt>.gitignore</tt>). Excluded folders are skipped entirely, without
+ * listing anything inside them. Backups made by earlier runs can be skipped as
+ * well, so that they aren't modified (and backed up again) themselves.
+ */
+public class FileWalker
+{
+	/**
+	 * Receives the files found by a walk.
+	 */
+	public interface Visitor
+	{
+		/**
+		 * Called for each file that is not excluded.
+		 * @param file The file.
+		 * @throws IOException Could not handle the file, which stops the walk.
+		 */
+		public void visit(File file) throws IOException;
+	}
+
+	/**
+	 * The rules of an ignore file, and the folder they apply to.
+	 */
+	private static class IgnoreFile
+	{
+		final Path directory;
+		final IgnoreRules rules;
+
+		IgnoreFile(Path directory, IgnoreRules rules)
+		{
+			this.directory = directory;
+			this.rules = rules;
+		}
+	}
+
+	/**
+	 * Patterns that files must match to be included, relative to the folder
+	 * being walked. Empty to include all files.
+	 */
+	private IgnoreRules includes;
+
+	/**
+	 * Patterns of files and folders to exclude, relative to the folder being
+	 * walked.
+	 */
+	private IgnoreRules excludes;
+
+	/**
+	 * The name of the ignore files to obey, or null for none.
+	 */
+	private String ignoreFileName;
+
+	/**
+	 * True to skip backups.
+	 */
+	private boolean skipBackups = false;
+
+	/**
+	 * The folder backups are kept in, or null if they are kept next to the
+	 * files.
+	 */
+	private Path backupDirectory = null;
+
+	/**
+	 * Initializes the walker.
+	 * @param includes Patterns that files must match to be included, or an
+	 * empty list to include all files.
+	 * @param excludes Patterns of files and folders to exclude.
+	 * @param ignoreFileName The name of the ignore files to obey in each
+	 * folder, or null for none.
+	 */
+	public FileWalker(List<String> includes, List<String> excludes, String ignoreFileName)
+	{
+		this.includes = IgnoreRules.compile(includes);
+		this.excludes = IgnoreRules.compile(excludes);
+		this.ignoreFileName = ignoreFileName;
+	}
+
+	/**
+	 * Sets whether backups are skipped. Backups kept next to their files are
+	 * files named like another file in the same folder with <tt>.orig</tt>
+	 * added, and a backup folder is skipped entirely.
+	 * @param skipBackups True to skip backups.
+	 * @param backupDirectory The folder backups are kept in, or null if they
+	 * are kept next to the files.
+	 */
+	public void setSkipBackups(boolean skipBackups, Path backupDirectory)
+	{
+		this.skipBackups = skipBackups;
+		this.backupDirectory = backupDirectory;
+	}
+
+	/**
+	 * Walks all files inside a folder (and the folders inside it), following
+	 * symbolic links.
+	 * @param directory The folder.
+	 * @param visitor Receives each file that is not excluded.
+	 * @throws IOException Could not list a folder, or the visitor failed.
+	 */
+	public void walk(File directory, final Visitor visitor) throws IOException
+	{
+		final Path root = directory.toPath();
+		final Deque<IgnoreFile> ignoreFiles = new ArrayDeque<>();
+
+		Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+				new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+					throws IOException
+			{
+				if(!dir.equals(root) && isExcluded(root, dir, true, ignoreFiles))
+				{
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+
+				readIgnoreFile(dir, ignoreFiles);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+					throws IOException
+			{
+				if(attrs.isRegularFile() && isIncluded(root, file, ignoreFiles))
+				{
+					visitor.visit(file.toFile());
+				}
+
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException
+			{
+				// Symbolic links that loop back to a parent folder are skipped
+				if(e instanceof FileSystemLoopException) return FileVisitResult.CONTINUE;
+				throw e;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException
+			{
+				if(e != null) throw e;
+				if(!ignoreFiles.isEmpty() && ignoreFiles.peek().directory.equals(dir))
+				{
+					ignoreFiles.pop();
+				}
+
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Determines if a file or folder would be found by walking a folder, such
+	 * as for a file that changed after the walk. The ignore files between the
+	 * folder and the path are read again, so changes to them are obeyed.
+	 * @param root The folder that would be walked.
+	 * @param path The file or folder, which must be inside the root.
+	 * @param directory True if the path is a folder, in which case it is only
+	 * checked against the exclude patterns and ignore files.
+	 * @return True if the path would be found (or, for a folder, walked into).
+	 * @throws IOException Could not read an ignore file.
+	 */
+	public boolean accepts(Path root, Path path, boolean directory) throws IOException
+	{
+		Deque<IgnoreFile> ignoreFiles = new ArrayDeque<>();
+		Path relative = root.relativize(path);
+		Path dir = root;
+		for(int i = 0; i < relative.getNameCount(); i++)
+		{
+			if(i > 0 && isExcluded(root, dir, true, ignoreFiles)) return false;
+			readIgnoreFile(dir, ignoreFiles);
+			dir = dir.resolve(relative.getName(i));
+		}
+
+		if(directory) return path.equals(root) || !isExcluded(root, path, true, ignoreFiles);
+		return isIncluded(root, path, ignoreFiles);
+	}
+
+	/**
+	 * Reads the ignore file in a folder, if there is one.
+	 * @param dir The folder.
+	 * @param ignoreFiles The ignore files that apply, deepest first, which the
+	 * folder's is pushed onto.
+	 * @throws IOException Could not read the ignore file.
+	 */
+	private void readIgnoreFile(Path dir, Deque<IgnoreFile> ignoreFiles) throws IOException
+	{
+		if(ignoreFileName == null) return;
+
+		Path ignoreFile = dir.resolve(ignoreFileName);
+		if(Files.isRegularFile(ignoreFile))
+		{
+			ignoreFiles.push(new IgnoreFile(dir, IgnoreRules.read(ignoreFile)));
+		}
+	}
+
+	/**
+	 * Determines if a file is included: it matches the include patterns (if
+	 * there are any) and isn't excluded.
+	 * @param root The folder being walked.
+	 * @param file The file.
+	 * @param ignoreFiles The ignore files that apply, deepest first.
+	 * @return True if the file is included.
+	 */
+	private boolean isIncluded(Path root, Path file, Deque<IgnoreFile> ignoreFiles)
+	{
+		return !isExcluded(root, file, false, ignoreFiles) && (includes.isEmpty() ||
+				Boolean.TRUE.equals(includes.match(relativize(root, file), false)));
+	}
+
+	/**
+	 * Determines if a file or folder is excluded, either by the exclude
+	 * patterns or by an ignore file. Ignore files in deeper folders take
+	 * precedence.
+	 * @param root The folder being walked.
+	 * @param path The file or folder.
+	 * @param directory True if the path is a folder.
+	 * @param ignoreFiles The ignore files that apply, deepest first.
+	 * @return True if the path is excluded.
+	 */
+	private boolean isExcluded(Path root, Path path, boolean directory,
+			Deque<IgnoreFile> ignoreFiles)
+	{
+		if(isBackup(path, directory)) return true;
+
+		if(Boolean.TRUE.equals(excludes.match(relativize(root, path), directory)))
+		{
+			return true;
+		}
+
+		for(IgnoreFile ignoreFile : ignoreFiles)
+		{
+			Boolean ignored = ignoreFile.rules.match(relativize(ignoreFile.directory, path),
+					directory);
+			if(ignored != null) return ignored;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Determines if a file is a backup, or a folder is the backup folder, when
+	 * backups are skipped.
+	 * @param path The file or folder.
+	 * @param directory True if the path is a folder.
+	 * @return True if the path is a backup that should be skipped.
+	 */
+	private boolean isBackup(Path path, boolean directory)
+	{
+		if(!skipBackups) return false;
+
+		if(backupDirectory != null)
+		{
+			try
+			{
+				return directory && Files.exists(backupDirectory) &&
+						Files.isSameFile(path, backupDirectory);
+			}
+			catch(IOException e)
+			{
+				return false;
+			}
+		}
+
+		String name = path.getFileName().toString();
+		return !directory && name.endsWith(PathUtils.BACKUP_EXTENSION) &&
+				name.length() > PathUtils.BACKUP_EXTENSION.length() &&
+				Files.exists(path.resolveSibling(name.substring(0,
+				name.length() - PathUtils.BACKUP_EXTENSION.length())));
+	}
+
+	/**
+	 * @return The path relative to a folder, separated by forward slashes.
+	 */
+	private static String relativize(Path directory, Path path)
+	{
+		return directory.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+}
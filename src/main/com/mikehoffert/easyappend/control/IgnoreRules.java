@@ -0,0 +1,251 @@
+package com.mikehoffert.easyappend.control;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A list of glob patterns in the style of <tt>.gitignore</tt> files, compiled
+ * so that a path is matched against all the patterns at once instead of one
+ * at a time.<p>
+ *
+ * Patterns without a slash match a file or folder name at any depth, while
+ * patterns with a slash match paths relative to the folder the patterns apply
+ * to. A trailing slash only matches folders. <tt>*</tt> matches anything
+ * except a slash, <tt>?</tt> matches a single character except a slash and
+ * <tt>**</tt> matches any number of folders. Patterns starting with <tt>!</tt>
+ * are negated, and the last matching pattern wins. Blank lines and lines
+ * starting with <tt>#</tt> are ignored.
+ */
+public class IgnoreRules
+{
+	/**
+	 * A run of consecutive patterns that are all negated or all not negated.
+	 * Since the last matching pattern wins, only the last matching run matters,
+	 * so each run is compiled as a whole.
+	 */
+	private static class Run
+	{
+		final boolean negated;
+
+		/**
+		 * Names without wildcards, which are looked up instead of matched.
+		 */
+		final Set<String> names = new HashSet<>();
+		final Set<String> directoryNames = new HashSet<>();
+
+		/**
+		 * All other patterns, as alternations of regexes over relative paths.
+		 */
+		final List<String> paths = new ArrayList<>();
+		final List<String> directoryPaths = new ArrayList<>();
+
+		Pattern pathPattern;
+		Pattern directoryPathPattern;
+
+		Run(boolean negated)
+		{
+			this.negated = negated;
+		}
+
+		boolean matches(String path, String name, boolean directory)
+		{
+			if(names.contains(name) || (directory && directoryNames.contains(name)))
+			{
+				return true;
+			}
+
+			return (pathPattern != null && pathPattern.matcher(path).matches()) ||
+					(directory && directoryPathPattern != null &&
+					directoryPathPattern.matcher(path).matches());
+		}
+	}
+
+	/**
+	 * The runs of patterns, in order.
+	 */
+	private List<Run> runs = new ArrayList<>();
+
+	private IgnoreRules()
+	{
+	}
+
+	/**
+	 * Compiles patterns.
+	 * @param patterns The patterns, in order.
+	 * @return The compiled patterns.
+	 */
+	public static IgnoreRules compile(List<String> patterns)
+	{
+		IgnoreRules rules = new IgnoreRules();
+		Run run = null;
+
+		for(String pattern : patterns)
+		{
+			if(pattern.trim().isEmpty() || pattern.startsWith("#")) continue;
+
+			boolean negated = pattern.startsWith("!");
+			if(negated) pattern = pattern.substring(1);
+			if(pattern.startsWith("\\")) pattern = pattern.substring(1);
+
+			boolean directory = pattern.endsWith("/");
+			if(directory) pattern = pattern.substring(0, pattern.length() - 1);
+			if(pattern.isEmpty()) continue;
+
+			if(run == null || run.negated != negated)
+			{
+				run = new Run(negated);
+				rules.runs.add(run);
+			}
+
+			if(!pattern.contains("/") && !hasWildcard(pattern))
+			{
+				(directory ? run.directoryNames : run.names).add(pattern);
+			}
+			else
+			{
+				(directory ? run.directoryPaths : run.paths).add(toRegex(pattern));
+			}
+		}
+
+		for(Run compiled : rules.runs)
+		{
+			compiled.pathPattern = alternation(compiled.paths);
+			compiled.directoryPathPattern = alternation(compiled.directoryPaths);
+		}
+
+		return rules;
+	}
+
+	/**
+	 * Reads and compiles an ignore file.
+	 * @param file The file.
+	 * @return The compiled patterns.
+	 * @throws IOException Could not read the file.
+	 */
+	public static IgnoreRules read(Path file) throws IOException
+	{
+		return compile(Files.readAllLines(file, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return True if there are no patterns.
+	 */
+	public boolean isEmpty()
+	{
+		return runs.isEmpty();
+	}
+
+	/**
+	 * Matches a path against the patterns.
+	 * @param path The path relative to the folder that the patterns apply to,
+	 * separated by forward slashes.
+	 * @param directory True if the path is a folder.
+	 * @return True if the last matching pattern is not negated, false if it
+	 * is negated and null if no pattern matches.
+	 */
+	public Boolean match(String path, boolean directory)
+	{
+		String name = path.substring(path.lastIndexOf('/') + 1);
+
+		for(int i = runs.size() - 1; i >= 0; i--)
+		{
+			Run run = runs.get(i);
+			if(run.matches(path, name, directory)) return !run.negated;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return True if the pattern contains glob wildcards.
+	 */
+	private static boolean hasWildcard(String pattern)
+	{
+		return pattern.contains("*") || pattern.contains("?") || pattern.contains("[");
+	}
+
+	/**
+	 * Combines regexes into a single alternation.
+	 * @param regexes The regexes.
+	 * @return The alternation, or null if there are no regexes.
+	 */
+	private static Pattern alternation(List<String> regexes)
+	{
+		if(regexes.isEmpty()) return null;
+
+		StringBuilder builder = new StringBuilder();
+		for(String regex : regexes)
+		{
+			if(builder.length() > 0) builder.append('|');
+			builder.append("(?:").append(regex).append(')');
+		}
+
+		return Pattern.compile(builder.toString());
+	}
+
+	/**
+	 * Converts a glob pattern to a regex over relative paths.
+	 * @param glob The pattern, without negation or a trailing slash.
+	 * @return The regex.
+	 */
+	static String toRegex(String glob)
+	{
+		StringBuilder regex = new StringBuilder();
+
+		// Patterns without a slash match names at any depth
+		if(!glob.contains("/"))
+		{
+			regex.append("(?:.*/)?");
+		}
+		else if(glob.startsWith("/"))
+		{
+			glob = glob.substring(1);
+		}
+
+		for(int i = 0; i < glob.length(); i++)
+		{
+			char c = glob.charAt(i);
+
+			if(c == '*' && glob.startsWith("**/", i))
+			{
+				regex.append("(?:.*/)?");
+				i += 2;
+			}
+			else if(c == '*' && glob.startsWith("**", i))
+			{
+				regex.append(".*");
+				i++;
+			}
+			else if(c == '*')
+			{
+				regex.append("[^/]*");
+			}
+			else if(c == '?')
+			{
+				regex.append("[^/]");
+			}
+			else if(c == '[' && glob.indexOf(']', i + 1) > i + 1)
+			{
+				int end = glob.indexOf(']', i + 1);
+				String characters = glob.substring(i + 1, end);
+				if(characters.startsWith("!")) characters = "^" + characters.substring(1);
+				regex.append('[').append(characters.replace("\\", "\\\\")).append(']');
+				i = end;
+			}
+			else
+			{
+				if(!Character.isLetterOrDigit(c)) regex.append('\\');
+				regex.append(c);
+			}
+		}
+
+		return regex.toString();
+	}
+}
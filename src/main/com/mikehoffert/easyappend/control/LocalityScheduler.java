@@ -0,0 +1,157 @@
+package com.mikehoffert.easyappend.control;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.mikehoffert.easyappend.model.BufferedFile;
+
+/**
+ * Orders files so that they are read in an order close to how they are laid
+ * out on disk: files in the same folder are kept together, and files within a
+ * folder are ordered by inode number. On spinning disks and network file
+ * systems, this avoids much of the seeking (and metadata cache misses) caused
+ * by processing files in the order they were listed.<p>
+ *
+ * When several files are worked on at once, large files can also be spread
+ * out among the small ones, so that they don't all end up in flight together
+ * while the other workers run out of files.
+ */
+public class LocalityScheduler
+{
+	/**
+	 * Files at least this large are spread out when interleaving.
+	 */
+	static final long LARGE_SIZE = 1024 * 1024;
+
+	/**
+	 * A file and the keys it is ordered by.
+	 */
+	private static class Entry
+	{
+		final BufferedFile file;
+		final Path directory;
+		final long inode;
+
+		Entry(BufferedFile file, Path directory, long inode)
+		{
+			this.file = file;
+			this.directory = directory;
+			this.inode = inode;
+		}
+	}
+
+	/**
+	 * True to spread large files out among the small ones.
+	 */
+	private boolean interleave = false;
+
+	/**
+	 * False once the file system has turned out not to have inode numbers, so
+	 * that they aren't asked for again.
+	 */
+	private boolean inodes = true;
+
+	/**
+	 * Sets whether large files are spread out among the small ones, which
+	 * keeps the workers balanced when several files are worked on at once.
+	 * Large and small files each stay in locality order.
+	 * @param interleave True to interleave large and small files.
+	 */
+	public void setInterleave(boolean interleave)
+	{
+		this.interleave = interleave;
+	}
+
+	/**
+	 * Orders files by locality.
+	 * @param files The files, in the order they were listed.
+	 * @return The files in the order they should be processed. Files in the
+	 * same folder with the same inode number (or without inode numbers) keep
+	 * the order they were listed in.
+	 */
+	public List<BufferedFile> schedule(List<BufferedFile> files)
+	{
+		List<Entry> entries = new ArrayList<>(files.size());
+		for(BufferedFile file : files)
+		{
+			Path path = file.getFile().toPath().toAbsolutePath().normalize();
+			Path directory = path.getParent();
+			entries.add(new Entry(file, directory == null ? path : directory, inode(path)));
+		}
+
+		Collections.sort(entries, new Comparator<Entry>()
+		{
+			@Override
+			public int compare(Entry a, Entry b)
+			{
+				int directories = a.directory.compareTo(b.directory);
+				return directories != 0 ? directories : Long.compare(a.inode, b.inode);
+			}
+		});
+
+		List<BufferedFile> scheduled = new ArrayList<>(entries.size());
+		for(Entry entry : entries)
+		{
+			scheduled.add(entry.file);
+		}
+
+		return interleave ? interleave(scheduled) : scheduled;
+	}
+
+	/**
+	 * Spreads the large files evenly among the small ones.
+	 * @param files The files, in locality order.
+	 * @return The files, with each position taking a large file whenever
+	 * fewer than its share of them have been placed so far.
+	 */
+	private static List<BufferedFile> interleave(List<BufferedFile> files)
+	{
+		List<BufferedFile> large = new ArrayList<>();
+		List<BufferedFile> small = new ArrayList<>();
+		for(BufferedFile file : files)
+		{
+			(file.getFile().length() >= LARGE_SIZE ? large : small).add(file);
+		}
+		if(large.isEmpty() || small.isEmpty()) return files;
+
+		List<BufferedFile> interleaved = new ArrayList<>(files.size());
+		int nextLarge = 0;
+		int nextSmall = 0;
+		for(int i = 0; i < files.size(); i++)
+		{
+			boolean takeLarge = nextLarge < large.size() && (nextSmall == small.size() ||
+					(long) nextLarge * files.size() <= (long) i * large.size());
+			interleaved.add(takeLarge ? large.get(nextLarge++) : small.get(nextSmall++));
+		}
+
+		return interleaved;
+	}
+
+	/**
+	 * @return The inode number of a file, or 0 if it isn't known.
+	 */
+	private long inode(Path path)
+	{
+		if(!inodes) return 0;
+
+		try
+		{
+			return (Long) Files.getAttribute(path, "unix:ino");
+		}
+		catch(UnsupportedOperationException | IllegalArgumentException e)
+		{
+			inodes = false;
+			return 0;
+		}
+		catch(IOException e)
+		{
+			// Reported when the file is read
+			return 0;
+		}
+	}
+}
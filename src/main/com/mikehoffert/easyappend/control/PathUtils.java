@@ -2,12 +2,14 @@ package com.mikehoffert.easyappend.control;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 
 import org.apache.commons.lang3.StringUtils;
 
+import com.google.common.hash.Hashing;
 import com.mikehoffert.easyappend.model.BufferedFile;
 
 /**
@@ -15,6 +17,11 @@ import com.mikehoffert.easyappend.model.BufferedFile;
  */
 public class PathUtils
 {
+	/**
+	 * The extension of backups kept next to their files.
+	 */
+	static final String BACKUP_EXTENSION = ".orig";
+	
 	/**
 	 * Determines where to write a file to based on its location, the base
 	 * directory that all files share, and an optional folder to write the
@@ -35,20 +42,155 @@ public class PathUtils
 			return file;
 		}
 		
-		Path relativeFromLocation;
+		return location.resolve(determineRelativeLocation(file, baseDirectory)).toFile()
+				.getCanonicalFile();
+	}
+
+	/**
+	 * Determines the name of a file's entry when the files are written into an
+	 * archive instead of a folder. Entries are laid out the same way as files
+	 * in an alternative location.
+	 * @param file The file in question.
+	 * @param baseDirectory The base directory that all files share. Will be
+	 * null if there is no base directory (files are on different roots).
+	 * @return The entry's path, with <tt>/</tt> separators.
+	 * @throws IOException Failed to determine the path of the file.
+	 */
+	public static String determineArchiveEntry(File file, Path baseDirectory) throws IOException
+	{
+		return determineRelativeLocation(file, baseDirectory).normalize().toString()
+				.replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Determines where a file goes relative to an alternative location: its
+	 * path relative to the base directory, or, without one, its path under a
+	 * folder named after its root.
+	 */
+	private static Path determineRelativeLocation(File file, Path baseDirectory)
+			throws IOException
+	{
+		Path relativeFromLocation = null;
 		if(baseDirectory != null)
 		{
-			relativeFromLocation = baseDirectory.relativize(file.toPath());
+			relativeFromLocation = canonicalizeFolder(baseDirectory).relativize(
+					canonicalize(file.toPath()));
+			
+			// Files outside of the base directory (only possible for streamed
+			// files) are placed as though there was no base directory
+			if(relativeFromLocation.startsWith("..")) relativeFromLocation = null;
 		}
-		else
+		
+		if(relativeFromLocation == null)
 		{
 			Path root = file.getCanonicalFile().toPath().getRoot();
-			String rootName = root.toString().substring(0, 1).toLowerCase();
+			String rootName = root.toString().replaceAll("[^A-Za-z0-9]", "").toLowerCase();
+			if(rootName.isEmpty()) rootName = "root";
 			Path relativeFromRoot = root.relativize(file.toPath().toAbsolutePath());
 			relativeFromLocation = Paths.get(rootName).resolve(relativeFromRoot);
 		}
 		
-		return location.resolve(relativeFromLocation).toFile().getCanonicalFile();
+		return relativeFromLocation;
+	}
+
+	/**
+	 * Determines where to keep the backup of a file that is about to be
+	 * replaced. Backups are either kept next to the file, with an
+	 * <tt>.orig</tt> extension, or in a backup folder laid out the same way as
+	 * an alternative location.
+	 * @param file The file that is about to be replaced.
+	 * @param baseDirectory The base directory that all files share. Will be
+	 * null if there is no base directory (files are on different roots).
+	 * @param backupDirectory The folder to keep backups in, or null to keep
+	 * them next to the files.
+	 * @return File pertaining to where the backup should be kept.
+	 * @throws IOException 
+	 */
+	public static File determineBackupLocation(File file, Path baseDirectory,
+			Path backupDirectory) throws IOException
+	{
+		if(backupDirectory == null)
+		{
+			return new File(file.getPath() + BACKUP_EXTENSION);
+		}
+		
+		return determineFileLocation(file, baseDirectory, backupDirectory);
+	}
+
+	/**
+	 * Determines which shard a file belongs to, when a job is split across
+	 * several processes. The shard is a stable hash of the file's path relative
+	 * to the base directory, so every process assigns a file to the same shard
+	 * no matter where the processes run from.
+	 * @param file The file.
+	 * @param baseDirectory The base directory that all files share. Will be
+	 * null if there is no base directory (files are on different roots).
+	 * @param shards The number of shards.
+	 * @return The shard, from 0 to <tt>shards - 1</tt>.
+	 */
+	public static int determineShard(File file, Path baseDirectory, int shards)
+	{
+		String key = determineRelativePath(file, baseDirectory);
+		int hash = Hashing.murmur3_32().hashString(key, StandardCharsets.UTF_8).asInt();
+		return (hash & Integer.MAX_VALUE) % shards;
+	}
+
+	/**
+	 * Determines the path of a file relative to the base directory, with
+	 * <tt>/</tt> separators on every platform.
+	 * @param file The file.
+	 * @param baseDirectory The base directory that all files share. Will be
+	 * null if there is no base directory (files are on different roots).
+	 * @return The relative path, or the canonical path if the file isn't in
+	 * the base directory (such as a streamed file outside of the working
+	 * directory).
+	 */
+	public static String determineRelativePath(File file, Path baseDirectory)
+	{
+		Path path = canonicalize(file.toPath());
+		if(baseDirectory != null)
+		{
+			Path base = canonicalizeFolder(baseDirectory);
+			if(path.startsWith(base)) path = base.relativize(path);
+		}
+		
+		return path.toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Resolves the folders along a path the same way as
+	 * {@link #determineCommonPath(List)}, so that a file reached through a
+	 * symbolic link to a folder is still inside the common path. The name of
+	 * the file itself is kept, even if it's a symbolic link.
+	 * @param path The path.
+	 * @return The path with canonical folders, or just made absolute if the
+	 * folders can't be resolved.
+	 */
+	private static Path canonicalize(Path path)
+	{
+		Path absolute = path.toAbsolutePath().normalize();
+		Path parent = absolute.getParent();
+		if(parent == null) return absolute;
+		
+		return canonicalizeFolder(parent).resolve(absolute.getFileName());
+	}
+
+	/**
+	 * Resolves a folder (such as a base directory) to its canonical path.
+	 * @param folder The folder.
+	 * @return The canonical path, or just made absolute if it can't be
+	 * resolved.
+	 */
+	private static Path canonicalizeFolder(Path folder)
+	{
+		try
+		{
+			return folder.toFile().getCanonicalFile().toPath();
+		}
+		catch(IOException e)
+		{
+			return folder.toAbsolutePath().normalize();
+		}
 	}
 
 	/**
@@ -66,7 +208,7 @@ public class PathUtils
 		
 		for(BufferedFile file : files)
 		{
-			Path path = file.getFile().getCanonicalFile().toPath().getParent();
+			Path path = canonicalize(file.getFile().toPath()).getParent();
 	
 			// First proper path we've encountered
 			if(baseDirectory == null)
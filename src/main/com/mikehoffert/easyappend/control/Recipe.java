@@ -0,0 +1,541 @@
+package com.mikehoffert.easyappend.control;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.mikehoffert.easyappend.model.BufferPool;
+
+/**
+ * A list of text additions compiled for repeated use, for embedding Easy Append
+ * in other programs. Regexes are compiled and texts are encoded once, when the
+ * recipe is created. Texts with placeholders (see {@link Template}) have their
+ * constant segments encoded once, and only the placeholders' values are
+ * encoded for each file. Recipes are immutable and thread-safe, so a single recipe
+ * can be applied to any number of files, from any number of threads.<p>
+ *
+ * Unlike {@link Controller}, nothing is printed and no state is kept between
+ * applications. Each application returns a {@link Result} describing what was
+ * done.
+ */
+public final class Recipe
+{
+	/**
+	 * A single compiled text addition.
+	 */
+	private static final class Step
+	{
+		/**
+		 * Index into the recipe's patterns of the regex that must be matched,
+		 * or -1 if the step is unconditional.
+		 */
+		final int pattern;
+		final boolean inverted;
+		final boolean prepend;
+
+		/**
+		 * The encoded text to add, including any line break.
+		 */
+		final Template.Encoded payload;
+
+		Step(int pattern, boolean inverted, boolean prepend, Template.Encoded payload)
+		{
+			this.pattern = pattern;
+			this.inverted = inverted;
+			this.prepend = prepend;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * The outcome of applying a recipe to a single file.
+	 */
+	public static final class Result
+	{
+		private final boolean[] applied;
+		private final long originalSize;
+		private final int prependedBytes;
+		private final int appendedBytes;
+
+		private Result(boolean[] applied, long originalSize, int prependedBytes,
+				int appendedBytes)
+		{
+			this.applied = applied;
+			this.originalSize = originalSize;
+			this.prependedBytes = prependedBytes;
+			this.appendedBytes = appendedBytes;
+		}
+
+		/**
+		 * @param index The index of the text addition in the list the recipe
+		 * was compiled from.
+		 * @return True if that text addition was applied.
+		 */
+		public boolean isApplied(int index)
+		{
+			return applied[index];
+		}
+
+		/**
+		 * @return True if any text was added.
+		 */
+		public boolean isModified()
+		{
+			return prependedBytes > 0 || appendedBytes > 0;
+		}
+
+		/**
+		 * @return The size of the original content, in bytes.
+		 */
+		public long getOriginalSize()
+		{
+			return originalSize;
+		}
+
+		public int getPrependedBytes()
+		{
+			return prependedBytes;
+		}
+
+		public int getAppendedBytes()
+		{
+			return appendedBytes;
+		}
+	}
+
+	/**
+	 * The compiled text additions, in order.
+	 */
+	private final Step[] steps;
+
+	/**
+	 * The distinct regexes used by the steps. Each is evaluated at most once
+	 * per file.
+	 */
+	private final Pattern[] patterns;
+
+	/**
+	 * The charset the files and texts are in.
+	 */
+	private final Charset charset;
+
+	/**
+	 * The directory that relative paths in templates are relative to, or null
+	 * if there is none.
+	 */
+	private final Path baseDirectory;
+
+	/**
+	 * The plan used for every file if the recipe is unconditional and has no
+	 * placeholders, or null if it has either.
+	 */
+	private final Plan unconditionalPlan;
+
+	private Recipe(Step[] steps, Pattern[] patterns, Charset charset, Path baseDirectory)
+	{
+		this.steps = steps;
+		this.patterns = patterns;
+		this.charset = charset;
+		this.baseDirectory = baseDirectory;
+
+		boolean constant = true;
+		for(Step step : steps) constant &= step.payload.isConstant();
+		this.unconditionalPlan = patterns.length == 0 && constant ? plan(null, null) : null;
+	}
+
+	/**
+	 * Compiles text additions into a recipe. The additions are copied, so later
+	 * changes to them do not affect the recipe.
+	 * @param additions The text additions, in the order they are applied.
+	 * @param charset The charset that the files are in.
+	 * @return The recipe.
+	 * @throws java.util.regex.PatternSyntaxException One of the regexes is
+	 * invalid.
+	 * @throws IllegalArgumentException One of the additions inserts text next
+	 * to an anchor, which recipes don't support.
+	 */
+	public static Recipe compile(List<TextAddition> additions, Charset charset)
+	{
+		return compile(additions, charset, null);
+	}
+
+	/**
+	 * Compiles text additions into a recipe, whose texts may have placeholders
+	 * with paths relative to a directory.
+	 * @param additions The text additions, in the order they are applied.
+	 * @param charset The charset that the files are in.
+	 * @param baseDirectory The directory that <tt>{relpath}</tt> is relative
+	 * to, or null to use absolute paths.
+	 * @return The recipe.
+	 * @throws java.util.regex.PatternSyntaxException One of the regexes is
+	 * invalid.
+	 * @throws IllegalArgumentException One of the additions inserts text next
+	 * to an anchor, which recipes don't support.
+	 */
+	public static Recipe compile(List<TextAddition> additions, Charset charset,
+			Path baseDirectory)
+	{
+		Step[] steps = new Step[additions.size()];
+		List<Pattern> patterns = new ArrayList<>();
+		Map<String, Integer> patternIndices = new HashMap<>();
+
+		for(int i = 0; i < steps.length; i++)
+		{
+			TextAddition addition = additions.get(i);
+			if(addition.isAnchored())
+			{
+				throw new IllegalArgumentException("Recipes can't insert text next to an anchor.");
+			}
+
+			int pattern = -1;
+			if(addition.getContains() != null)
+			{
+				Integer index = patternIndices.get(addition.getContains());
+				if(index == null)
+				{
+					index = patterns.size();
+					patterns.add(compileContains(addition.getContains()));
+					patternIndices.put(addition.getContains(), index);
+				}
+				pattern = index;
+			}
+
+			// Same line breaks as BufferedFile: prepends are followed by a line
+			// break, appends are preceded by one
+			String text = addition.getText();
+			if(!addition.isSameLine()) text = addition.isPrepend() ? text + "\n" : "\n" + text;
+
+			steps[i] = new Step(pattern, addition.isInverted(), addition.isPrepend(),
+					Template.compile(text).encode(charset));
+		}
+
+		return new Recipe(steps, patterns.toArray(new Pattern[patterns.size()]), charset,
+				baseDirectory);
+	}
+
+	/**
+	 * Compiles a regex used by <tt>--contains</tt>. The regex may match
+	 * anywhere in the file, <tt>^</tt> and <tt>$</tt> match at line breaks and
+	 * the dot matches line breaks.
+	 * @param regex The regex.
+	 * @return The compiled pattern.
+	 */
+	public static Pattern compileContains(String regex)
+	{
+		return Pattern.compile(regex, Pattern.MULTILINE | Pattern.DOTALL);
+	}
+
+	/**
+	 * @return The charset the files and texts are in.
+	 */
+	public Charset getCharset()
+	{
+		return charset;
+	}
+
+	/**
+	 * @return True if any step depends on the content of the file.
+	 */
+	boolean isConditional()
+	{
+		return patterns.length > 0;
+	}
+
+	/**
+	 * @return True if the recipe only appends, whatever the content of the
+	 * file.
+	 */
+	boolean isAppendOnly()
+	{
+		if(isConditional()) return false;
+
+		for(Step step : steps)
+		{
+			if(step.prepend) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Applies the recipe to a file, overwriting it.
+	 * @param file The file.
+	 * @return The result.
+	 * @throws IOException Could not read or write the file.
+	 */
+	public Result apply(Path file) throws IOException
+	{
+		return apply(file, file);
+	}
+
+	/**
+	 * Applies the recipe to a file, writing the result to another file (which
+	 * may be the same file). Parent directories are created as needed. A file
+	 * that nothing is added to isn't written over itself.
+	 * @param source The file to read.
+	 * @param destination The file to write.
+	 * @return The result.
+	 * @throws IOException Could not read or write the files.
+	 */
+	public Result apply(Path source, Path destination) throws IOException
+	{
+		byte[] contents = Files.readAllBytes(source);
+		Plan plan = plan(contents, source.toFile());
+		if(plan.isEmpty() && Files.exists(destination) && Files.isSameFile(source, destination))
+		{
+			return plan.result(contents.length);
+		}
+
+		Path parent = destination.toAbsolutePath().getParent();
+		if(parent != null) Files.createDirectories(parent);
+
+		try(OutputStream output = Files.newOutputStream(destination))
+		{
+			plan.write(output, contents, 0, contents.length);
+		}
+
+		return plan.result(contents.length);
+	}
+
+	/**
+	 * Applies the recipe to an open channel, modifying it in place. The
+	 * channel must be readable and writable. When the recipe only appends
+	 * unconditionally, nothing is read, and when nothing is added, nothing is
+	 * written.
+	 * @param channel The channel.
+	 * @return The result.
+	 * @throws IOException Could not read or write the channel, or it is too
+	 * large to buffer.
+	 * @throws IllegalStateException The recipe has placeholders, which need a
+	 * file.
+	 */
+	public Result apply(FileChannel channel) throws IOException
+	{
+		long size = channel.size();
+
+		if(unconditionalPlan != null && unconditionalPlan.prepend.length == 0)
+		{
+			writeFully(channel, ByteBuffer.wrap(unconditionalPlan.append), size);
+			return unconditionalPlan.result(size);
+		}
+
+		if(size > Integer.MAX_VALUE) throw new IOException("File is too large to buffer.");
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer, buffer.position()) < 0) break;
+		}
+		byte[] contents = buffer.array();
+		Plan plan = plan(contents, null);
+		if(plan.isEmpty()) return plan.result(buffer.position());
+
+		// Everything was read, so the new content can be written over it
+		ByteArrayOutputStream output = new ByteArrayOutputStream(plan.prepend.length +
+				contents.length + plan.append.length);
+		plan.write(output, contents, 0, buffer.position());
+		writeFully(channel, ByteBuffer.wrap(output.toByteArray()), 0);
+
+		return plan.result(buffer.position());
+	}
+
+	/**
+	 * Applies the recipe to a stream of content, writing the result to
+	 * another stream. When the recipe is unconditional, the content is
+	 * streamed through without being buffered. Neither stream is closed.
+	 * @param input The original content.
+	 * @param output Where to write the modified content.
+	 * @return The result.
+	 * @throws IOException Could not read or write the streams.
+	 * @throws IllegalStateException The recipe has placeholders, which need a
+	 * file.
+	 */
+	public Result apply(InputStream input, OutputStream output) throws IOException
+	{
+		byte[] buffer = new byte[8192];
+
+		if(unconditionalPlan != null)
+		{
+			Plan plan = unconditionalPlan;
+			output.write(plan.prepend);
+
+			long size = 0;
+			int read;
+			while((read = input.read(buffer)) != -1)
+			{
+				output.write(buffer, 0, read);
+				size += read;
+			}
+
+			output.write(plan.append);
+			return plan.result(size);
+		}
+
+		ByteArrayOutputStream contents = new ByteArrayOutputStream();
+		int read;
+		while((read = input.read(buffer)) != -1) contents.write(buffer, 0, read);
+
+		byte[] bytes = contents.toByteArray();
+		Plan plan = plan(bytes, null);
+		plan.write(output, bytes, 0, bytes.length);
+		return plan.result(bytes.length);
+	}
+
+	/**
+	 * Writes an entire buffer to a channel at a position.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Determines which steps apply to some content and gathers their payloads,
+	 * rendering any placeholders for the file.
+	 * @param contents The content, or null if the recipe is unconditional.
+	 * @param file The file, or null if it isn't known.
+	 * @return The plan.
+	 * @throws IllegalStateException The recipe has placeholders, but there is
+	 * no file.
+	 */
+	Plan plan(byte[] contents, File file)
+	{
+		return plan(contents == null ? null : ByteBuffer.wrap(contents), file,
+				BufferPool.UNPOOLED);
+	}
+
+	/**
+	 * Determines which steps apply to some content and gathers their payloads,
+	 * rendering any placeholders for the file.
+	 * @param contents The content, from its position to its limit, or null if
+	 * the recipe is unconditional. Its position is left as it was.
+	 * @param file The file, or null if it isn't known.
+	 * @param pool Where the buffer that the content is decoded into (if any
+	 * step is conditional) comes from.
+	 * @return The plan.
+	 * @throws IllegalStateException The recipe has placeholders, but there is
+	 * no file.
+	 */
+	Plan plan(ByteBuffer contents, File file, BufferPool pool)
+	{
+		if(unconditionalPlan != null) return unconditionalPlan;
+		
+		boolean[] applied = new boolean[steps.length];
+		ByteArrayOutputStream prepend = new ByteArrayOutputStream();
+		ByteArrayOutputStream append = new ByteArrayOutputStream();
+
+		// Decoded lazily, since only conditional steps need it
+		CharBuffer text = null;
+		Boolean[] matched = new Boolean[patterns.length];
+
+		try
+		{
+			for(int i = 0; i < steps.length; i++)
+			{
+				Step step = steps[i];
+
+				if(step.pattern >= 0)
+				{
+					if(matched[step.pattern] == null)
+					{
+						if(text == null) text = decode(contents, pool);
+						matched[step.pattern] = patterns[step.pattern].matcher(text).find();
+					}
+
+					if(!(matched[step.pattern] ^ step.inverted)) continue;
+				}
+
+				if(file == null && !step.payload.isConstant())
+				{
+					throw new IllegalStateException("Placeholders can only be filled in for files.");
+				}
+
+				applied[i] = true;
+				step.payload.render(file, baseDirectory, step.prepend ? prepend : append);
+			}
+		}
+		finally
+		{
+			if(text != null) pool.release(text);
+		}
+
+		return new Plan(applied, prepend.toByteArray(), append.toByteArray());
+	}
+
+	/**
+	 * Decodes content into a pooled buffer. Malformed input is replaced, the
+	 * same as when decoding into a string.
+	 * @param contents The content, whose position is left as it was.
+	 * @param pool Where the buffer comes from.
+	 * @return The decoded text, which should be given back to the pool.
+	 */
+	private CharBuffer decode(ByteBuffer contents, BufferPool pool)
+	{
+		CharsetDecoder decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer text = pool.acquireChars((int) Math.min(Integer.MAX_VALUE - 16,
+				(long) (contents.remaining() * (double) decoder.maxCharsPerByte())) + 16);
+		decoder.decode(contents.duplicate(), text, true);
+		decoder.flush(text);
+		text.flip();
+		return text;
+	}
+
+	/**
+	 * The additions chosen for a single file. Never modified once created.
+	 */
+	static final class Plan
+	{
+		final boolean[] applied;
+		final byte[] prepend;
+		final byte[] append;
+
+		Plan(boolean[] applied, byte[] prepend, byte[] append)
+		{
+			this.applied = applied;
+			this.prepend = prepend;
+			this.append = append;
+		}
+
+		/**
+		 * @return True if nothing is added.
+		 */
+		boolean isEmpty()
+		{
+			return prepend.length == 0 && append.length == 0;
+		}
+
+		void write(OutputStream output, byte[] contents, int offset, int length)
+				throws IOException
+		{
+			output.write(prepend);
+			output.write(contents, offset, length);
+			output.write(append);
+		}
+
+		Result result(long originalSize)
+		{
+			return new Result(applied, originalSize, prepend.length, append.length);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.mikehoffert.easyappend.control;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Named counters describing a run, such as the number of files written. Stats
+ * are written as <tt>name=value</tt> lines, and the stats of several runs (such
+ * as the shards of a job) can be merged by adding them up. Counters with names
+ * ending in <tt>.max</tt> are merged by taking the largest value instead.<p>
+ *
+ * All methods are thread-safe.
+ */
+public class Stats
+{
+	/**
+	 * The counters, sorted by name.
+	 */
+	private Map<String, Long> counters = new TreeMap<>();
+
+	/**
+	 * Adds one to a counter.
+	 * @param name The counter's name.
+	 */
+	public void increment(String name)
+	{
+		add(name, 1);
+	}
+
+	/**
+	 * Adds to a counter.
+	 * @param name The counter's name.
+	 * @param amount The amount to add.
+	 */
+	public synchronized void add(String name, long amount)
+	{
+		Long value = counters.get(name);
+		counters.put(name, value == null ? amount : value + amount);
+	}
+
+	/**
+	 * Sets a counter.
+	 * @param name The counter's name.
+	 * @param value The value.
+	 */
+	public synchronized void set(String name, long value)
+	{
+		counters.put(name, value);
+	}
+
+	/**
+	 * @param name The counter's name.
+	 * @return The counter's value, or 0 if it has never been set.
+	 */
+	public synchronized long get(String name)
+	{
+		Long value = counters.get(name);
+		return value == null ? 0 : value;
+	}
+
+	/**
+	 * Merges another run's stats into these.
+	 * @param other The other stats.
+	 */
+	public void merge(Stats other)
+	{
+		Map<String, Long> otherCounters;
+		synchronized(other)
+		{
+			otherCounters = new TreeMap<>(other.counters);
+		}
+
+		synchronized(this)
+		{
+			for(Map.Entry<String, Long> counter : otherCounters.entrySet())
+			{
+				String name = counter.getKey();
+				if(name.endsWith(".max"))
+				{
+					set(name, Math.max(get(name), counter.getValue()));
+				}
+				else
+				{
+					add(name, counter.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the stats as <tt>name=value</tt> lines.
+	 * @param writer Where to write them.
+	 */
+	public synchronized void write(PrintWriter writer)
+	{
+		for(Map.Entry<String, Long> counter : counters.entrySet())
+		{
+			writer.println(counter.getKey() + "=" + counter.getValue());
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Reads stats that were written by {@link #write(PrintWriter)}.
+	 * @param reader Where to read them from.
+	 * @return The stats.
+	 * @throws IOException Could not read the stats, or they are malformed.
+	 */
+	public static Stats read(Reader reader) throws IOException
+	{
+		Stats stats = new Stats();
+		BufferedReader lines = new BufferedReader(reader);
+
+		String line;
+		while((line = lines.readLine()) != null)
+		{
+			if(line.trim().isEmpty()) continue;
+
+			int equals = line.indexOf('=');
+			try
+			{
+				stats.add(line.substring(0, equals), Long.parseLong(line.substring(equals + 1)));
+			}
+			catch(IndexOutOfBoundsException | NumberFormatException e)
+			{
+				throw new IOException("Malformed stats line: " + line);
+			}
+		}
+
+		return stats;
+	}
+}
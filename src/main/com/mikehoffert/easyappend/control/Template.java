@@ -0,0 +1,229 @@
+package com.mikehoffert.easyappend.control;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Text with placeholders that are filled in for each file, compiled once into
+ * a list of segments. The placeholders are:
+ * <ul>
+ * <li><tt>{name}</tt> - The file's name.</li>
+ * <li><tt>{relpath}</tt> - The file's path relative to the directory all files
+ * share, with <tt>/</tt> separators (see
+ * {@link PathUtils#determineRelativePath(File, Path)}).</li>
+ * <li><tt>{date}</tt> - The date the template was compiled, as
+ * <tt>yyyy-MM-dd</tt>. It is the same for every file, so it is filled in when
+ * compiling.</li>
+ * </ul>
+ * Any other braces are left as they are. A placeholder is written literally by
+ * doubling its opening brace, as in <tt>{{name}</tt>.<p>
+ *
+ * Templates are immutable and thread-safe. Text without placeholders compiles
+ * to a single constant segment, which renders as the text itself.
+ */
+public final class Template
+{
+	/**
+	 * The placeholders filled in for each file.
+	 */
+	private enum Placeholder
+	{
+		NAME("{name}"),
+		RELPATH("{relpath}");
+
+		final String token;
+
+		Placeholder(String token)
+		{
+			this.token = token;
+		}
+	}
+
+	private static final String DATE = "{date}";
+
+	/**
+	 * The constant segments, one more than the placeholders. The placeholders
+	 * come between them.
+	 */
+	private final String[] constants;
+
+	private final Placeholder[] placeholders;
+
+	private Template(String[] constants, Placeholder[] placeholders)
+	{
+		this.constants = constants;
+		this.placeholders = placeholders;
+	}
+
+	/**
+	 * Compiles text into a template.
+	 * @param text The text.
+	 * @return The template.
+	 */
+	public static Template compile(String text)
+	{
+		String date = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+		List<String> constants = new ArrayList<>();
+		List<Placeholder> placeholders = new ArrayList<>();
+		StringBuilder constant = new StringBuilder();
+
+		int i = 0;
+		while(i < text.length())
+		{
+			if(text.charAt(i) == '{')
+			{
+				// A doubled brace escapes a placeholder
+				boolean escaped = text.startsWith("{", i + 1);
+				int start = escaped ? i + 1 : i;
+
+				Placeholder placeholder = placeholderAt(text, start);
+				if(placeholder != null || text.startsWith(DATE, start))
+				{
+					String token = placeholder != null ? placeholder.token : DATE;
+					if(escaped)
+					{
+						constant.append(token);
+					}
+					else if(placeholder == null)
+					{
+						constant.append(date);
+					}
+					else
+					{
+						constants.add(constant.toString());
+						constant.setLength(0);
+						placeholders.add(placeholder);
+					}
+
+					i = start + token.length();
+					continue;
+				}
+			}
+
+			constant.append(text.charAt(i++));
+		}
+		constants.add(constant.toString());
+
+		return new Template(constants.toArray(new String[constants.size()]),
+				placeholders.toArray(new Placeholder[placeholders.size()]));
+	}
+
+	/**
+	 * @return The placeholder starting at a position, or null if there is none.
+	 */
+	private static Placeholder placeholderAt(String text, int position)
+	{
+		for(Placeholder placeholder : Placeholder.values())
+		{
+			if(text.startsWith(placeholder.token, position)) return placeholder;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return True if the template has no placeholders that are filled in for
+	 * each file, so it always renders the same text.
+	 */
+	public boolean isConstant()
+	{
+		return placeholders.length == 0;
+	}
+
+	/**
+	 * Renders the template for a file.
+	 * @param file The file.
+	 * @param baseDirectory The directory all files share, or null if there is
+	 * none.
+	 * @return The text.
+	 */
+	public String render(File file, Path baseDirectory)
+	{
+		if(isConstant()) return constants[0];
+
+		StringBuilder text = new StringBuilder(constants[0]);
+		for(int i = 0; i < placeholders.length; i++)
+		{
+			text.append(value(placeholders[i], file, baseDirectory)).append(constants[i + 1]);
+		}
+
+		return text.toString();
+	}
+
+	/**
+	 * Encodes the constant segments, so that rendering for each file only
+	 * encodes the placeholders' values.
+	 * @param charset The charset.
+	 * @return The encoded template.
+	 */
+	public Encoded encode(Charset charset)
+	{
+		byte[][] encoded = new byte[constants.length][];
+		for(int i = 0; i < constants.length; i++) encoded[i] = constants[i].getBytes(charset);
+
+		return new Encoded(encoded, charset);
+	}
+
+	/**
+	 * @return The value of a placeholder for a file.
+	 */
+	private static String value(Placeholder placeholder, File file, Path baseDirectory)
+	{
+		switch(placeholder)
+		{
+			case NAME:
+				return file.getName();
+			default:
+				return PathUtils.determineRelativePath(file, baseDirectory);
+		}
+	}
+
+	/**
+	 * A template whose constant segments are encoded in a charset.
+	 */
+	public final class Encoded
+	{
+		private final byte[][] constants;
+
+		private final Charset charset;
+
+		private Encoded(byte[][] constants, Charset charset)
+		{
+			this.constants = constants;
+			this.charset = charset;
+		}
+
+		/**
+		 * @return True if the template always renders the same bytes.
+		 */
+		public boolean isConstant()
+		{
+			return Template.this.isConstant();
+		}
+
+		/**
+		 * Renders the template for a file straight into the output.
+		 * @param file The file, which may only be null if the template is
+		 * constant.
+		 * @param baseDirectory The directory all files share, or null if there
+		 * is none.
+		 * @param output Where to write the encoded text.
+		 */
+		public void render(File file, Path baseDirectory, ByteArrayOutputStream output)
+		{
+			output.write(constants[0], 0, constants[0].length);
+			for(int i = 0; i < placeholders.length; i++)
+			{
+				byte[] value = value(placeholders[i], file, baseDirectory).getBytes(charset);
+				output.write(value, 0, value.length);
+				output.write(constants[i + 1], 0, constants[i + 1].length);
+			}
+		}
+	}
+}
@@ -32,6 +32,18 @@ public class TextAddition
 	 * addition is placed on its own line.
 	 */
 	private boolean sameLine;
+	
+	/**
+	 * An optional regex for a line that the text is inserted next to, instead
+	 * of prepending or appending it. Set to null to prepend or append.
+	 */
+	private String anchor;
+	
+	/**
+	 * If true, the text is inserted before the last line matching the anchor.
+	 * If false, after the first line matching it.
+	 */
+	private boolean anchorLast;
 
 	/**
 	 * Groups properties of adding text.
@@ -52,6 +64,25 @@ public class TextAddition
 		this.sameLine = sameLine;
 	}
 	
+	/**
+	 * Groups properties of inserting text next to a line matching an anchor.
+	 * @param text The text to insert.
+	 * @param contains An optional regex that the file must have in order to
+	 * make this addition. Set to null to not require any containing regex.
+	 * @param inverted If true, the contains is inverted.
+	 * @param sameLine If false, the text is followed by a line break.
+	 * @param anchor The regex a line must contain.
+	 * @param anchorLast If true, inserts before the last matching line. If
+	 * false, after the first matching line.
+	 */
+	public TextAddition(String text, String contains, boolean inverted, boolean sameLine,
+			String anchor, boolean anchorLast)
+	{
+		this(text, contains, inverted, false, sameLine);
+		this.anchor = anchor;
+		this.anchorLast = anchorLast;
+	}
+	
 	public String getText()
 	{
 		return text;
@@ -101,4 +132,33 @@ public class TextAddition
 	{
 		this.sameLine = sameLine;
 	}
+
+	public String getAnchor()
+	{
+		return anchor;
+	}
+	
+	public void setAnchor(String anchor)
+	{
+		this.anchor = anchor;
+	}
+	
+	/**
+	 * @return True if the text is inserted next to an anchor, rather than
+	 * prepended or appended.
+	 */
+	public boolean isAnchored()
+	{
+		return anchor != null;
+	}
+	
+	public boolean isAnchorLast()
+	{
+		return anchorLast;
+	}
+	
+	public void setAnchorLast(boolean anchorLast)
+	{
+		this.anchorLast = anchorLast;
+	}
 }
@@ -0,0 +1,393 @@
+package com.mikehoffert.easyappend.control;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.mikehoffert.easyappend.model.BufferedFile;
+
+/**
+ * Watches folders (and all folders inside them) for files that are created or
+ * modified, and applies the controller's text additions to them. Only changed
+ * files are evaluated, so the cost of watching depends on how often files
+ * change, not on how many files there are.<p>
+ *
+ * Changes are debounced: a file is only modified once it has stopped changing
+ * for a while. Changes caused by the controller's own writes are ignored.
+ * Files and folders can be filtered the same way as in recursive mode, by a
+ * {@link FileWalker} and by rule files.
+ */
+public class Watcher
+{
+	/**
+	 * The default time a file must be left unchanged before it is modified.
+	 */
+	public static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+
+	/**
+	 * The size and modification time of a file the controller wrote, which
+	 * identifies the events caused by that write.
+	 */
+	private static class Fingerprint
+	{
+		final long size;
+		final long modified;
+
+		Fingerprint(BasicFileAttributes attributes)
+		{
+			size = attributes.size();
+			modified = attributes.lastModifiedTime().toMillis();
+		}
+
+		boolean matches(BasicFileAttributes attributes)
+		{
+			return size == attributes.size() &&
+					modified == attributes.lastModifiedTime().toMillis();
+		}
+	}
+
+	private Controller controller;
+
+	private List<Path> roots;
+
+	private long debounceMillis;
+
+	/**
+	 * Filters the files and folders, or null to watch everything.
+	 */
+	private FileWalker walker = null;
+
+	/**
+	 * The additions that rule files define for each folder, or null to use
+	 * the controller's additions for every file.
+	 */
+	private DirectoryRules rules = null;
+
+	private volatile WatchService service;
+
+	/**
+	 * True once {@link #stop()} has been called.
+	 */
+	private volatile boolean stopped = false;
+
+	/**
+	 * The folders being watched, by their watch keys. Folders are added when
+	 * they are created and removed when they are deleted.
+	 */
+	private Map<WatchKey, Path> directories = new HashMap<>();
+
+	/**
+	 * Files that have changed but haven't settled yet, in the order they last
+	 * changed, with the time they last changed.
+	 */
+	private LinkedHashMap<Path, Long> pending = new LinkedHashMap<>();
+
+	/**
+	 * Fingerprints of the files the controller has written, which haven't
+	 * caused an event yet.
+	 */
+	private Map<Path, Fingerprint> ownWrites = new HashMap<>();
+
+	/**
+	 * Initializes the watcher.
+	 * @param controller The controller to modify changed files with.
+	 * @param roots The folders to watch.
+	 * @param debounceMillis How long a file must be left unchanged before it
+	 * is modified.
+	 */
+	public Watcher(Controller controller, List<Path> roots, long debounceMillis)
+	{
+		this.controller = controller;
+		this.roots = roots;
+		this.debounceMillis = debounceMillis;
+	}
+
+	/**
+	 * Filters the watched files and folders the same way as walking the
+	 * folders would. Excluded folders aren't watched at all.
+	 * @param walker The walker whose patterns and ignore files apply.
+	 */
+	public void setWalker(FileWalker walker)
+	{
+		this.walker = walker;
+	}
+
+	/**
+	 * Uses rule files to determine the additions for each changed file. Rule
+	 * files themselves are never modified, and changes to them apply to the
+	 * files that change afterwards.
+	 * @param rules The rules.
+	 */
+	public void setRules(DirectoryRules rules)
+	{
+		this.rules = rules;
+	}
+
+	/**
+	 * Watches the folders until {@link #stop()} is called. The controller
+	 * isn't finished, so that the caller can finish it (and report its stats)
+	 * once watching stops.
+	 * @throws IOException Could not watch the folders or write a file.
+	 */
+	public void run() throws IOException
+	{
+		service = FileSystems.getDefault().newWatchService();
+		if(stopped) service.close();
+		controller.trackWrites();
+
+		try
+		{
+			for(Path root : roots)
+			{
+				register(root.toAbsolutePath().normalize(), false);
+			}
+			controller.messageAllObservers("Watching " + directories.size() + " folders.", 0);
+
+			while(true)
+			{
+				WatchKey key = pending.isEmpty() ? service.take() :
+						service.poll(debounceMillis, TimeUnit.MILLISECONDS);
+
+				if(key != null) handleEvents(key);
+				processSettled();
+			}
+		}
+		catch(ClosedWatchServiceException e)
+		{
+			// Stopped
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops watching. May be called from any thread, including before
+	 * {@link #run()}. Files that are still settling are not modified.
+	 * @throws IOException Could not stop the watch service.
+	 */
+	public void stop() throws IOException
+	{
+		stopped = true;
+		WatchService current = service;
+		if(current != null) current.close();
+	}
+
+	/**
+	 * Registers a folder and all folders inside it.
+	 * @param start The folder.
+	 * @param created True if the folder was just created, in which case files
+	 * inside it are treated as changed, since they may have been created
+	 * before the folder was registered.
+	 * @throws IOException Could not register the folders.
+	 */
+	private void register(Path start, final boolean created) throws IOException
+	{
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+					throws IOException
+			{
+				if(walker != null && !walker.accepts(rootOf(dir), dir, true))
+				{
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+
+				directories.put(dir.register(service, ENTRY_CREATE, ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+			{
+				if(created) changed(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Finds the watched folder that a path is inside of, which patterns and
+	 * rule files are relative to.
+	 * @param path The path.
+	 * @return The deepest watched folder containing the path.
+	 */
+	private Path rootOf(Path path)
+	{
+		Path found = null;
+		for(Path root : roots)
+		{
+			root = root.toAbsolutePath().normalize();
+			if(path.startsWith(root) && (found == null || root.startsWith(found))) found = root;
+		}
+
+		return found == null ? path : found;
+	}
+
+	/**
+	 * Records the events of a watch key.
+	 * @param key The key.
+	 * @throws IOException Could not register a created folder.
+	 */
+	private void handleEvents(WatchKey key) throws IOException
+	{
+		Path directory = directories.get(key);
+
+		for(WatchEvent<?> event : key.pollEvents())
+		{
+			if(event.kind() == OVERFLOW)
+			{
+				controller.messageAllObservers("Too many changes at once. Some files may " +
+						"have been missed.", 0);
+				continue;
+			}
+
+			Path path = directory.resolve((Path) event.context());
+
+			if(Files.isDirectory(path))
+			{
+				if(event.kind() == ENTRY_CREATE) register(path, true);
+			}
+			else
+			{
+				changed(path);
+			}
+		}
+
+		// The folder was deleted (or can't be watched anymore)
+		if(!key.reset()) directories.remove(key);
+	}
+
+	/**
+	 * Marks a file as changed.
+	 * @param path The file.
+	 */
+	private void changed(Path path)
+	{
+		// Moving to the end keeps the pending files in the order that they
+		// were last changed
+		pending.remove(path);
+		pending.put(path, System.currentTimeMillis());
+	}
+
+	/**
+	 * Modifies the pending files that haven't changed for long enough. Files
+	 * that can't be modified are reported and counted as failed.
+	 */
+	private void processSettled()
+	{
+		long settled = System.currentTimeMillis() - debounceMillis;
+		boolean wrote = false;
+
+		// Files that change again must be modified again
+		controller.forgetProcessed();
+
+		Iterator<Map.Entry<Path, Long>> iterator = pending.entrySet().iterator();
+		while(iterator.hasNext())
+		{
+			Map.Entry<Path, Long> entry = iterator.next();
+			if(entry.getValue() > settled) break;
+			iterator.remove();
+
+			Path path = entry.getKey();
+			BasicFileAttributes attributes;
+			try
+			{
+				attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			}
+			catch(IOException e)
+			{
+				// Deleted (or renamed) since it changed
+				continue;
+			}
+
+			if(!attributes.isRegularFile()) continue;
+
+			// Skip changes that were caused by our own writes
+			Fingerprint fingerprint = ownWrites.remove(path);
+			if(fingerprint != null && fingerprint.matches(attributes)) continue;
+
+			if(rules != null && rules.isRuleFile(path))
+			{
+				rules.clear();
+				continue;
+			}
+
+			Path root = rootOf(path);
+			List<TextAddition> fileAdditions;
+			try
+			{
+				if(walker != null && !walker.accepts(root, path, false)) continue;
+				fileAdditions = rules == null ? null : rules.forDirectory(path.getParent(), root);
+			}
+			catch(IOException e)
+			{
+				controller.messageAllObservers("Skipping " + path + ", since its ignore or " +
+						"rule files could not be read: " + e.getMessage(), 0);
+				continue;
+			}
+
+			BufferedFile file = new BufferedFile(path.toFile());
+			file.setWalked(true);
+			try
+			{
+				controller.writeFile(file, fileAdditions);
+			}
+			catch(IOException e)
+			{
+				// Such as a file deleted while it was read, or one that can't
+				// be written. The others are still watched.
+				controller.getStats().increment("files.failed");
+				controller.messageAllObservers("Could not modify " + path + ": " + e, 0);
+				continue;
+			}
+			wrote = true;
+		}
+
+		if(wrote)
+		{
+			try
+			{
+				controller.flush();
+			}
+			catch(IOException e)
+			{
+				controller.getStats().increment("files.failed");
+				controller.messageAllObservers("Could not commit the modified files: " + e, 0);
+			}
+			for(Path path : controller.takeWritten())
+			{
+				path = path.toAbsolutePath().normalize();
+				try
+				{
+					ownWrites.put(path, new Fingerprint(Files.readAttributes(path,
+							BasicFileAttributes.class)));
+				}
+				catch(IOException e)
+				{
+					// Not written after all (such as in a dry run)
+				}
+			}
+		}
+	}
+}
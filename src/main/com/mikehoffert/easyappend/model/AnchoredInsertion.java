@@ -0,0 +1,280 @@
+package com.mikehoffert.easyappend.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.regex.Pattern;
+
+/**
+ * Text to be inserted next to a line matching an anchor regex, such as after
+ * a script's shebang line or before an XML document's closing tag. The file is
+ * scanned one line at a time as bytes, and only the lines up to the anchor are
+ * decoded: from the start of the file to insert after the first match, or from
+ * the end to insert before the last match. The rest of the file is never
+ * decoded.<p>
+ *
+ * Lines are split at the charset's encoding of a line feed, which must never
+ * be part of another character (as in UTF-8, UTF-16, UTF-32 and single byte
+ * charsets).
+ */
+public class AnchoredInsertion implements Transformer
+{
+	/**
+	 * The number of bytes read at once. A multiple of every line feed's
+	 * length, so that a line feed is never split between reads.
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final Pattern anchor;
+
+	private final boolean last;
+
+	private final String text;
+
+	/**
+	 * Initializes the insertion.
+	 * @param anchor The regex a line must contain.
+	 * @param last If true, the text is inserted before the last matching line.
+	 * If false, after the first matching line.
+	 * @param text The text to insert.
+	 * @param sameLine If false, the text is followed by a line break, so that
+	 * it is on its own line.
+	 */
+	public AnchoredInsertion(String anchor, boolean last, String text, boolean sameLine)
+	{
+		this.anchor = Pattern.compile(anchor);
+		this.last = last;
+		this.text = sameLine ? text : text + "\n";
+	}
+
+	/**
+	 * @return True if the text is inserted before the last matching line,
+	 * false if after the first.
+	 */
+	public boolean isLast()
+	{
+		return last;
+	}
+
+	/**
+	 * @return The text to insert, including any line break.
+	 */
+	public String getText()
+	{
+		return text;
+	}
+
+	/**
+	 * Inserting after the first match only reads up to it, and before the last
+	 * match only reads back to it.
+	 */
+	@Override
+	public Need getNeed()
+	{
+		return last ? Need.TAIL : Need.HEAD;
+	}
+
+	/**
+	 * Inserts the text next to the matching line, or counts it as missed if no
+	 * line matches.
+	 */
+	@Override
+	public void transform(FileView view, Edits edits) throws IOException
+	{
+		long offset = find(view.getChannel(), view.getStart(), view.getCharset());
+		if(offset < 0)
+		{
+			edits.miss();
+			return;
+		}
+
+		// The first match was the last line, which has no line break to insert
+		// after
+		String inserted = text;
+		if(offset == view.getSize() && !view.endsWith("\n")) inserted = "\n" + inserted;
+		edits.insert(offset, inserted);
+	}
+
+	/**
+	 * Finds where to insert the text.
+	 * @param channel The file.
+	 * @param start Where the text of the file starts (after any byte order
+	 * mark).
+	 * @param charset The charset of the file.
+	 * @return The position to insert at, which is the start of a line (or the
+	 * end of the file, if the first match is its last line), or -1 if no line
+	 * matches.
+	 * @throws IOException Could not read the file.
+	 */
+	public long find(FileChannel channel, long start, Charset charset) throws IOException
+	{
+		byte[] lineFeed = lineFeed(charset);
+		return last ? findLast(channel, start, charset, lineFeed) :
+				findFirst(channel, start, charset, lineFeed);
+	}
+
+	/**
+	 * Encodes a line feed, without any byte order mark the encoder adds.
+	 * @param charset The charset.
+	 * @return The line feed's bytes.
+	 * @throws IOException The charset can't encode a line feed.
+	 */
+	static byte[] lineFeed(Charset charset) throws IOException
+	{
+		ByteBuffer one = charset.newEncoder().encode(CharBuffer.wrap("\n"));
+		ByteBuffer two = charset.newEncoder().encode(CharBuffer.wrap("\n\n"));
+		byte[] lineFeed = new byte[two.remaining() - one.remaining()];
+		two.position(two.limit() - lineFeed.length);
+		two.get(lineFeed);
+		return lineFeed;
+	}
+
+	/**
+	 * Scans forward for the first matching line.
+	 * @return The position after the line, or -1 if no line matches.
+	 */
+	private long findFirst(FileChannel channel, long start, Charset charset, byte[] lineFeed)
+			throws IOException
+	{
+		long size = channel.size();
+		byte[] chunk = new byte[CHUNK_SIZE];
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		long position = start;
+		while(position < size)
+		{
+			int length = read(channel, chunk, position, (int) Math.min(chunk.length, size - position));
+			int lineStart = 0;
+			for(int i = 0; i + lineFeed.length <= length; i += lineFeed.length)
+			{
+				if(!isLineFeed(chunk, i, lineFeed)) continue;
+
+				// Lines are only copied if they started in an earlier chunk
+				boolean matched;
+				if(line.size() == 0)
+				{
+					matched = matches(chunk, lineStart, i - lineStart, charset);
+				}
+				else
+				{
+					line.write(chunk, lineStart, i - lineStart);
+					matched = matches(line.toByteArray(), 0, line.size(), charset);
+					line.reset();
+				}
+
+				if(matched) return position + i + lineFeed.length;
+				lineStart = i + lineFeed.length;
+			}
+
+			line.write(chunk, lineStart, length - lineStart);
+			position += length;
+		}
+
+		// The last line, which has no line feed
+		if(line.size() > 0 && matches(line.toByteArray(), 0, line.size(), charset)) return size;
+
+		return -1;
+	}
+
+	/**
+	 * Scans backward for the last matching line.
+	 * @return The position of the start of the line, or -1 if no line matches.
+	 */
+	private long findLast(FileChannel channel, long start, Charset charset, byte[] lineFeed)
+			throws IOException
+	{
+		long size = channel.size();
+		byte[] chunk = new byte[CHUNK_SIZE];
+
+		// Reads stay aligned to the start of the text, so line feeds are only
+		// found at character boundaries
+		long end = start + (size - start) / lineFeed.length * lineFeed.length;
+		long lineEnd = size;
+		int length = 0;
+		while(end > start)
+		{
+			long position = Math.max(start, end - chunk.length);
+			length = read(channel, chunk, position, (int) (end - position));
+
+			for(int i = length - lineFeed.length; i >= 0; i -= lineFeed.length)
+			{
+				if(!isLineFeed(chunk, i, lineFeed)) continue;
+
+				// A line feed at the end of the file doesn't start another line
+				long lineStart = position + i + lineFeed.length;
+				if(lineStart < size && matches(channel, chunk, position, length, lineStart,
+						lineEnd, charset))
+				{
+					return lineStart;
+				}
+				lineEnd = position + i;
+			}
+
+			end = position;
+		}
+
+		// The first line, which the last chunk read starts with
+		if(start < size && matches(channel, chunk, start, length, start, lineEnd, charset))
+		{
+			return start;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Determines if a line matches the anchor, decoding it from a chunk that
+	 * was read if it is entirely in it, or reading it again if not.
+	 */
+	private boolean matches(FileChannel channel, byte[] chunk, long chunkPosition,
+			int chunkLength, long lineStart, long lineEnd, Charset charset) throws IOException
+	{
+		if(lineStart >= chunkPosition && lineEnd <= chunkPosition + chunkLength)
+		{
+			return matches(chunk, (int) (lineStart - chunkPosition),
+					(int) (lineEnd - lineStart), charset);
+		}
+
+		if(lineEnd - lineStart > Integer.MAX_VALUE) throw new IOException("Line is too long.");
+		byte[] line = new byte[(int) (lineEnd - lineStart)];
+		return matches(line, 0, read(channel, line, lineStart, line.length), charset);
+	}
+
+	/**
+	 * Determines if a line matches the anchor.
+	 */
+	private boolean matches(byte[] bytes, int offset, int length, Charset charset)
+	{
+		return anchor.matcher(new String(bytes, offset, length, charset)).find();
+	}
+
+	private static boolean isLineFeed(byte[] bytes, int offset, byte[] lineFeed)
+	{
+		for(int i = 0; i < lineFeed.length; i++)
+		{
+			if(bytes[offset + i] != lineFeed[i]) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads bytes at a position until the array has a length of bytes or the
+	 * file ends.
+	 * @return The number of bytes read.
+	 */
+	private static int read(FileChannel channel, byte[] bytes, long position, int length)
+			throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer, position + buffer.position()) < 0) break;
+		}
+
+		return buffer.position();
+	}
+}
@@ -0,0 +1,332 @@
+package com.mikehoffert.easyappend.model;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes files one after another into a single tar or zip archive, so that
+ * all output is one sequential write. The format is chosen by the archive's
+ * extension (see {@link #isArchive(Path)}). Each file is written by beginning
+ * an entry, writing exactly its size in bytes to the returned channel and
+ * ending the entry.
+ */
+public abstract class ArchiveWriter implements Closeable
+{
+	/**
+	 * Determines if a path names an archive, which is written as an archive
+	 * instead of a folder.
+	 * @param path The path.
+	 * @return True if the path ends in <tt>.tar</tt> or <tt>.zip</tt>.
+	 */
+	public static boolean isArchive(Path path)
+	{
+		String name = path.getFileName() == null ? "" : path.getFileName().toString().toLowerCase();
+		return name.endsWith(".tar") || name.endsWith(".zip");
+	}
+
+	/**
+	 * Creates (or replaces) an archive.
+	 * @param path The archive, which must be named as in
+	 * {@link #isArchive(Path)}.
+	 * @return A writer for it.
+	 * @throws IOException Could not create the archive.
+	 */
+	public static ArchiveWriter open(Path path) throws IOException
+	{
+		if(!isArchive(path)) throw new IllegalArgumentException("Not an archive: " + path);
+
+		Path parent = path.toAbsolutePath().getParent();
+		if(parent != null) Files.createDirectories(parent);
+
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		return path.getFileName().toString().toLowerCase().endsWith(".zip") ?
+				new Zip(channel) : new Tar(channel);
+	}
+
+	/**
+	 * Begins an entry.
+	 * @param name The entry's path, with <tt>/</tt> separators.
+	 * @param size The number of bytes that will be written.
+	 * @param modified When the file was last modified, in milliseconds since
+	 * the epoch.
+	 * @return Where to write the entry's bytes. It must not be closed.
+	 * @throws IOException Could not write to the archive.
+	 */
+	public abstract WritableByteChannel beginEntry(String name, long size, long modified)
+			throws IOException;
+
+	/**
+	 * Ends the entry that was begun last.
+	 * @throws IOException Could not write to the archive, or the wrong number
+	 * of bytes were written.
+	 */
+	public abstract void endEntry() throws IOException;
+
+	/**
+	 * A ustar archive, with GNU long name entries for paths that don't fit
+	 * into a header. The entries are written straight to the archive's
+	 * channel, so copying a file into it can be done by the operating system.
+	 */
+	private static class Tar extends ArchiveWriter
+	{
+		private static final int BLOCK_SIZE = 512;
+
+		/**
+		 * The largest size that fits into a header's size field in octal.
+		 */
+		private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+		private final FileChannel channel;
+
+		private long entryStart = -1;
+
+		private long entrySize;
+
+		Tar(FileChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		@Override
+		public WritableByteChannel beginEntry(String name, long size, long modified)
+				throws IOException
+		{
+			if(entryStart >= 0) throw new IllegalStateException("An entry is already open.");
+
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			byte[] header = new byte[BLOCK_SIZE];
+			int split = splitName(nameBytes);
+			if(split < 0)
+			{
+				// Too long for a header, so it comes first in an entry of its own
+				byte[] longName = Arrays.copyOf(nameBytes, nameBytes.length + 1);
+				byte[] longHeader = new byte[BLOCK_SIZE];
+				fillHeader(longHeader, "././@LongLink".getBytes(StandardCharsets.US_ASCII),
+						new byte[0], longName.length, 0, (byte) 'L');
+				write(longHeader);
+				write(longName);
+				pad(longName.length);
+				fillHeader(header, Arrays.copyOf(nameBytes, 100), new byte[0], size, modified,
+						(byte) '0');
+			}
+			else
+			{
+				fillHeader(header, Arrays.copyOfRange(nameBytes, split == 0 ? 0 : split + 1,
+						nameBytes.length), Arrays.copyOf(nameBytes, split), size, modified,
+						(byte) '0');
+			}
+			write(header);
+
+			entryStart = channel.position();
+			entrySize = size;
+			return channel;
+		}
+
+		@Override
+		public void endEntry() throws IOException
+		{
+			long written = channel.position() - entryStart;
+			entryStart = -1;
+			if(written != entrySize)
+			{
+				throw new IOException("Wrote " + written + " bytes to an archive entry of " +
+						entrySize + " bytes.");
+			}
+			pad(written);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				// The end of the archive is marked by two empty blocks
+				write(new byte[2 * BLOCK_SIZE]);
+			}
+			finally
+			{
+				channel.close();
+			}
+		}
+
+		/**
+		 * Finds where to split a name into a header's prefix and name fields.
+		 * @return 0 if the name fits without a prefix, the index of the
+		 * separator to split at, or -1 if the name can't fit.
+		 */
+		private static int splitName(byte[] name)
+		{
+			if(name.length <= 100) return 0;
+
+			for(int i = Math.min(name.length - 1, 155); i > 0; i--)
+			{
+				if(name[i] == '/' && name.length - i - 1 <= 100 && i < name.length - 1) return i;
+			}
+
+			return -1;
+		}
+
+		/**
+		 * Fills in a header, including its checksum.
+		 */
+		private static void fillHeader(byte[] header, byte[] name, byte[] prefix, long size,
+				long modified, byte type)
+		{
+			System.arraycopy(name, 0, header, 0, name.length);
+			System.arraycopy(prefix, 0, header, 345, prefix.length);
+			octal(header, 100, 8, 0644);
+			octal(header, 108, 8, 0);
+			octal(header, 116, 8, 0);
+			if(size <= MAX_OCTAL_SIZE)
+			{
+				octal(header, 124, 12, size);
+			}
+			else
+			{
+				// Larger sizes are stored in base-256, marked by the high bit
+				for(int i = 135; i > 124; i--, size >>>= 8) header[i] = (byte) size;
+				header[124] = (byte) 0x80;
+			}
+			octal(header, 136, 12, Math.max(0, modified / 1000));
+			header[156] = type;
+			System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+			// The checksum is taken with its own field filled with spaces
+			Arrays.fill(header, 148, 156, (byte) ' ');
+			long checksum = 0;
+			for(byte b : header) checksum += b & 0xFF;
+			octal(header, 148, 7, checksum);
+		}
+
+		/**
+		 * Writes a number into a header field as zero-padded octal, followed
+		 * by a NUL.
+		 */
+		private static void octal(byte[] header, int offset, int length, long value)
+		{
+			String digits = Long.toOctalString(value);
+			for(int i = 0; i < length - 1; i++)
+			{
+				int digit = i - (length - 1 - digits.length());
+				header[offset + i] = (byte) (digit < 0 ? '0' : digits.charAt(digit));
+			}
+			header[offset + length - 1] = 0;
+		}
+
+		/**
+		 * Pads the data written so far to a whole block.
+		 */
+		private void pad(long written) throws IOException
+		{
+			int remainder = (int) (written % BLOCK_SIZE);
+			if(remainder != 0) write(new byte[BLOCK_SIZE - remainder]);
+		}
+
+		private void write(byte[] bytes) throws IOException
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while(buffer.hasRemaining()) channel.write(buffer);
+		}
+	}
+
+	/**
+	 * A zip archive, with each entry deflated as it is written.
+	 */
+	private static class Zip extends ArchiveWriter
+	{
+		private final ZipOutputStream zip;
+
+		private final WritableByteChannel entry;
+
+		private final CountingStream counter;
+
+		private long entrySize;
+
+		Zip(FileChannel channel)
+		{
+			zip = new ZipOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+					64 * 1024));
+			counter = new CountingStream(zip);
+			entry = Channels.newChannel(counter);
+		}
+
+		@Override
+		public WritableByteChannel beginEntry(String name, long size, long modified)
+				throws IOException
+		{
+			ZipEntry zipEntry = new ZipEntry(name);
+			zipEntry.setTime(modified);
+			zip.putNextEntry(zipEntry);
+
+			counter.count = 0;
+			entrySize = size;
+			return entry;
+		}
+
+		@Override
+		public void endEntry() throws IOException
+		{
+			zip.closeEntry();
+			if(counter.count != entrySize)
+			{
+				throw new IOException("Wrote " + counter.count + " bytes to an archive entry of " +
+						entrySize + " bytes.");
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			zip.close();
+		}
+	}
+
+	/**
+	 * Counts the bytes written to an entry, and keeps the entry's channel from
+	 * closing the archive.
+	 */
+	private static class CountingStream extends OutputStream
+	{
+		private final OutputStream out;
+
+		long count;
+
+		CountingStream(OutputStream out)
+		{
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+}
@@ -0,0 +1,385 @@
+package com.mikehoffert.easyappend.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes files atomically by writing to a temporary file in the same directory
+ * and renaming it over the target. Depending on the {@link Durability}, the
+ * temporary files and their directories are synced before and after renaming.
+ */
+public class AtomicWriter implements Closeable
+{
+	/**
+	 * The default number of files committed together in group mode.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/**
+	 * The number of syncs issued at once in group mode. Syncs issued together
+	 * are merged into a few journal commits by most file systems.
+	 */
+	private static final int SYNC_THREADS = 16;
+
+	/**
+	 * A written temporary file waiting to be renamed over its target.
+	 */
+	private static class Pending
+	{
+		final Path temp;
+		final Path target;
+		final Path backup;
+
+		Pending(Path temp, Path target, Path backup)
+		{
+			this.temp = temp;
+			this.target = target;
+			this.backup = backup;
+		}
+	}
+
+	private Durability durability;
+
+	private int batchSize;
+
+	/**
+	 * Makes backups of replaced files, or null if there are no backups.
+	 */
+	private Backups backups = null;
+
+	/**
+	 * Files waiting to be committed in group mode.
+	 */
+	private List<Pending> batch = new ArrayList<>();
+
+	/**
+	 * Issues syncs in group mode. Created when first needed.
+	 */
+	private ExecutorService syncPool = null;
+
+	/**
+	 * The number of sync barriers waited on so far. In group mode, the syncs
+	 * of a whole batch's files (or directories) are a single barrier.
+	 */
+	private final AtomicLong barriers = new AtomicLong();
+
+	/**
+	 * Initializes the writer.
+	 * @param durability How durable the writes are.
+	 * @param batchSize The number of files committed together in group mode.
+	 */
+	public AtomicWriter(Durability durability, int batchSize)
+	{
+		this.durability = durability;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the backups that replaced files are kept in. They are closed when
+	 * this writer is closed.
+	 * @param backups The backups.
+	 */
+	public void setBackups(Backups backups)
+	{
+		this.backups = backups;
+	}
+
+	/**
+	 * Creates the temporary file that a target's new content is written to.
+	 * Parent directories are created as needed. If the target is a symbolic
+	 * link, the temporary file is created next to the file it links to.
+	 * @param target The file that will be replaced.
+	 * @return The temporary file.
+	 * @throws IOException Could not create the file.
+	 */
+	public Path begin(Path target) throws IOException
+	{
+		target = resolve(target);
+		Path parent = target.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		
+		// Not Files.createTempFile, since those are only accessible by their
+		// owner, while new files should get the usual permissions
+		while(true)
+		{
+			String name = "." + target.getFileName() + "." +
+					Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp";
+			try
+			{
+				return Files.createFile(parent.resolve(name));
+			}
+			catch(FileAlreadyExistsException e)
+			{
+				// Try another name
+			}
+		}
+	}
+
+	/**
+	 * Commits a written temporary file, replacing its target. In group mode,
+	 * the target is only replaced once the batch is full or is flushed. A
+	 * symbolic link is left as it is, and the file it links to is replaced.
+	 * @param temp The temporary file from {@link #begin(Path)}.
+	 * @param target The file to replace.
+	 * @param backup Where to keep a backup of the target if backups are
+	 * enabled and the target exists.
+	 * @throws IOException Could not sync, back up or rename the file.
+	 */
+	public void commit(Path temp, Path target, Path backup) throws IOException
+	{
+		target = resolve(target);
+		copyPermissions(target, temp);
+
+		switch(durability)
+		{
+			case NONE:
+				replace(temp, target, backup);
+				break;
+			case FILE:
+				sync(temp, false);
+				replace(temp, target, backup);
+				sync(target.toAbsolutePath().getParent(), true);
+				break;
+			case GROUP:
+				synchronized(this)
+				{
+					batch.add(new Pending(temp, target, backup));
+					if(batch.size() >= batchSize) flush();
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Commits all files waiting in the current batch.
+	 * @throws IOException Could not sync or rename the files.
+	 */
+	public synchronized void flush() throws IOException
+	{
+		if(batch.isEmpty()) return;
+
+		// All data must be on disk before any file is replaced
+		List<Path> temps = new ArrayList<>();
+		for(Pending pending : batch) temps.add(pending.temp);
+		syncAll(temps, false);
+
+		Set<Path> directories = new LinkedHashSet<>();
+		for(Pending pending : batch)
+		{
+			replace(pending.temp, pending.target, pending.backup);
+			directories.add(pending.target.toAbsolutePath().getParent());
+		}
+		batch.clear();
+
+		syncAll(new ArrayList<>(directories), true);
+	}
+
+	/**
+	 * @return How durable the writes are.
+	 */
+	public Durability getDurability()
+	{
+		return durability;
+	}
+
+	/**
+	 * @return The number of sync barriers waited on so far.
+	 */
+	public long getBarriers()
+	{
+		return barriers.get();
+	}
+
+	/**
+	 * Commits any waiting files and stops the sync threads.
+	 * @throws IOException Could not commit the waiting files.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			if(syncPool != null) syncPool.shutdown();
+			if(backups != null) backups.close();
+		}
+	}
+
+	/**
+	 * Syncs many files or directories concurrently.
+	 * @param paths The paths to sync.
+	 * @param directory True if the paths are directories.
+	 * @throws IOException Could not sync one of the paths.
+	 */
+	private void syncAll(List<Path> paths, final boolean directory) throws IOException
+	{
+		if(syncPool == null)
+		{
+			syncPool = Executors.newFixedThreadPool(SYNC_THREADS, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "easy-append-sync");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		List<Future<Void>> futures = new ArrayList<>();
+		for(final Path path : paths)
+		{
+			futures.add(syncPool.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws IOException
+				{
+					force(path, directory);
+					return null;
+				}
+			}));
+		}
+
+		for(Future<Void> future : futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while syncing.", e);
+			}
+			catch(ExecutionException e)
+			{
+				throw new IOException("Could not sync.", e.getCause());
+			}
+		}
+
+		barriers.incrementAndGet();
+	}
+
+	/**
+	 * Syncs a single file or directory on this thread.
+	 * @param path The path to sync.
+	 * @param directory True if the path is a directory.
+	 * @throws IOException Could not sync the path.
+	 */
+	private void sync(Path path, boolean directory) throws IOException
+	{
+		force(path, directory);
+		barriers.incrementAndGet();
+	}
+
+	/**
+	 * Forces a file or directory to disk.
+	 * @param path The path to force.
+	 * @param directory True if the path is a directory.
+	 * @throws IOException Could not force the path.
+	 */
+	static void force(Path path, boolean directory) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(path, directory ?
+				StandardOpenOption.READ : StandardOpenOption.WRITE))
+		{
+			channel.force(true);
+		}
+		catch(IOException e)
+		{
+			// Some platforms (such as Windows) can't open directories. Their
+			// entries are durable once the file is.
+			if(!directory) throw e;
+		}
+	}
+
+	/**
+	 * Resolves a target to the file that is actually replaced: the real file
+	 * if it exists (through any symbolic links), or the target itself.
+	 * @param target The target.
+	 * @return The file to replace.
+	 * @throws IOException Could not resolve the target.
+	 */
+	static Path resolve(Path target) throws IOException
+	{
+		return Files.exists(target) ? target.toRealPath() : target;
+	}
+
+	/**
+	 * Replaces the target with the temporary file, first backing up the target
+	 * if backups are enabled. The backup is a link to the target, so it keeps
+	 * the original content once the target is replaced.
+	 * @param temp The temporary file.
+	 * @param target The target.
+	 * @param backup Where to keep the backup.
+	 * @throws IOException Could not back up or rename the file.
+	 */
+	private void replace(Path temp, Path target, Path backup) throws IOException
+	{
+		if(backups != null && Files.exists(target)) backups.backUp(target, backup);
+		rename(temp, target);
+	}
+
+	/**
+	 * Renames a temporary file over its target, atomically if possible.
+	 * @param temp The temporary file.
+	 * @param target The target.
+	 * @throws IOException Could not rename the file.
+	 */
+	private static void rename(Path temp, Path target) throws IOException
+	{
+		try
+		{
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(AtomicMoveNotSupportedException e)
+		{
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Gives the temporary file the permissions of the file it replaces.
+	 * @param target The file being replaced.
+	 * @param temp The temporary file.
+	 */
+	private static void copyPermissions(Path target, Path temp)
+	{
+		try
+		{
+			if(Files.exists(target))
+			{
+				Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+			}
+		}
+		catch(UnsupportedOperationException | IOException e)
+		{
+			// Not a POSIX file system, or the permissions can't be copied. The
+			// temporary file keeps its default permissions.
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package com.mikehoffert.easyappend.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps backups of original files as hard links. Since atomic writes replace
+ * a file with a new one instead of modifying it, a hard link to the original
+ * keeps its content without copying any data.<p>
+ *
+ * Backups made into a backup folder are recorded in a journal in that folder,
+ * so that the run can be rolled back later. Each backup is written to the
+ * journal before its original is replaced, so the journal of a run that
+ * crashed still rolls back everything it replaced.
+ */
+public class Backups implements Closeable
+{
+	/**
+	 * The name of the journal file in backup folders.
+	 */
+	public static final String JOURNAL_NAME = ".easy-append-backups";
+
+	/**
+	 * Where backups are recorded, or null if they aren't.
+	 */
+	private Path journalPath = null;
+
+	/**
+	 * The journal, once this run has recorded a backup in it.
+	 */
+	private FileChannel journal = null;
+
+	/**
+	 * True if each entry is synced to disk as it is recorded.
+	 */
+	private boolean sync;
+
+	/**
+	 * The number of backups that had to be copied, since they couldn't be
+	 * linked (for example, because the backup is on another file system).
+	 */
+	private long copies = 0;
+
+	/**
+	 * Initializes the backups.
+	 * @param backupDirectory The folder backups are made in, whose journal
+	 * records them, or null if backups are made next to the originals.
+	 * @param durability How durable the writes being backed up are. Unless
+	 * nothing is synced, each journal entry is synced as well.
+	 * @throws IOException Could not create the backup folder.
+	 */
+	public Backups(Path backupDirectory, Durability durability) throws IOException
+	{
+		sync = durability != Durability.NONE;
+		if(backupDirectory != null)
+		{
+			Files.createDirectories(backupDirectory);
+			journalPath = backupDirectory.resolve(JOURNAL_NAME);
+		}
+	}
+
+	/**
+	 * Backs up a file by hard linking it. Any existing backup is replaced. A
+	 * symbolic link is resolved first, so the backup keeps the content it
+	 * links to instead of the link.
+	 * @param original The file to back up.
+	 * @param backup Where to keep the backup.
+	 * @throws IOException Could not back up the file.
+	 */
+	public void backUp(Path original, Path backup) throws IOException
+	{
+		original = AtomicWriter.resolve(original);
+		Path parent = backup.toAbsolutePath().getParent();
+		if(parent != null) Files.createDirectories(parent);
+		Files.deleteIfExists(backup);
+
+		try
+		{
+			Files.createLink(backup, original);
+		}
+		catch(UnsupportedOperationException | FileSystemException e)
+		{
+			// Can't link across file systems (or at all, on some)
+			Files.copy(original, backup, StandardCopyOption.COPY_ATTRIBUTES);
+			synchronized(this)
+			{
+				copies++;
+			}
+		}
+
+		if(journalPath != null) record(original, backup);
+	}
+
+	/**
+	 * Records a backup in the journal, before its original is replaced.
+	 * @param original The original file.
+	 * @param backup Its backup.
+	 * @throws IOException Could not write the journal.
+	 */
+	private synchronized void record(Path original, Path backup) throws IOException
+	{
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		writeEntry(entry, original.toAbsolutePath().toString());
+		writeEntry(entry, backup.toAbsolutePath().toString());
+
+		if(journal != null)
+		{
+			writeFully(journal, entry.toByteArray());
+			if(sync) journal.force(false);
+			return;
+		}
+
+		// Each run replaces the journal, so that restoring rolls back the most
+		// recent run. The last run's journal is only replaced once this run has
+		// a backup to roll back.
+		Path temp = journalPath.resolveSibling(JOURNAL_NAME + ".new");
+		try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			writeFully(channel, entry.toByteArray());
+			if(sync) channel.force(false);
+		}
+		try
+		{
+			Files.move(temp, journalPath, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(AtomicMoveNotSupportedException e)
+		{
+			Files.move(temp, journalPath, StandardCopyOption.REPLACE_EXISTING);
+		}
+		if(sync) AtomicWriter.force(journalPath.toAbsolutePath().getParent(), true);
+
+		journal = FileChannel.open(journalPath, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * @return The number of backups that had to be copied instead of linked.
+	 */
+	public synchronized long getCopies()
+	{
+		return copies;
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if(journal != null) journal.close();
+		journal = null;
+	}
+
+	/**
+	 * Restores a file from its backup, by moving the backup over it. If the
+	 * file is a symbolic link, the file it links to is restored.
+	 * @param original The file to restore.
+	 * @param backup The backup of the file.
+	 * @return False if there was no backup.
+	 * @throws IOException Could not restore the file.
+	 */
+	public static boolean restore(Path original, Path backup) throws IOException
+	{
+		original = AtomicWriter.resolve(original);
+		try
+		{
+			Files.move(backup, original, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(NoSuchFileException e)
+		{
+			return false;
+		}
+		catch(AtomicMoveNotSupportedException e)
+		{
+			Files.move(backup, original, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads the journal of a backup folder.
+	 * @param backupDirectory The backup folder.
+	 * @return Pairs of paths: each original file is followed by its backup.
+	 * @throws IOException Could not read the journal.
+	 */
+	public static List<Path> readJournal(Path backupDirectory) throws IOException
+	{
+		List<Path> entries = new ArrayList<>();
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+
+		try(InputStream input = Files.newInputStream(backupDirectory.resolve(JOURNAL_NAME)))
+		{
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = input.read(buffer)) != -1)
+			{
+				for(int i = 0; i < read; i++)
+				{
+					if(buffer[i] != 0)
+					{
+						entry.write(buffer[i]);
+					}
+					else
+					{
+						entries.add(Paths.get(new String(entry.toByteArray(),
+								StandardCharsets.UTF_8)));
+						entry.reset();
+					}
+				}
+			}
+		}
+
+		// Ignore an incomplete pair, from a run that was interrupted
+		if(entries.size() % 2 != 0) entries.remove(entries.size() - 1);
+		return entries;
+	}
+
+	/**
+	 * Deletes the journal of a backup folder, once it has been restored.
+	 * @param backupDirectory The backup folder.
+	 * @throws IOException Could not delete the journal.
+	 */
+	public static void deleteJournal(Path backupDirectory) throws IOException
+	{
+		Files.deleteIfExists(backupDirectory.resolve(JOURNAL_NAME));
+	}
+
+	/**
+	 * Writes all of some bytes to a channel.
+	 */
+	private static void writeFully(FileChannel channel, byte[] bytes) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while(buffer.hasRemaining()) channel.write(buffer);
+	}
+
+	/**
+	 * Writes a NUL-terminated journal entry.
+	 */
+	private static void writeEntry(OutputStream output, String entry) throws IOException
+	{
+		output.write(entry.getBytes(StandardCharsets.UTF_8));
+		output.write(0);
+	}
+}
@@ -0,0 +1,421 @@
+package com.mikehoffert.easyappend.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Inserts bytes into a file in place, by shifting everything after each
+ * insertion point towards the end of the file. Blocks are moved from the end
+ * backwards, each by the total length of the insertions before it, so no block
+ * overwrites data that hasn't been moved yet. This needs no more free space
+ * than the inserted bytes, unlike writing a new copy of the file.<p>
+ *
+ * An optional journal makes an interrupted shift resumable. Before each block
+ * is moved, its original bytes are written to one of two alternating slots in
+ * the journal and synced, and the moved block is synced before the next slot
+ * is written. Redoing the last intact slot is therefore always safe, however
+ * the shift was interrupted. The journal is deleted once the shift is done.
+ */
+public class BlockShifter
+{
+	private static final int MAGIC = 0x45415348;
+
+	/**
+	 * The size of the journal's header, excluding the insertions.
+	 */
+	private static final int HEADER_SIZE = 4 + 8 + 4 + 4 + 8;
+
+	/**
+	 * The size of an insertion in the journal's header, excluding its bytes.
+	 */
+	private static final int INSERTION_SIZE = 8 + 4;
+
+	/**
+	 * The size of a slot's header, excluding the block.
+	 */
+	private static final int SLOT_HEADER_SIZE = 8 + 4 + 4 + 8;
+
+	private Path file;
+
+	private ByteBuffer block;
+
+	private Path journalPath;
+
+	private FileChannel journal;
+
+	private long slotsStart;
+
+	private int slot = 0;
+
+	private long movedBytes = 0;
+
+	/**
+	 * Initializes the shifter.
+	 * @param file The file to insert into.
+	 * @param block The buffer blocks are moved through, whose capacity is the
+	 * block size. Must be at least 4 KB.
+	 * @param journalPath The journal, or null to not keep one.
+	 */
+	public BlockShifter(Path file, ByteBuffer block, Path journalPath)
+	{
+		this.file = file;
+		this.block = block;
+		this.journalPath = journalPath;
+	}
+
+	/**
+	 * Determines where the journal of a file is kept: next to it, named
+	 * <tt>.&lt;name&gt;.shift</tt>.
+	 * @param file The file.
+	 * @return The journal's path.
+	 */
+	public static Path journalFor(Path file)
+	{
+		return file.resolveSibling("." + file.getFileName() + ".shift");
+	}
+
+	/**
+	 * Inserts bytes into the file.
+	 * @param offset Where to insert them.
+	 * @param insert The bytes.
+	 * @throws IOException Could not read or write the file or the journal.
+	 */
+	public void insert(long offset, byte[] insert) throws IOException
+	{
+		insert(new long[] { offset }, new byte[][] { insert });
+	}
+
+	/**
+	 * Inserts bytes at several places in the file, in a single pass.
+	 * @param offsets Where to insert each of the inserts, in increasing order
+	 * with no duplicates. Offsets are positions in the file before anything
+	 * is inserted.
+	 * @param inserts The bytes to insert at each offset.
+	 * @throws IOException Could not read or write the file or the journal.
+	 */
+	public void insert(long[] offsets, byte[][] inserts) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+				StandardOpenOption.WRITE))
+		{
+			long size = channel.size();
+			if(journalPath != null) createJournal(size, offsets, inserts);
+
+			shift(channel, size, offsets, inserts, size);
+		}
+		finally
+		{
+			closeJournal();
+		}
+	}
+
+	/**
+	 * Finishes a shift that was interrupted, if the file has a journal.
+	 * @return True if a shift was resumed and finished, false if there was no
+	 * journal (or it was never completely written, in which case nothing had
+	 * been moved yet).
+	 * @throws IOException Could not read or write the file or the journal.
+	 */
+	public boolean resume() throws IOException
+	{
+		if(journalPath == null || !Files.exists(journalPath)) return false;
+
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+				StandardOpenOption.WRITE))
+		{
+			journal = FileChannel.open(journalPath, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(journal, header, 0);
+			header.flip();
+			if(header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+			{
+				Files.delete(journalPath);
+				return false;
+			}
+
+			long size = header.getLong();
+			int count = header.getInt();
+			int length = header.getInt();
+			long checksum = header.getLong();
+
+			ByteBuffer insertions = ByteBuffer.allocate(length);
+			readFully(journal, insertions, HEADER_SIZE);
+			if(insertions.hasRemaining() ||
+					checksum(size, count, insertions.array(), 0, length) != checksum)
+			{
+				Files.delete(journalPath);
+				return false;
+			}
+			slotsStart = HEADER_SIZE + length;
+
+			insertions.flip();
+			long[] offsets = new long[count];
+			byte[][] inserts = new byte[count][];
+			for(int i = 0; i < count; i++)
+			{
+				offsets[i] = insertions.getLong();
+				inserts[i] = new byte[insertions.getInt()];
+				insertions.get(inserts[i]);
+			}
+
+			// The intact slot with the lowest position has the most progress
+			long end = size;
+			for(int i = 0; i < 2; i++)
+			{
+				long position = readSlot(i);
+				if(position >= 0 && position < end)
+				{
+					end = position;
+					slot = i;
+				}
+			}
+
+			// Redo the last block that was started, if any
+			if(end < size)
+			{
+				readSlot(slot);
+				writeFully(channel, block, end + shifts(offsets, inserts)[segment(offsets, end)]);
+				channel.force(false);
+				slot = 1 - slot;
+			}
+
+			shift(channel, size, offsets, inserts, end);
+			return true;
+		}
+		finally
+		{
+			closeJournal();
+		}
+	}
+
+	/**
+	 * @return The number of bytes moved so far.
+	 */
+	public long getMovedBytes()
+	{
+		return movedBytes;
+	}
+
+	/**
+	 * Moves the bytes after each offset, up to an end, towards the end of the
+	 * file, writing each insert once everything after its offset is moved.
+	 * @param channel The file.
+	 * @param size The size of the file before anything was inserted.
+	 * @param offsets Where to insert.
+	 * @param inserts The bytes to insert.
+	 * @param end The end of the bytes that still need to be moved. Inserts at
+	 * offsets past it have already been written.
+	 * @throws IOException Could not read or write the file or the journal.
+	 */
+	private void shift(FileChannel channel, long size, long[] offsets, byte[][] inserts,
+			long end) throws IOException
+	{
+		long[] shifts = shifts(offsets, inserts);
+
+		for(int i = offsets.length - 1; i >= 0; i--)
+		{
+			if(end < offsets[i]) continue;
+
+			long top = Math.min(end, i + 1 < offsets.length ? offsets[i + 1] : size);
+			while(top > offsets[i])
+			{
+				long position = Math.max(offsets[i], top - block.capacity());
+
+				block.clear();
+				block.limit((int) (top - position));
+				readFully(channel, block, position);
+				if(block.hasRemaining()) throw new IOException("File shrank while shifting: " + file);
+				block.flip();
+
+				if(journal != null) writeSlot(position);
+
+				writeFully(channel, block, position + shifts[i]);
+				if(journal != null) channel.force(false);
+
+				movedBytes += top - position;
+				top = position;
+			}
+
+			writeFully(channel, ByteBuffer.wrap(inserts[i]),
+					offsets[i] + shifts[i] - inserts[i].length);
+			end = offsets[i];
+		}
+
+		if(journal != null)
+		{
+			channel.force(false);
+			closeJournal();
+			Files.delete(journalPath);
+		}
+	}
+
+	/**
+	 * @return How far the bytes after each offset are moved: the total length
+	 * of the inserts up to and including that offset.
+	 */
+	private static long[] shifts(long[] offsets, byte[][] inserts)
+	{
+		long[] shifts = new long[offsets.length];
+		long total = 0;
+		for(int i = 0; i < offsets.length; i++)
+		{
+			total += inserts[i].length;
+			shifts[i] = total;
+		}
+
+		return shifts;
+	}
+
+	/**
+	 * @return The index of the last offset at or before a position, which is
+	 * the insert the bytes at the position come after.
+	 */
+	private static int segment(long[] offsets, long position)
+	{
+		int segment = 0;
+		while(segment + 1 < offsets.length && offsets[segment + 1] <= position) segment++;
+		return segment;
+	}
+
+	/**
+	 * Creates the journal and writes its header.
+	 * @throws IOException Could not write the journal.
+	 */
+	private void createJournal(long size, long[] offsets, byte[][] inserts) throws IOException
+	{
+		journal = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+
+		int length = 0;
+		for(byte[] insert : inserts) length += INSERTION_SIZE + insert.length;
+		ByteBuffer insertions = ByteBuffer.allocate(length);
+		for(int i = 0; i < offsets.length; i++)
+		{
+			insertions.putLong(offsets[i]).putInt(inserts[i].length).put(inserts[i]);
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + length);
+		header.putInt(MAGIC).putLong(size).putInt(offsets.length).putInt(length)
+				.putLong(checksum(size, offsets.length, insertions.array(), 0, length))
+				.put(insertions.array());
+		header.flip();
+		writeFully(journal, header, 0);
+		journal.force(false);
+
+		slotsStart = HEADER_SIZE + length;
+	}
+
+	/**
+	 * Writes the block about to be moved to the next slot, and syncs it.
+	 * @param position Where the block is in the file.
+	 * @throws IOException Could not write the journal.
+	 */
+	private void writeSlot(long position) throws IOException
+	{
+		int length = block.remaining();
+		ByteBuffer header = ByteBuffer.allocate(SLOT_HEADER_SIZE);
+		header.putLong(position).putInt(length).putInt(0)
+				.putLong(checksum(position, length, block));
+		header.flip();
+
+		long start = slotsStart + slot * (long) (SLOT_HEADER_SIZE + block.capacity());
+		writeFully(journal, header, start);
+		writeFully(journal, block.duplicate(), start + SLOT_HEADER_SIZE);
+		journal.force(false);
+
+		slot = 1 - slot;
+	}
+
+	/**
+	 * Reads a slot into the block buffer.
+	 * @param index The slot.
+	 * @return The position of the slot's block, or -1 if the slot is empty or
+	 * was not completely written.
+	 * @throws IOException Could not read the journal.
+	 */
+	private long readSlot(int index) throws IOException
+	{
+		long start = slotsStart + index * (long) (SLOT_HEADER_SIZE + block.capacity());
+		ByteBuffer header = ByteBuffer.allocate(SLOT_HEADER_SIZE);
+		readFully(journal, header, start);
+		if(header.hasRemaining()) return -1;
+		header.flip();
+
+		long position = header.getLong();
+		int length = header.getInt();
+		header.getInt();
+		long checksum = header.getLong();
+		if(length < 0 || length > block.capacity()) return -1;
+
+		block.clear();
+		block.limit(length);
+		readFully(journal, block, start + SLOT_HEADER_SIZE);
+		if(block.hasRemaining()) return -1;
+		block.flip();
+
+		return checksum(position, length, block) == checksum ? position : -1;
+	}
+
+	private void closeJournal() throws IOException
+	{
+		if(journal == null) return;
+
+		journal.close();
+		journal = null;
+	}
+
+	/**
+	 * Checksums a journal entry.
+	 */
+	private static long checksum(long first, long second, byte[] bytes, int offset, int length)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(16).putLong(first).putLong(second).array());
+		crc.update(bytes, offset, length);
+		return crc.getValue();
+	}
+
+	/**
+	 * Checksums a journal slot, without changing the block's position.
+	 */
+	private static long checksum(long position, int length, ByteBuffer block)
+	{
+		byte[] bytes = new byte[block.remaining()];
+		block.duplicate().get(bytes);
+		return checksum(position, length, bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Reads into a buffer until it is full or the channel ends.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			int read = channel.read(buffer, position);
+			if(read < 0) return;
+			position += read;
+		}
+	}
+
+	/**
+	 * Writes an entire buffer at a position.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			position += channel.write(buffer, position);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package com.mikehoffert.easyappend.model;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps buffers for reuse, so that reading and writing many files doesn't
+ * allocate new buffers for each file. Byte buffers are direct, so file
+ * channels read into and write from them without copying. Buffers come in
+ * size classes (powers of two from 4 KB to 4 MB), each with its own free list,
+ * so threads asking for different sizes don't contend. Larger buffers are
+ * allocated on the heap as needed and never kept, so they are freed like any
+ * other object instead of holding direct memory until a collection.<p>
+ *
+ * All methods are thread-safe.
+ */
+public class BufferPool
+{
+	/**
+	 * The default number of bytes that may be kept in free buffers.
+	 */
+	public static final long DEFAULT_MAX_RETAINED = 64L * 1024 * 1024;
+
+	/**
+	 * A pool that keeps nothing, for files that aren't given a pool.
+	 */
+	public static final BufferPool UNPOOLED = new BufferPool(0);
+
+	private static final int SMALLEST_CLASS = 4096;
+
+	private static final int CLASSES = 11;
+
+	private final long maxRetained;
+
+	/**
+	 * The free buffers of each size class.
+	 */
+	private final List<Queue<ByteBuffer>> freeBytes = new ArrayList<>(CLASSES);
+	private final List<Queue<CharBuffer>> freeChars = new ArrayList<>(CLASSES);
+
+	/**
+	 * The number of bytes in free buffers. Chars count as two bytes.
+	 */
+	private final AtomicLong retained = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Initializes the pool.
+	 * @param maxRetained The most bytes to keep in free buffers. Buffers that
+	 * are returned while the pool is full are left to the garbage collector.
+	 */
+	public BufferPool(long maxRetained)
+	{
+		this.maxRetained = maxRetained;
+		for(int i = 0; i < CLASSES; i++)
+		{
+			freeBytes.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			freeChars.add(new ConcurrentLinkedQueue<CharBuffer>());
+		}
+	}
+
+	/**
+	 * Takes a direct byte buffer from the pool, or allocates one.
+	 * @param capacity The least capacity needed.
+	 * @return A cleared buffer with at least that capacity, which should be
+	 * given back with {@link #release(ByteBuffer)}. It is direct, unless it is
+	 * larger than every size class.
+	 */
+	public ByteBuffer acquireBytes(int capacity)
+	{
+		int sizeClass = sizeClass(capacity);
+		if(sizeClass < 0)
+		{
+			misses.incrementAndGet();
+			return ByteBuffer.allocate(capacity);
+		}
+
+		ByteBuffer buffer = freeBytes.get(sizeClass).poll();
+		if(buffer == null)
+		{
+			misses.incrementAndGet();
+			return ByteBuffer.allocateDirect(SMALLEST_CLASS << sizeClass);
+		}
+
+		hits.incrementAndGet();
+		retained.addAndGet(-buffer.capacity());
+		return buffer;
+	}
+
+	/**
+	 * Takes a char buffer from the pool, or allocates one.
+	 * @param capacity The least capacity needed.
+	 * @return A cleared buffer with at least that capacity, which should be
+	 * given back with {@link #release(CharBuffer)}.
+	 */
+	public CharBuffer acquireChars(int capacity)
+	{
+		int sizeClass = sizeClass(capacity);
+		if(sizeClass < 0)
+		{
+			misses.incrementAndGet();
+			return CharBuffer.allocate(capacity);
+		}
+
+		CharBuffer buffer = freeChars.get(sizeClass).poll();
+		if(buffer == null)
+		{
+			misses.incrementAndGet();
+			return CharBuffer.allocate(SMALLEST_CLASS << sizeClass);
+		}
+
+		hits.incrementAndGet();
+		retained.addAndGet(-2L * buffer.capacity());
+		return buffer;
+	}
+
+	/**
+	 * Gives a byte buffer back to the pool.
+	 * @param buffer A buffer from {@link #acquireBytes(int)}, which must not be
+	 * used afterwards.
+	 */
+	public void release(ByteBuffer buffer)
+	{
+		int sizeClass = exactSizeClass(buffer.capacity());
+		if(sizeClass < 0 || !buffer.isDirect() || !reserve(buffer.capacity())) return;
+
+		buffer.clear();
+		freeBytes.get(sizeClass).offer(buffer);
+	}
+
+	/**
+	 * Gives a char buffer back to the pool.
+	 * @param buffer A buffer from {@link #acquireChars(int)}, which must not be
+	 * used afterwards.
+	 */
+	public void release(CharBuffer buffer)
+	{
+		int sizeClass = exactSizeClass(buffer.capacity());
+		if(sizeClass < 0 || !reserve(2L * buffer.capacity())) return;
+
+		buffer.clear();
+		freeChars.get(sizeClass).offer(buffer);
+	}
+
+	/**
+	 * @return The number of buffers that were reused.
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of buffers that had to be allocated.
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Counts bytes as retained, if there is room for them.
+	 * @return True if there was room.
+	 */
+	private boolean reserve(long bytes)
+	{
+		while(true)
+		{
+			long current = retained.get();
+			if(current + bytes > maxRetained) return false;
+			if(retained.compareAndSet(current, current + bytes)) return true;
+		}
+	}
+
+	/**
+	 * @return The smallest size class that holds a capacity, or -1 if it is
+	 * larger than every class.
+	 */
+	private static int sizeClass(int capacity)
+	{
+		int sizeClass = 0;
+		while(sizeClass < CLASSES && (SMALLEST_CLASS << sizeClass) < capacity) sizeClass++;
+		return sizeClass < CLASSES ? sizeClass : -1;
+	}
+
+	/**
+	 * @return The size class with exactly a capacity, or -1 if there is none.
+	 */
+	private static int exactSizeClass(int capacity)
+	{
+		int sizeClass = sizeClass(capacity);
+		return sizeClass >= 0 && (SMALLEST_CLASS << sizeClass) == capacity ? sizeClass : -1;
+	}
+}
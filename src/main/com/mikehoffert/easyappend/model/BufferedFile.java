@@ -1,14 +1,23 @@
 package com.mikehoffert.easyappend.model;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
-
-import org.apache.commons.io.FileUtils;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * Model class representing the file being modified. File content is not read
@@ -16,6 +25,16 @@ import org.apache.commons.io.FileUtils;
  */
 public class BufferedFile
 {
+	/**
+	 * The most bytes read or written at once.
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+	
+	/**
+	 * The size of the blocks moved when prepending in place.
+	 */
+	private static final int SHIFT_BLOCK_SIZE = 4 * 1024 * 1024;
+	
 	/**
 	 * The file being (possibly) modified.
 	 */
@@ -39,7 +58,75 @@ public class BufferedFile
 	/**
 	 * Charset the file is assume to use.
 	 */
-	private Charset charset;
+	private Charset charset = StandardCharsets.UTF_8;
+	
+	/**
+	 * If true, the charset, byte order mark and line ending are detected from
+	 * the start of the file instead of using the charset.
+	 */
+	private boolean detectFormat = false;
+	
+	/**
+	 * True if the file was found by walking a folder instead of being listed.
+	 */
+	private boolean walked = false;
+	
+	/**
+	 * The detected format, once it has been detected.
+	 */
+	private TextFormat format;
+	
+	/**
+	 * Where buffers for reading and writing come from.
+	 */
+	private BufferPool pool = BufferPool.UNPOOLED;
+	
+	/**
+	 * The start of the file, once it has been read.
+	 */
+	private byte[] prefix;
+	
+	/**
+	 * True if the file is longer than the prefix.
+	 */
+	private boolean truncated;
+	
+	/**
+	 * True if the appended text starts with a new line (rather than being on
+	 * the same line as the end of the file).
+	 */
+	private boolean appendNewLine;
+	
+	/**
+	 * If both are true, moves made while adding text to the file itself are
+	 * journaled, so that they can be resumed if interrupted.
+	 */
+	private boolean inPlace = false;
+	private boolean journal = false;
+	
+	/**
+	 * Transformers run between the prepended and appended text, in the order
+	 * they were added.
+	 */
+	private List<Transformer> transformers = new ArrayList<>();
+	
+	/**
+	 * The number of changes that transformers found nowhere to make when the
+	 * file was last written.
+	 */
+	private int missedEdits = 0;
+	
+	/**
+	 * Scans very large contents in segments at once, or null to scan them
+	 * with a single thread.
+	 */
+	private SegmentedMatcher segmentedMatcher;
+	
+	/**
+	 * The number of bytes moved to prepend in place, and how long it took.
+	 */
+	private long shiftedBytes = 0;
+	private long shiftNanos = 0;
 	
 	/**
 	 * Initializes the buffered file.
@@ -59,6 +146,54 @@ public class BufferedFile
 		this.charset = charset;
 	}
 	
+	/**
+	 * Sets where buffers for reading and writing the file come from.
+	 * @param pool The pool.
+	 */
+	public void setBufferPool(BufferPool pool)
+	{
+		this.pool = pool;
+	}
+	
+	/**
+	 * Sets how regexes are found in very large contents.
+	 * @param segmentedMatcher Scans the contents in segments at once, or null
+	 * to scan them with a single thread.
+	 */
+	public void setSegmentedMatcher(SegmentedMatcher segmentedMatcher)
+	{
+		this.segmentedMatcher = segmentedMatcher;
+	}
+	
+	/**
+	 * Sets whether the charset, byte order mark and line ending of the file are
+	 * detected from the start of the file. If so, text is added in the same
+	 * format, prepended text is placed after the byte order mark and appended
+	 * text keeps a final line ending at the end of the file.
+	 * @param detectFormat True to detect the format.
+	 */
+	public void setDetectFormat(boolean detectFormat)
+	{
+		this.detectFormat = detectFormat;
+	}
+	
+	/**
+	 * Sets whether text added to the file itself, when it is written to its own
+	 * location, is journaled. Appended text is written at the end, and other
+	 * text by moving the content towards the end in large blocks, so the file
+	 * is never read into memory and no more free space is needed than the
+	 * added text. The file is left partly moved if this is interrupted, unless
+	 * the moves are journaled.
+	 * @param inPlace True to add text in place.
+	 * @param journal True to journal the moves, so that an interrupted prepend
+	 * is finished by {@link #resumeInPlace()}.
+	 */
+	public void setInPlace(boolean inPlace, boolean journal)
+	{
+		this.inPlace = inPlace;
+		this.journal = journal;
+	}
+	
 	/**
 	 * Sets the text to be prepended. Prepending when there is already text
 	 * to prepend will append to that text. If passed <tt>null</tt>, will
@@ -106,6 +241,7 @@ public class BufferedFile
 		}
 		else
 		{
+			appendNewLine = !sameLine;
 			if(sameLine)
 			{
 				this.appendText = appendText;
@@ -117,36 +253,652 @@ public class BufferedFile
 		}
 	}
 	
+	/**
+	 * Adds a transformer, such as text to insert next to an anchor. It is run
+	 * after the prepended text and before the appended text when the file is
+	 * written, with the transformers added before it.
+	 * @param transformer The transformer.
+	 */
+	public void addTransformer(Transformer transformer)
+	{
+		transformers.add(transformer);
+	}
+	
+	/**
+	 * @return The number of changes that transformers found nowhere to make
+	 * (such as anchors that no line matched) when the file was last written.
+	 */
+	public int getMissedEdits()
+	{
+		return missedEdits;
+	}
+	
 	public File getFile()
 	{
 		return file;
 	}
 	
+	/**
+	 * @return The text to be prepended, including any line break, or null.
+	 */
+	String getPrependText()
+	{
+		return prependText;
+	}
+	
+	/**
+	 * @return The text to be appended, including any line break, or null.
+	 */
+	String getAppendText()
+	{
+		return appendText;
+	}
+	
+	Charset getCharset()
+	{
+		return charset;
+	}
+	
+	/**
+	 * @return The number of bytes moved to add text in place.
+	 */
+	public long getShiftedBytes()
+	{
+		return shiftedBytes;
+	}
+	
+	/**
+	 * @return How long moving bytes to add text in place took, in nanoseconds.
+	 */
+	public long getShiftNanos()
+	{
+		return shiftNanos;
+	}
+	
+	/**
+	 * Finishes a journaled prepend in place that was interrupted, if there was
+	 * one. The text it was adding is then in the file, so nothing more should
+	 * be added to it.
+	 * @return True if an interrupted prepend was finished.
+	 * @throws IOException Could not read or write the file or its journal.
+	 */
+	public boolean resumeInPlace() throws IOException
+	{
+		if(!inPlace || !journal) return false;
+		
+		Path path = file.toPath();
+		ByteBuffer block = pool.acquireBytes(SHIFT_BLOCK_SIZE);
+		try
+		{
+			BlockShifter shifter = new BlockShifter(path, block, BlockShifter.journalFor(path));
+			long start = System.nanoTime();
+			boolean resumed = shifter.resume();
+			shiftNanos += System.nanoTime() - start;
+			shiftedBytes += shifter.getMovedBytes();
+			return resumed;
+		}
+		finally
+		{
+			pool.release(block);
+		}
+	}
+	
 	/**
 	 * Writes the file to the specified location. Will overwrite if a file
-	 * already exists at that location. The prepended and appended text
-	 * will be automatically added.
+	 * already exists at that location. The file's transformers (the prepended
+	 * and appended text, and any added by {@link #addTransformer(Transformer)})
+	 * are run together, and the file is written once in the cheapest way that
+	 * their needs and edits allow:
+	 * <ul>
+	 * <li>If a transformer needs the contents, the file is read into memory
+	 * once and written from it.</li>
+	 * <li>Written to another location, the file's bytes are copied around the
+	 * edits (by the operating system where possible) without being decoded.</li>
+	 * <li>Written to its own location, text only added at the end is appended,
+	 * and other insertions move the file's content in place (journaled, if
+	 * enabled by {@link #setInPlace(boolean, boolean)}). Edits that remove
+	 * bytes rewrite the file from memory.</li>
+	 * </ul>
 	 * @param outputFile The file to output.
-	 * @param observers The observers to notify progress for.
 	 * @throws FileNotFoundException The file we're appending or prepending to
 	 * does not exist.
 	 * @throws IOException Could not write to the desired file.
 	 */
 	public void write(File outputFile) throws FileNotFoundException, IOException
 	{
-		if(contents == null) contents = FileUtils.readFileToString(file, charset);
+		Path output = outputFile.toPath();
+		boolean same = Files.exists(output) && Files.isSameFile(file.toPath(), output);
+		if(!same)
+		{
+			Path parent = output.toAbsolutePath().getParent();
+			if(parent != null) Files.createDirectories(parent);
+		}
 		
-		FileOutputStream fos = FileUtils.openOutputStream(outputFile);
-		OutputStreamWriter osw = new OutputStreamWriter(fos);
-		BufferedWriter writer = new BufferedWriter(osw);
+		write(output, same);
+	}
+	
+	/**
+	 * Writes the file to the specified location atomically. The new content is
+	 * written to a temporary file, which replaces the output file when it is
+	 * committed by the writer.
+	 * @param outputFile The file to output.
+	 * @param backupFile Where the writer keeps a backup of the output file,
+	 * if it makes backups.
+	 * @param atomicWriter The writer that commits the file.
+	 * @throws FileNotFoundException The file we're appending or prepending to
+	 * does not exist.
+	 * @throws IOException Could not write to the desired file.
+	 */
+	public void write(File outputFile, File backupFile, AtomicWriter atomicWriter)
+			throws FileNotFoundException, IOException
+	{
+		write(Arrays.asList(outputFile), Arrays.asList(backupFile), atomicWriter);
+	}
+	
+	/**
+	 * Writes the file to several locations, reading it only once. The first
+	 * output is written as by {@link #write(File)}, and the others are copied
+	 * from it (by the operating system where possible).
+	 * @param outputFiles The files to output.
+	 * @throws FileNotFoundException The file we're appending or prepending to
+	 * does not exist.
+	 * @throws IOException Could not write to the desired files.
+	 */
+	public void write(List<File> outputFiles) throws FileNotFoundException, IOException
+	{
+		File first = outputFiles.get(0);
+		write(first);
 		
-		if(prependText != null) writer.write(prependText);
+		for(File outputFile : outputFiles.subList(1, outputFiles.size()))
+		{
+			Path output = outputFile.toPath();
+			if(Files.exists(output) && Files.isSameFile(first.toPath(), output)) continue;
+			
+			Path parent = output.toAbsolutePath().getParent();
+			if(parent != null) Files.createDirectories(parent);
+			copy(first.toPath(), output);
+		}
+	}
+	
+	/**
+	 * Writes the file to several locations atomically, reading it only once.
+	 * The new content is written to a temporary file for the first output and
+	 * copied to a temporary file for each of the others, which replace the
+	 * outputs when they are committed by the writer.
+	 * @param outputFiles The files to output.
+	 * @param backupFiles Where the writer keeps a backup of each output file
+	 * (or null for none), if it makes backups.
+	 * @param atomicWriter The writer that commits the files.
+	 * @throws FileNotFoundException The file we're appending or prepending to
+	 * does not exist.
+	 * @throws IOException Could not write to the desired files.
+	 */
+	public void write(List<File> outputFiles, List<File> backupFiles, AtomicWriter atomicWriter)
+			throws FileNotFoundException, IOException
+	{
+		List<Path> temps = new ArrayList<>();
+		try
+		{
+			for(File outputFile : outputFiles)
+			{
+				Path temp = atomicWriter.begin(outputFile.toPath());
+				temps.add(temp);
+				if(temps.size() == 1) writeNew(temp);
+				else copy(temps.get(0), temp);
+			}
+		}
+		catch(IOException e)
+		{
+			for(Path temp : temps) Files.deleteIfExists(temp);
+			throw e;
+		}
 		
-		writer.write(contents);
-
-		if(appendText != null) writer.write(appendText);
+		for(int i = 0; i < outputFiles.size(); i++)
+		{
+			File backupFile = backupFiles.get(i);
+			atomicWriter.commit(temps.get(i), outputFiles.get(i).toPath(),
+					backupFile == null ? null : backupFile.toPath());
+		}
+	}
+	
+	/**
+	 * Writes the changed file to a new file.
+	 * @param output The new file.
+	 * @throws FileNotFoundException The file does not exist.
+	 * @throws IOException Could not read the file or write the output.
+	 */
+	void writeNew(Path output) throws FileNotFoundException, IOException
+	{
+		write(output, false);
+	}
+	
+	/**
+	 * Runs the transformers and writes the file with their edits.
+	 * @param output Where to write it.
+	 * @param same True if the output is the file itself.
+	 * @throws FileNotFoundException The file does not exist.
+	 * @throws IOException Could not read the file or write the output.
+	 */
+	private void write(Path output, boolean same) throws FileNotFoundException, IOException
+	{
+		if(!file.isFile()) throw new FileNotFoundException(file.toString());
+		
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			View view = new View(channel);
+			List<Edits.Span> spans = edit(view);
+			boolean insertions = true;
+			boolean atEnd = true;
+			for(Edits.Span span : spans)
+			{
+				insertions &= span.isInsertion();
+				atEnd &= span.start == view.getSize();
+			}
+			
+			if(same && spans.isEmpty()) return;
+			
+			// Removed bytes can't be moved in place
+			if(same && !insertions) view.load();
+			
+			if(view.bytes != null || !same)
+			{
+				try(FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+				{
+					if(view.bytes != null) writeFromMemory(view.bytes, spans, out);
+					else writeCopy(channel, spans, out);
+				}
+			}
+			else if(atEnd) writeAtEnd(spans, output);
+			else writeShifted(spans);
+		}
+	}
+	
+	/**
+	 * Writes the file as the next entry of an archive. The file's bytes are
+	 * copied around the edits as when writing to another location, so the
+	 * archive is written in a single sequential pass.
+	 * @param archive The archive.
+	 * @param entryName The entry's path, with <tt>/</tt> separators.
+	 * @throws FileNotFoundException The file does not exist.
+	 * @throws IOException Could not read the file or write the archive.
+	 */
+	public void write(ArchiveWriter archive, String entryName)
+			throws FileNotFoundException, IOException
+	{
+		if(!file.isFile()) throw new FileNotFoundException(file.toString());
+		
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			View view = new View(channel);
+			List<Edits.Span> spans = edit(view);
+			long size = view.getSize();
+			for(Edits.Span span : spans) size += span.bytes.length - (span.end - span.start);
+			
+			WritableByteChannel out = archive.beginEntry(entryName, size, file.lastModified());
+			if(view.bytes != null) writeFromMemory(view.bytes, spans, out);
+			else writeCopy(channel, spans, out);
+			archive.endEntry();
+		}
+	}
+	
+	/**
+	 * Builds a unified diff of the changes that writing the file would make,
+	 * without writing it. Unless a transformer needs the contents, only the
+	 * lines around the changes are read, and the bytes before them are only
+	 * scanned to number the lines.
+	 * @param oldName The name of the file in the diff.
+	 * @param newName The name of the changed file in the diff.
+	 * @return The diff, or null if the file wouldn't change.
+	 * @throws FileNotFoundException The file does not exist.
+	 * @throws IOException Could not read the file.
+	 */
+	public String diff(String oldName, String newName) throws FileNotFoundException, IOException
+	{
+		if(!file.isFile()) throw new FileNotFoundException(file.toString());
+		
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			View view = new View(channel);
+			List<Edits.Span> spans = edit(view);
+			if(spans.isEmpty()) return null;
+			
+			return new UnifiedDiff(view).diff(spans, oldName, newName);
+		}
+	}
+	
+	/**
+	 * Runs the transformers on the file.
+	 * @param view The file.
+	 * @return The edits, resolved into spans in order.
+	 * @throws IOException Could not read the file, or the edits are invalid.
+	 */
+	private List<Edits.Span> edit(View view) throws IOException
+	{
+		List<Transformer> stages = getTransformers();
+		
+		// Transformers that need the contents share a single read
+		Transformer.Need need = Transformer.Need.NOTHING;
+		for(Transformer stage : stages)
+		{
+			if(stage.getNeed().compareTo(need) > 0) need = stage.getNeed();
+		}
+		if(need == Transformer.Need.CONTENTS) view.load();
+		
+		Edits edits = new Edits();
+		for(Transformer stage : stages) stage.transform(view, edits);
+		missedEdits = edits.getMissed();
+		
+		List<Edits.Span> spans = edits.resolve(view.getCharset(), view.getLineEnding());
+		for(Edits.Span span : spans)
+		{
+			if(span.end > view.getSize())
+			{
+				throw new IOException("Change past the end of the file: " + file);
+			}
+		}
+		
+		return spans;
+	}
+	
+	/**
+	 * @return The transformers to run, in order: the prepended text, the
+	 * transformers in the order they were added and the appended text.
+	 * @throws IOException Could not detect the format of the file.
+	 */
+	private List<Transformer> getTransformers() throws IOException
+	{
+		List<Transformer> stages = new ArrayList<>();
+		if(prependText != null) stages.add(new Prepend(prependText));
+		stages.addAll(transformers);
+		if(appendText != null)
+		{
+			stages.add(new Append(appendText, appendNewLine && getFormat() != null));
+		}
 		
-		writer.close();
+		return stages;
+	}
+	
+	/**
+	 * Writes the file from memory with the edits.
+	 * @param bytes The file's bytes.
+	 * @param spans The edits.
+	 * @param out Where to write it.
+	 * @throws IOException Could not write the output.
+	 */
+	private static void writeFromMemory(byte[] bytes, List<Edits.Span> spans,
+			WritableByteChannel out) throws IOException
+	{
+		int position = 0;
+		for(Edits.Span span : spans)
+		{
+			writeFully(out, ByteBuffer.wrap(bytes, position, (int) span.start - position));
+			writeFully(out, ByteBuffer.wrap(span.bytes));
+			position = (int) span.end;
+		}
+		writeFully(out, ByteBuffer.wrap(bytes, position, bytes.length - position));
+	}
+	
+	/**
+	 * Writes the file to another location, copying its bytes around the edits
+	 * (by the operating system where possible) without decoding them.
+	 * @param in The file.
+	 * @param spans The edits.
+	 * @param out Where to write it.
+	 * @throws IOException Could not read the file or write the output.
+	 */
+	private static void writeCopy(FileChannel in, List<Edits.Span> spans, WritableByteChannel out)
+			throws IOException
+	{
+		long position = 0;
+		for(Edits.Span span : spans)
+		{
+			transfer(in, position, span.start, out);
+			writeFully(out, ByteBuffer.wrap(span.bytes));
+			position = span.end;
+		}
+		transfer(in, position, in.size(), out);
+	}
+	
+	/**
+	 * Writes text that is only added at the end of the file, without moving
+	 * anything.
+	 * @param spans The edits, all at the end of the file.
+	 * @param output The file.
+	 * @throws IOException Could not write the file.
+	 */
+	private static void writeAtEnd(List<Edits.Span> spans, Path output) throws IOException
+	{
+		try(FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND))
+		{
+			for(Edits.Span span : spans) writeFully(out, ByteBuffer.wrap(span.bytes));
+		}
+	}
+	
+	/**
+	 * Inserts the text into the file itself, moving the file's content in a
+	 * single pass. The file is never read into memory.
+	 * @param spans The edits, which are all insertions.
+	 * @throws IOException Could not read or write the file.
+	 */
+	private void writeShifted(List<Edits.Span> spans) throws IOException
+	{
+		long[] offsets = new long[spans.size()];
+		byte[][] inserts = new byte[spans.size()][];
+		for(int i = 0; i < spans.size(); i++)
+		{
+			offsets[i] = spans.get(i).start;
+			inserts[i] = spans.get(i).bytes;
+		}
+		
+		Path path = file.toPath();
+		ByteBuffer block = pool.acquireBytes(SHIFT_BLOCK_SIZE);
+		try
+		{
+			BlockShifter shifter = new BlockShifter(path, block,
+					inPlace && journal ? BlockShifter.journalFor(path) : null);
+			long start = System.nanoTime();
+			shifter.insert(offsets, inserts);
+			shiftNanos += System.nanoTime() - start;
+			shiftedBytes += shifter.getMovedBytes();
+		}
+		finally
+		{
+			pool.release(block);
+		}
+	}
+	
+	/**
+	 * Copies a whole file over another.
+	 */
+	private static void copy(Path from, Path to) throws IOException
+	{
+		try(FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(to, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			transfer(in, 0, in.size(), out);
+		}
+	}
+	
+	/**
+	 * Copies part of one file to the current position of another.
+	 */
+	private static void transfer(FileChannel in, long from, long to, WritableByteChannel out)
+			throws IOException
+	{
+		while(from < to)
+		{
+			long transferred = in.transferTo(from, to - from, out);
+			if(transferred <= 0) throw new IOException("File shrank while copying.");
+			from += transferred;
+		}
+	}
+	
+	/**
+	 * Writes an entire buffer to a channel.
+	 */
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer)
+			throws IOException
+	{
+		while(buffer.hasRemaining()) channel.write(buffer);
+	}
+	
+	/**
+	 * Reads the entire file into a string. The file is read into a pooled
+	 * buffer in chunks and decoded into a pooled buffer, so the string is the
+	 * only thing allocated.
+	 * @return The file contents.
+	 * @throws FileNotFoundException The file does not exist.
+	 * @throws IOException Could not read the file.
+	 */
+	private String read() throws FileNotFoundException, IOException
+	{
+		if(!file.isFile()) throw new FileNotFoundException(file.toString());
+		
+		Charset inputCharset = charset;
+		long position = 0;
+		if(detectFormat)
+		{
+			inputCharset = getFormat().getCharset();
+			position = getFormat().getByteOrderMark().length;
+		}
+		
+		CharsetDecoder decoder = inputCharset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			long size = Math.max(0, channel.size() - position);
+			if(size * decoder.maxCharsPerByte() > Integer.MAX_VALUE - 16)
+			{
+				throw new IOException("File is too large: " + file);
+			}
+			
+			ByteBuffer bytes = pool.acquireBytes((int) Math.max(1, Math.min(size, CHUNK_SIZE)));
+			CharBuffer chars = pool.acquireChars((int) (size * decoder.maxCharsPerByte()) + 16);
+			try
+			{
+				boolean end = false;
+				while(!end)
+				{
+					int read = channel.read(bytes, position);
+					if(read < 0) end = true;
+					else position += read;
+					
+					bytes.flip();
+					// The file may have grown since its size was read
+					while(decoder.decode(bytes, chars, end).isOverflow()) chars = grow(chars);
+					bytes.compact();
+				}
+				
+				while(decoder.flush(chars).isOverflow()) chars = grow(chars);
+				chars.flip();
+				return chars.toString();
+			}
+			finally
+			{
+				pool.release(bytes);
+				pool.release(chars);
+			}
+		}
+	}
+	
+	/**
+	 * Replaces a full pooled char buffer with one twice as large.
+	 * @param chars The full buffer, which is given back to the pool.
+	 * @return The larger buffer, containing the same chars.
+	 */
+	private CharBuffer grow(CharBuffer chars)
+	{
+		CharBuffer larger = pool.acquireChars(chars.capacity() * 2);
+		chars.flip();
+		larger.put(chars);
+		pool.release(chars);
+		return larger;
+	}
+	
+	/**
+	 * Determines if the file looks like a binary file, such as an image or a
+	 * jar, which text should not be added to. Only the start of the file is
+	 * read, unless it has already been read entirely.
+	 * @param strictUtf8 True if, when read as UTF-8, a file that is not valid
+	 * UTF-8 is binary.
+	 * @return True if the file is binary.
+	 * @throws FileNotFoundException The file does not exist.
+	 * @throws IOException Could not read the file.
+	 */
+	public boolean isBinary(boolean strictUtf8) throws FileNotFoundException, IOException
+	{
+		readPrefix();
+		return Sniffer.isBinary(prefix, truncated, detectFormat ? getFormat().getCharset() :
+				charset, strictUtf8);
+	}
+	
+	/**
+	 * Sets whether the file was found by walking (or watching) a folder,
+	 * rather than being listed by name. Only such files are skipped when they
+	 * look like binary files.
+	 * @param walked True if the file was found in a folder.
+	 */
+	public void setWalked(boolean walked)
+	{
+		this.walked = walked;
+	}
+	
+	/**
+	 * @return True if the file was found by walking (or watching) a folder.
+	 */
+	public boolean isWalked()
+	{
+		return walked;
+	}
+	
+	/**
+	 * Detects the format of the file from its start, if detecting formats.
+	 * @return The format, or null if the format isn't being detected.
+	 * @throws FileNotFoundException The file does not exist.
+	 * @throws IOException Could not read the file.
+	 */
+	public TextFormat getFormat() throws FileNotFoundException, IOException
+	{
+		if(!detectFormat) return null;
+		
+		if(format == null)
+		{
+			readPrefix();
+			format = Sniffer.detectFormat(prefix, truncated);
+		}
+		
+		return format;
+	}
+	
+	/**
+	 * Reads the start of the file with a positional read, if it hasn't been
+	 * read yet. One byte more than the prefix is read to tell if the file is
+	 * longer than the prefix.
+	 * @throws FileNotFoundException The file does not exist.
+	 * @throws IOException Could not read the file.
+	 */
+	private void readPrefix() throws FileNotFoundException, IOException
+	{
+		if(prefix != null) return;
+		
+		ByteBuffer buffer = pool.acquireBytes(Sniffer.PREFIX_SIZE + 1);
+		try
+		{
+			buffer.limit(Sniffer.PREFIX_SIZE + 1);
+			prefix = Sniffer.readPrefix(file.toPath(), buffer);
+		}
+		finally
+		{
+			pool.release(buffer);
+		}
+		
+		truncated = prefix.length > Sniffer.PREFIX_SIZE;
+		if(truncated) prefix = Arrays.copyOf(prefix, Sniffer.PREFIX_SIZE);
 	}
 	
 	/**
@@ -160,13 +912,211 @@ public class BufferedFile
 	 */
 	public boolean contains(String regex) throws FileNotFoundException, IOException
 	{
-		if(contents == null) contents = FileUtils.readFileToString(file, charset);
+		if(contents == null) contents = read();
 
-		// We don't need a complete match, so there may be any text on either
-		// side of the regex. The (?m) enables multi-line mode (so that `^` and
-		// `$` can match beginning and end of lines) and the (?s) allows the dot
-		// to match new lines.
-		return contents.matches("(?m)(?s).*" + regex + ".*");
+		return find(regex, contents);
+	}
+	
+	/**
+	 * Determines if text contains a particular regex, in segments at once if
+	 * there is a segmented matcher.
+	 * @param regex The regex to attempt to match.
+	 * @param text The text.
+	 * @return True if the regex was matched somewhere in the text.
+	 */
+	boolean find(String regex, String text)
+	{
+		// We don't need a complete match, so the regex is only found somewhere
+		// in the file. Multi-line mode allows `^` and `$` to match beginning
+		// and end of lines and dotall mode allows the dot to match new lines.
+		Pattern pattern = Pattern.compile(regex, Pattern.MULTILINE | Pattern.DOTALL);
+		if(segmentedMatcher != null) return segmentedMatcher.find(pattern, text);
+		
+		return pattern.matcher(text).find();
+	}
+	
+	/**
+	 * What transformers see of the file while it is written. The file is only
+	 * held in memory once it is loaded.
+	 */
+	private class View implements FileView
+	{
+		private final FileChannel channel;
+		
+		private final Charset viewCharset;
+		
+		private final String lineEnding;
+		
+		private final long start;
+		
+		private final long size;
+		
+		/**
+		 * The file's bytes, once loaded.
+		 */
+		private byte[] bytes;
+		
+		View(FileChannel channel) throws IOException
+		{
+			this.channel = channel;
+			size = channel.size();
+			if(getFormat() != null)
+			{
+				viewCharset = format.getCharset();
+				lineEnding = format.getLineEnding();
+				start = Math.min(size, format.getByteOrderMark().length);
+			}
+			else
+			{
+				viewCharset = charset;
+				lineEnding = "\n";
+				start = 0;
+			}
+		}
+		
+		/**
+		 * Reads the whole file into memory, if it hasn't been.
+		 * @throws IOException Could not read the file, or it is too large.
+		 */
+		void load() throws IOException
+		{
+			if(bytes != null) return;
+			if(size > Integer.MAX_VALUE - 16) throw new IOException("File is too large: " + file);
+			
+			bytes = new byte[(int) size];
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while(buffer.hasRemaining())
+			{
+				if(channel.read(buffer, buffer.position()) < 0)
+				{
+					throw new IOException("File shrank while reading: " + file);
+				}
+			}
+		}
+		
+		@Override
+		public Charset getCharset()
+		{
+			return viewCharset;
+		}
+		
+		@Override
+		public String getLineEnding()
+		{
+			return lineEnding;
+		}
+		
+		@Override
+		public long getStart()
+		{
+			return start;
+		}
+		
+		@Override
+		public long getSize()
+		{
+			return size;
+		}
+		
+		@Override
+		public FileChannel getChannel()
+		{
+			return channel;
+		}
+		
+		@Override
+		public boolean endsWith(String text) throws IOException
+		{
+			ByteBuffer encoded = viewCharset.newEncoder().encode(CharBuffer.wrap(text));
+			long position = size - encoded.remaining();
+			if(position < start) return false;
+			
+			ByteBuffer tail = ByteBuffer.allocate(encoded.remaining());
+			while(tail.hasRemaining())
+			{
+				if(channel.read(tail, position + tail.position()) < 0) return false;
+			}
+			tail.flip();
+			return tail.equals(encoded);
+		}
+		
+		@Override
+		public String getContents() throws IOException
+		{
+			if(contents == null)
+			{
+				contents = bytes == null ? read() :
+						new String(bytes, (int) start, bytes.length - (int) start, viewCharset);
+			}
+			
+			return contents;
+		}
+		
+		@Override
+		public long offsetOf(int index) throws IOException
+		{
+			return start + viewCharset.newEncoder().encode(
+					CharBuffer.wrap(getContents(), 0, index)).remaining();
+		}
+	}
+	
+	/**
+	 * Adds the prepended text at the start of the text.
+	 */
+	private static class Prepend implements Transformer
+	{
+		private final String text;
+		
+		Prepend(String text)
+		{
+			this.text = text;
+		}
+		
+		@Override
+		public Need getNeed()
+		{
+			return Need.NOTHING;
+		}
+		
+		@Override
+		public void transform(FileView view, Edits edits)
+		{
+			edits.insert(view.getStart(), text);
+		}
+	}
+	
+	/**
+	 * Adds the appended text at the end of the file.
+	 */
+	private static class Append implements Transformer
+	{
+		private final String text;
+		
+		/**
+		 * If true, a file that ends with a line ending keeps ending with one,
+		 * rather than gaining a blank line before the text.
+		 */
+		private final boolean keepLineEnding;
+		
+		Append(String text, boolean keepLineEnding)
+		{
+			this.text = text;
+			this.keepLineEnding = keepLineEnding;
+		}
+		
+		@Override
+		public Need getNeed()
+		{
+			return keepLineEnding ? Need.TAIL : Need.NOTHING;
+		}
+		
+		@Override
+		public void transform(FileView view, Edits edits) throws IOException
+		{
+			String appended = text;
+			if(keepLineEnding && view.endsWith("\n")) appended = text.substring(1) + "\n";
+			edits.insert(view.getSize(), appended);
+		}
 	}
 	
 	@Override
@@ -0,0 +1,29 @@
+package com.mikehoffert.easyappend.model;
+
+/**
+ * How durable atomic writes are. Atomic writes always write to a temporary
+ * file and rename it into place, so that a crash never leaves a partially
+ * written file. Durability determines whether the data is also guaranteed to
+ * be on disk (surviving a power loss) once the file has been written.
+ */
+public enum Durability
+{
+	/**
+	 * Nothing is synced. The operating system writes the data whenever it
+	 * wants to.
+	 */
+	NONE,
+
+	/**
+	 * Each file (and its directory) is synced before the next file is
+	 * written. Slow when writing many files.
+	 */
+	FILE,
+
+	/**
+	 * Files are committed in batches. All temporary files of a batch are
+	 * synced together before any are renamed, then each directory is synced
+	 * once. Files are only replaced when their batch is committed.
+	 */
+	GROUP
+}
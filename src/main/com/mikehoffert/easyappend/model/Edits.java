@@ -0,0 +1,152 @@
+package com.mikehoffert.easyappend.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The changes {@link Transformer}s make to a file: text inserted at byte
+ * offsets, or replacing ranges of bytes. Offsets are positions in the file as
+ * it was before any changes, so transformers don't affect each other's
+ * offsets. Line feeds in the text are written as the file's line ending.
+ */
+public class Edits
+{
+	private final List<Span> spans = new ArrayList<>();
+
+	private int missed = 0;
+
+	/**
+	 * Inserts text. Text inserted at the same offset is joined in the order
+	 * it was inserted.
+	 * @param offset Where to insert it.
+	 * @param text The text.
+	 */
+	public void insert(long offset, String text)
+	{
+		replace(offset, offset, text);
+	}
+
+	/**
+	 * Replaces a range of the file with text.
+	 * @param start The start of the range.
+	 * @param end The end of the range (exclusive).
+	 * @param text The text.
+	 */
+	public void replace(long start, long end, String text)
+	{
+		if(start < 0 || end < start)
+		{
+			throw new IllegalArgumentException("Invalid range: " + start + " to " + end);
+		}
+
+		spans.add(new Span(start, end, text));
+	}
+
+	/**
+	 * Records that a transformer found nowhere to make its change, such as an
+	 * anchor that no line matched.
+	 */
+	public void miss()
+	{
+		missed++;
+	}
+
+	/**
+	 * @return The number of changes that weren't made.
+	 */
+	public int getMissed()
+	{
+		return missed;
+	}
+
+	/**
+	 * Joins the edits at each position and encodes their text.
+	 * @param charset The charset to encode the text in.
+	 * @param lineEnding What line breaks are written as. Text that already has
+	 * CRLF line breaks (such as text read from a Windows file) is written with
+	 * this line ending too.
+	 * @return The edits in order of position, with no two at the same position.
+	 * @throws IOException Edits overlap, or text could not be encoded.
+	 */
+	List<Span> resolve(Charset charset, String lineEnding) throws IOException
+	{
+		List<Span> sorted = new ArrayList<>(spans);
+		Collections.sort(sorted, new Comparator<Span>()
+		{
+			@Override
+			public int compare(Span first, Span second)
+			{
+				return Long.compare(first.start, second.start);
+			}
+		});
+
+		List<Span> resolved = new ArrayList<>();
+		Span current = null;
+		for(Span span : sorted)
+		{
+			if(current != null && span.start == current.start &&
+					(current.isInsertion() || span.isInsertion()))
+			{
+				current.end = Math.max(current.end, span.end);
+				current.text.append(span.text);
+			}
+			else if(current != null && span.start < current.end)
+			{
+				throw new IOException("Changes overlap at byte " + span.start + ".");
+			}
+			else
+			{
+				current = new Span(span.start, span.end, span.text.toString());
+				resolved.add(current);
+			}
+		}
+
+		for(Span span : resolved)
+		{
+			ByteBuffer bytes = charset.newEncoder().encode(CharBuffer.wrap(
+					span.text.toString().replace("\r\n", "\n").replace("\n", lineEnding)));
+			span.bytes = Arrays.copyOf(bytes.array(), bytes.limit());
+		}
+
+		return resolved;
+	}
+
+	/**
+	 * A range of the file and the text that replaces it.
+	 */
+	static class Span
+	{
+		final long start;
+
+		long end;
+
+		final StringBuilder text;
+
+		/**
+		 * The encoded text, once resolved.
+		 */
+		byte[] bytes;
+
+		Span(long start, long end, String text)
+		{
+			this.start = start;
+			this.end = end;
+			this.text = new StringBuilder(text);
+		}
+
+		/**
+		 * @return True if nothing is removed.
+		 */
+		boolean isInsertion()
+		{
+			return start == end;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.mikehoffert.easyappend.model;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * What a {@link Transformer} sees of the file it changes. Positions are byte
+ * offsets in the file as it was before any changes.
+ */
+public interface FileView
+{
+	/**
+	 * @return The charset of the file (detected, if the format is detected).
+	 */
+	Charset getCharset();
+
+	/**
+	 * @return The line ending of the file, which line feeds in added text are
+	 * written as.
+	 */
+	String getLineEnding();
+
+	/**
+	 * @return Where the text of the file starts, after any byte order mark.
+	 */
+	long getStart();
+
+	/**
+	 * @return The size of the file in bytes.
+	 */
+	long getSize();
+
+	/**
+	 * @return The file, open for reading at any position. Its position should
+	 * not be changed.
+	 */
+	FileChannel getChannel();
+
+	/**
+	 * Determines if the file ends with some text, reading only its last bytes.
+	 * @param text The text.
+	 * @return True if the file's last bytes are the encoded text.
+	 * @throws IOException Could not read the file.
+	 */
+	boolean endsWith(String text) throws IOException;
+
+	/**
+	 * Gets the entire text of the file, after any byte order mark. Only
+	 * transformers that need {@link Transformer.Need#CONTENTS} should call this.
+	 * @return The text.
+	 * @throws IOException Could not read the file.
+	 */
+	String getContents() throws IOException;
+
+	/**
+	 * Converts a position in the text from {@link #getContents()} to a byte
+	 * offset in the file.
+	 * @param index The position in the text.
+	 * @return The byte offset.
+	 * @throws IOException Could not read or encode the file.
+	 */
+	long offsetOf(int index) throws IOException;
+}
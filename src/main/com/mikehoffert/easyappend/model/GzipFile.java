@@ -0,0 +1,253 @@
+package com.mikehoffert.easyappend.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A gzip-compressed file being modified. A gzip file may be several compressed
+ * members one after another, which decompress to their contents joined
+ * together, so text is added by compressing only the text as a new member.
+ * Appending writes that member at the end of the file, and prepending writes
+ * it followed by the original compressed bytes. The original content is
+ * never decompressed or recompressed, except to match regexes.
+ */
+public class GzipFile extends BufferedFile
+{
+	/**
+	 * The first bytes of every gzip file.
+	 */
+	private static final byte[] MAGIC_NUMBER = { (byte) 0x1F, (byte) 0x8B };
+
+	/**
+	 * The decompressed text, once it is needed.
+	 */
+	private String text;
+
+	/**
+	 * Initializes the file.
+	 * @param file The gzip file being modified.
+	 */
+	public GzipFile(File file)
+	{
+		super(file);
+	}
+
+	/**
+	 * Determines if a file is a gzip file: its name ends in <tt>.gz</tt> and it
+	 * starts with the gzip magic number.
+	 * @param file The file.
+	 * @return True if the file is a gzip file.
+	 * @throws IOException Could not read the file.
+	 */
+	public static boolean isGzip(File file) throws IOException
+	{
+		if(!file.getName().endsWith(".gz") || !file.isFile()) return false;
+
+		return Arrays.equals(Sniffer.readPrefix(file.toPath(), MAGIC_NUMBER.length), MAGIC_NUMBER);
+	}
+
+	/**
+	 * Gzip files are compressed text, so they are never skipped as binary.
+	 */
+	@Override
+	public boolean isBinary(boolean strictUtf8)
+	{
+		return false;
+	}
+
+	/**
+	 * The format of compressed text isn't detected, so the charset is used.
+	 */
+	@Override
+	public TextFormat getFormat()
+	{
+		return null;
+	}
+
+	/**
+	 * Determines if the decompressed text contains a particular regex. The
+	 * file is decompressed as a stream, but the text must be held in memory
+	 * for the regex to be matched.
+	 */
+	@Override
+	public boolean contains(String regex) throws FileNotFoundException, IOException
+	{
+		if(text == null) text = decompress();
+
+		return find(regex, text);
+	}
+
+	/**
+	 * Writes the file to the specified location, adding the text as new gzip
+	 * members. Appending to the file itself only writes at the end of it.
+	 */
+	@Override
+	public void write(File outputFile) throws FileNotFoundException, IOException
+	{
+		if(!getFile().isFile()) throw new FileNotFoundException(getFile().toString());
+
+		Path source = getFile().toPath();
+		Path output = outputFile.toPath();
+		boolean inPlace = Files.exists(output) && Files.isSameFile(source, output);
+
+		if(inPlace && getPrependText() == null)
+		{
+			if(getAppendText() == null) return;
+
+			try(FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND))
+			{
+				writeFully(channel, compress(getAppendText()));
+			}
+		}
+		else if(inPlace)
+		{
+			// The member must come first, so the file is rewritten and replaced
+			try(AtomicWriter atomicWriter = new AtomicWriter(Durability.NONE, 1))
+			{
+				write(outputFile, null, atomicWriter);
+			}
+		}
+		else
+		{
+			Path parent = output.toAbsolutePath().getParent();
+			if(parent != null) Files.createDirectories(parent);
+			writeCopy(output);
+		}
+	}
+
+	/**
+	 * Writes a new copy of the file, adding the text as new gzip members.
+	 */
+	@Override
+	void writeNew(Path output) throws FileNotFoundException, IOException
+	{
+		if(!getFile().isFile()) throw new FileNotFoundException(getFile().toString());
+
+		writeCopy(output);
+	}
+
+	/**
+	 * Writes the file as the next entry of an archive, adding the text as new
+	 * gzip members.
+	 */
+	@Override
+	public void write(ArchiveWriter archive, String entryName)
+			throws FileNotFoundException, IOException
+	{
+		if(!getFile().isFile()) throw new FileNotFoundException(getFile().toString());
+
+		ByteBuffer prepend = getPrependText() == null ? null : compress(getPrependText());
+		ByteBuffer append = getAppendText() == null ? null : compress(getAppendText());
+		try(FileChannel in = FileChannel.open(getFile().toPath(), StandardOpenOption.READ))
+		{
+			long size = in.size() + (prepend == null ? 0 : prepend.remaining()) +
+					(append == null ? 0 : append.remaining());
+			WritableByteChannel out = archive.beginEntry(entryName, size,
+					getFile().lastModified());
+			writeCopy(in, prepend, append, out);
+			archive.endEntry();
+		}
+	}
+
+	/**
+	 * Writes the prepended member, the original compressed bytes (copied by
+	 * the operating system where possible) and the appended member.
+	 * @param output Where to write them.
+	 * @throws IOException Could not read the file or write the output.
+	 */
+	private void writeCopy(Path output) throws IOException
+	{
+		try(FileChannel in = FileChannel.open(getFile().toPath(), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			writeCopy(in, getPrependText() == null ? null : compress(getPrependText()),
+					getAppendText() == null ? null : compress(getAppendText()), out);
+		}
+	}
+
+	/**
+	 * Writes the compressed members around the original compressed bytes.
+	 * @param in The file.
+	 * @param prepend The prepended member, or null if there is none.
+	 * @param append The appended member, or null if there is none.
+	 * @param out Where to write them.
+	 * @throws IOException Could not read the file or write the output.
+	 */
+	private static void writeCopy(FileChannel in, ByteBuffer prepend, ByteBuffer append,
+			WritableByteChannel out) throws IOException
+	{
+		if(prepend != null) writeFully(out, prepend);
+
+		long size = in.size();
+		long position = 0;
+		while(position < size)
+		{
+			position += in.transferTo(position, size - position, out);
+		}
+
+		if(append != null) writeFully(out, append);
+	}
+
+	/**
+	 * Compresses text as a single gzip member.
+	 * @param text The text.
+	 * @return The member.
+	 * @throws IOException Could not compress the text.
+	 */
+	private ByteBuffer compress(String text) throws IOException
+	{
+		ByteArrayOutputStream member = new ByteArrayOutputStream();
+		try(GZIPOutputStream gzip = new GZIPOutputStream(member))
+		{
+			gzip.write(text.getBytes(getCharset()));
+		}
+
+		return ByteBuffer.wrap(member.toByteArray());
+	}
+
+	/**
+	 * Decompresses all members of the file.
+	 * @return The text.
+	 * @throws FileNotFoundException The file does not exist.
+	 * @throws IOException Could not read or decompress the file.
+	 */
+	private String decompress() throws FileNotFoundException, IOException
+	{
+		if(!getFile().isFile()) throw new FileNotFoundException(getFile().toString());
+
+		StringBuilder builder = new StringBuilder();
+		char[] buffer = new char[8192];
+		try(Reader reader = new InputStreamReader(new GZIPInputStream(
+				Files.newInputStream(getFile().toPath()), 65536), getCharset()))
+		{
+			int read;
+			while((read = reader.read(buffer)) != -1) builder.append(buffer, 0, read);
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Writes an entire buffer to a channel.
+	 */
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer)
+			throws IOException
+	{
+		while(buffer.hasRemaining()) channel.write(buffer);
+	}
+}
@@ -0,0 +1,146 @@
+package com.mikehoffert.easyappend.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds a regex in very large text by splitting it into segments that are
+ * scanned at once on a fork/join pool. Each segment is scanned a bounded
+ * overlap past its end, so a match that crosses into the next segment is still
+ * found if it is no longer than the overlap. Longer matches that cross a
+ * boundary (such as <tt>a.*b</tt> with the <tt>a</tt> and <tt>b</tt> far apart)
+ * can be missed. Segments end at line breaks, and lookarounds and anchors see
+ * the text around a segment, so they behave as they do on the whole text. As
+ * soon as one segment has a match, the segments that haven't been scanned are
+ * cancelled.<p>
+ *
+ * Text that isn't much larger than a segment is scanned by the calling thread.
+ */
+public class SegmentedMatcher
+{
+	/**
+	 * The default number of chars each segment is scanned past its end.
+	 */
+	public static final int DEFAULT_OVERLAP = 64 * 1024;
+
+	/**
+	 * The number of chars in each segment (before moving its end to a line
+	 * break).
+	 */
+	static final int SEGMENT_SIZE = 1024 * 1024;
+
+	private final int overlap;
+
+	/**
+	 * Initializes the matcher.
+	 * @param overlap The number of chars each segment is scanned past its
+	 * end, which is the longest match that is always found.
+	 */
+	public SegmentedMatcher(int overlap)
+	{
+		this.overlap = overlap;
+	}
+
+	/**
+	 * Determines if a regex is found somewhere in text.
+	 * @param pattern The regex.
+	 * @param text The text.
+	 * @return True if the regex was found.
+	 */
+	public boolean find(Pattern pattern, CharSequence text)
+	{
+		if(text.length() <= 2 * SEGMENT_SIZE) return pattern.matcher(text).find();
+
+		AtomicBoolean found = new AtomicBoolean();
+		List<Segment> segments = new ArrayList<>();
+		int start = 0;
+		while(start < text.length())
+		{
+			int end = lineBreakAfter(text, start + SEGMENT_SIZE);
+			segments.add(new Segment(pattern, text, start,
+					(int) Math.min(text.length(), (long) end + overlap), found));
+			start = end;
+		}
+
+		for(Segment segment : segments) Pool.POOL.execute(segment);
+
+		for(Segment segment : segments)
+		{
+			if(segment.join())
+			{
+				for(Segment other : segments) other.cancel(false);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return The position after the first line break at or after a position,
+	 * or the end of the text.
+	 */
+	private static int lineBreakAfter(CharSequence text, int position)
+	{
+		while(position < text.length())
+		{
+			if(text.charAt(position++) == '\n') return position;
+		}
+
+		return text.length();
+	}
+
+	/**
+	 * Scans one segment of the text.
+	 */
+	private static class Segment extends RecursiveTask<Boolean>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Pattern pattern;
+		private final CharSequence text;
+		private final int start;
+		private final int end;
+		private final AtomicBoolean found;
+
+		Segment(Pattern pattern, CharSequence text, int start, int end, AtomicBoolean found)
+		{
+			this.pattern = pattern;
+			this.text = text;
+			this.start = start;
+			this.end = end;
+			this.found = found;
+		}
+
+		@Override
+		protected Boolean compute()
+		{
+			// Another segment already has a match
+			if(found.get()) return false;
+
+			Matcher matcher = pattern.matcher(text);
+			matcher.region(start, end);
+			matcher.useTransparentBounds(true);
+			matcher.useAnchoringBounds(false);
+
+			if(!matcher.find()) return false;
+
+			found.set(true);
+			return true;
+		}
+	}
+
+	/**
+	 * Holds the pool, which is only created once text is large enough to need
+	 * it. Its threads are daemon threads.
+	 */
+	private static class Pool
+	{
+		static final ForkJoinPool POOL = new ForkJoinPool();
+	}
+}
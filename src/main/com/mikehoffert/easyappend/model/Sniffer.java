@@ -0,0 +1,293 @@
+package com.mikehoffert.easyappend.model;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Classifies files by looking at only the first few kilobytes of them, so that
+ * files can be skipped (or their format detected) without being read entirely.
+ */
+public class Sniffer
+{
+	/**
+	 * The number of bytes read from the start of a file to classify it.
+	 */
+	public static final int PREFIX_SIZE = 8192;
+
+	/**
+	 * The starts of common binary formats: PNG, JPEG, GIF, PDF, ZIP (including
+	 * jars), gzip, ELF executables, Java class files and SQLite databases.
+	 */
+	private static final byte[][] MAGIC_NUMBERS = {
+		{ (byte) 0x89, 'P', 'N', 'G' },
+		{ (byte) 0xFF, (byte) 0xD8, (byte) 0xFF },
+		{ 'G', 'I', 'F', '8' },
+		{ '%', 'P', 'D', 'F', '-' },
+		{ 'P', 'K', 3, 4 },
+		{ (byte) 0x1F, (byte) 0x8B },
+		{ 0x7F, 'E', 'L', 'F' },
+		{ (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE },
+		{ 'S', 'Q', 'L', 'i', 't', 'e', ' ', 'f', 'o', 'r', 'm', 'a', 't', 0 }
+	};
+
+	/**
+	 * Byte order marks of UTF-16 and UTF-32, whose text is full of NUL bytes.
+	 */
+	private static final byte[][] WIDE_BYTE_ORDER_MARKS = {
+		{ 0, 0, (byte) 0xFE, (byte) 0xFF },
+		{ (byte) 0xFF, (byte) 0xFE, 0, 0 },
+		{ (byte) 0xFE, (byte) 0xFF },
+		{ (byte) 0xFF, (byte) 0xFE }
+	};
+
+	/**
+	 * Byte order marks, and the charsets they identify. UTF-32 is checked
+	 * before UTF-16, since the UTF-32LE mark starts with the UTF-16LE mark.
+	 */
+	private static final byte[][] BYTE_ORDER_MARKS = {
+		{ (byte) 0xEF, (byte) 0xBB, (byte) 0xBF },
+		{ 0, 0, (byte) 0xFE, (byte) 0xFF },
+		{ (byte) 0xFF, (byte) 0xFE, 0, 0 },
+		{ (byte) 0xFE, (byte) 0xFF },
+		{ (byte) 0xFF, (byte) 0xFE }
+	};
+	private static final String[] BYTE_ORDER_MARK_CHARSETS = {
+		"UTF-8", "UTF-32BE", "UTF-32LE", "UTF-16BE", "UTF-16LE"
+	};
+
+	private Sniffer()
+	{
+	}
+
+	/**
+	 * Reads the start of a file with a positional read, which doesn't need to
+	 * read (or map) the rest of the file.
+	 * @param file The file.
+	 * @param size The most bytes to read.
+	 * @return The bytes read, which are fewer than <tt>size</tt> if the file is
+	 * smaller.
+	 * @throws FileNotFoundException The file does not exist.
+	 * @throws IOException Could not read the file.
+	 */
+	public static byte[] readPrefix(Path file, int size) throws FileNotFoundException, IOException
+	{
+		return readPrefix(file, ByteBuffer.allocate(size));
+	}
+
+	/**
+	 * Reads the start of a file into a buffer (such as a pooled one) with a
+	 * positional read.
+	 * @param file The file.
+	 * @param buffer The buffer, whose remaining space is the most bytes to read.
+	 * @return The bytes read, which are fewer than the space in the buffer if
+	 * the file is smaller.
+	 * @throws FileNotFoundException The file does not exist.
+	 * @throws IOException Could not read the file.
+	 */
+	public static byte[] readPrefix(Path file, ByteBuffer buffer)
+			throws FileNotFoundException, IOException
+	{
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			long position = 0;
+			while(buffer.hasRemaining())
+			{
+				int read = channel.read(buffer, position);
+				if(read < 0) break;
+				position += read;
+			}
+		}
+		catch(NoSuchFileException e)
+		{
+			throw new FileNotFoundException(file.toString());
+		}
+
+		buffer.flip();
+		byte[] prefix = new byte[buffer.remaining()];
+		buffer.get(prefix);
+		return prefix;
+	}
+
+	/**
+	 * Determines if the start of a file looks like a binary file rather than
+	 * text. A file is binary if it starts with the magic number of a binary
+	 * format or contains a NUL byte (unless it is UTF-16 or UTF-32 text). Text
+	 * in another charset (such as ISO-8859-1) often isn't valid UTF-8, so that
+	 * only makes a file binary if asked for.
+	 * @param prefix The start of the file.
+	 * @param truncated True if the file is longer than the prefix, in which
+	 * case the prefix may end in the middle of a character.
+	 * @param charset The charset that the file is presumed to use.
+	 * @param strictUtf8 True if, when read as UTF-8, a file that is not valid
+	 * UTF-8 is binary.
+	 * @return True if the file is binary.
+	 */
+	public static boolean isBinary(byte[] prefix, boolean truncated, Charset charset,
+			boolean strictUtf8)
+	{
+		for(byte[] magicNumber : MAGIC_NUMBERS)
+		{
+			if(startsWith(prefix, magicNumber)) return true;
+		}
+
+		for(byte[] byteOrderMark : WIDE_BYTE_ORDER_MARKS)
+		{
+			if(startsWith(prefix, byteOrderMark)) return false;
+		}
+
+		String name = charset.name();
+		if(!name.startsWith("UTF-16") && !name.startsWith("UTF-32"))
+		{
+			for(byte b : prefix)
+			{
+				if(b == 0) return true;
+			}
+		}
+
+		return strictUtf8 && charset.equals(StandardCharsets.UTF_8) &&
+				!isValidUtf8(prefix, truncated);
+	}
+
+	/**
+	 * Detects the format of a text file from its start. The charset is taken
+	 * from the byte order mark if there is one, otherwise it is UTF-8 if the
+	 * start is valid UTF-8 and ISO-8859-1 (which can hold any bytes) if not.
+	 * The line ending is whichever of <tt>"\r\n"</tt> and <tt>"\n"</tt> is
+	 * used most, or <tt>"\n"</tt> if there are no lines.
+	 * @param prefix The start of the file.
+	 * @param truncated True if the file is longer than the prefix.
+	 * @return The format.
+	 */
+	public static TextFormat detectFormat(byte[] prefix, boolean truncated)
+	{
+		byte[] byteOrderMark = new byte[0];
+		Charset charset = null;
+
+		for(int i = 0; i < BYTE_ORDER_MARKS.length; i++)
+		{
+			if(startsWith(prefix, BYTE_ORDER_MARKS[i]))
+			{
+				byteOrderMark = BYTE_ORDER_MARKS[i];
+				charset = Charset.forName(BYTE_ORDER_MARK_CHARSETS[i]);
+				break;
+			}
+		}
+
+		if(charset == null)
+		{
+			charset = isValidUtf8(prefix, truncated) ? StandardCharsets.UTF_8 :
+					StandardCharsets.ISO_8859_1;
+		}
+
+		String text = new String(prefix, byteOrderMark.length,
+				prefix.length - byteOrderMark.length, charset);
+		int crlf = 0;
+		int lf = 0;
+		for(int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1))
+		{
+			if(i > 0 && text.charAt(i - 1) == '\r') crlf++;
+			else lf++;
+		}
+
+		return new TextFormat(charset, byteOrderMark, crlf > lf ? "\r\n" : "\n");
+	}
+
+	/**
+	 * Validates UTF-8, rejecting overlong encodings, surrogates and code points
+	 * above U+10FFFF.
+	 * @param bytes The bytes.
+	 * @param truncated True if the bytes may end in the middle of a character,
+	 * in which case an incomplete character at the end is allowed.
+	 * @return True if the bytes are valid UTF-8.
+	 */
+	public static boolean isValidUtf8(byte[] bytes, boolean truncated)
+	{
+		int i = 0;
+		while(i < bytes.length)
+		{
+			// Skip runs of ASCII eight bytes at a time. A byte with the high bit
+			// set makes the whole OR negative.
+			while(i + 8 <= bytes.length && (bytes[i] | bytes[i + 1] | bytes[i + 2] |
+					bytes[i + 3] | bytes[i + 4] | bytes[i + 5] | bytes[i + 6] | bytes[i + 7]) >= 0)
+			{
+				i += 8;
+			}
+			if(i == bytes.length) break;
+
+			int lead = bytes[i] & 0xFF;
+
+			// ASCII, which is the common case
+			if(lead < 0x80)
+			{
+				i++;
+				continue;
+			}
+
+			int length;
+			int min = 0x80;
+			int max = 0xBF;
+			if(lead >= 0xC2 && lead <= 0xDF)
+			{
+				length = 2;
+			}
+			else if(lead >= 0xE0 && lead <= 0xEF)
+			{
+				length = 3;
+				if(lead == 0xE0) min = 0xA0;
+				if(lead == 0xED) max = 0x9F;
+			}
+			else if(lead >= 0xF0 && lead <= 0xF4)
+			{
+				length = 4;
+				if(lead == 0xF0) min = 0x90;
+				if(lead == 0xF4) max = 0x8F;
+			}
+			else
+			{
+				return false;
+			}
+
+			if(i + length > bytes.length)
+			{
+				// Only the continuation bytes that we have can be checked
+				if(!truncated) return false;
+				length = bytes.length - i;
+			}
+
+			for(int j = 1; j < length; j++)
+			{
+				int continuation = bytes[i + j] & 0xFF;
+				if(continuation < (j == 1 ? min : 0x80) || continuation > (j == 1 ? max : 0xBF))
+				{
+					return false;
+				}
+			}
+
+			i += length;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return True if the bytes start with the prefix.
+	 */
+	private static boolean startsWith(byte[] bytes, byte[] prefix)
+	{
+		if(bytes.length < prefix.length) return false;
+
+		for(int i = 0; i < prefix.length; i++)
+		{
+			if(bytes[i] != prefix[i]) return false;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,58 @@
+package com.mikehoffert.easyappend.model;
+
+import java.nio.charset.Charset;
+
+/**
+ * How a text file is encoded: its charset, the byte order mark it starts with
+ * (if any) and the line ending it mostly uses.
+ */
+public class TextFormat
+{
+	private Charset charset;
+
+	private byte[] byteOrderMark;
+
+	private String lineEnding;
+
+	/**
+	 * Initializes the format.
+	 * @param charset The charset, which must not write a byte order mark of its
+	 * own.
+	 * @param byteOrderMark The byte order mark, or an empty array for none.
+	 * @param lineEnding The line ending.
+	 */
+	public TextFormat(Charset charset, byte[] byteOrderMark, String lineEnding)
+	{
+		this.charset = charset;
+		this.byteOrderMark = byteOrderMark;
+		this.lineEnding = lineEnding;
+	}
+
+	public Charset getCharset()
+	{
+		return charset;
+	}
+
+	/**
+	 * @return The byte order mark, or an empty array for none.
+	 */
+	public byte[] getByteOrderMark()
+	{
+		return byteOrderMark;
+	}
+
+	/**
+	 * @return The line ending, which is <tt>"\n"</tt> or <tt>"\r\n"</tt>.
+	 */
+	public String getLineEnding()
+	{
+		return lineEnding;
+	}
+
+	@Override
+	public String toString()
+	{
+		return charset.name() + (byteOrderMark.length > 0 ? " with BOM" : "") +
+				(lineEnding.equals("\r\n") ? ", CRLF" : ", LF");
+	}
+}
@@ -0,0 +1,57 @@
+package com.mikehoffert.easyappend.model;
+
+import java.io.IOException;
+
+/**
+ * A stage of changes to a file, such as prepending text or inserting it next
+ * to an anchor. Transformers don't read or write the file themselves: each
+ * one declares how much of the file it needs, looks at what it needs through
+ * a {@link FileView} and records its changes as {@link Edits}. A file's
+ * transformers are run together, so the file is read at most once and written
+ * once however many there are, in the cheapest way their needs and edits
+ * allow (see {@link BufferedFile#write(java.io.File)}).
+ */
+public interface Transformer
+{
+	/**
+	 * How much of a file a transformer reads, from least to most.
+	 */
+	public enum Need
+	{
+		/**
+		 * Only the file's size and format, such as to add text at the start or
+		 * end.
+		 */
+		NOTHING,
+
+		/**
+		 * Lines from the start of the file, up to a point.
+		 */
+		HEAD,
+
+		/**
+		 * Lines from the end of the file, back to a point.
+		 */
+		TAIL,
+
+		/**
+		 * The entire decoded text, which is held in memory. The file is then
+		 * read into memory once, and written from it.
+		 */
+		CONTENTS
+	}
+
+	/**
+	 * @return How much of the file the transformer reads.
+	 */
+	Need getNeed();
+
+	/**
+	 * Records the transformer's changes to a file.
+	 * @param view The file, which should only be read as far as the need
+	 * declared.
+	 * @param edits Where to record the changes.
+	 * @throws IOException Could not read the file.
+	 */
+	void transform(FileView view, Edits edits) throws IOException;
+}
@@ -0,0 +1,430 @@
+package com.mikehoffert.easyappend.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds a unified diff of the edits to a file without reading the whole
+ * file. Only the lines the edits touch and a few lines of context around them
+ * are read and decoded. The line numbers in the hunk headers are found by
+ * counting the line feeds before each hunk, which only scans the bytes.
+ */
+class UnifiedDiff
+{
+	/**
+	 * The number of unchanged lines shown around each change.
+	 */
+	private static final int CONTEXT = 3;
+
+	/**
+	 * The most bytes read at once while looking for a line feed.
+	 */
+	private static final int WINDOW = 8 * 1024;
+
+	/**
+	 * The most bytes read at once while counting line feeds.
+	 */
+	private static final int COUNT_WINDOW = 64 * 1024;
+
+	/**
+	 * A line of text.
+	 */
+	private static class Line
+	{
+		final String text;
+
+		/**
+		 * False for the last line of a file that doesn't end with a line feed.
+		 */
+		final boolean terminated;
+
+		/**
+		 * The number of bytes in the line, including its line feed.
+		 */
+		final int length;
+
+		Line(String text, boolean terminated, int length)
+		{
+			this.text = text;
+			this.terminated = terminated;
+			this.length = length;
+		}
+
+		boolean sameAs(Line other)
+		{
+			return terminated == other.terminated && text.equals(other.text);
+		}
+	}
+
+	/**
+	 * Lines of the file that are replaced by other lines.
+	 */
+	private static class Change
+	{
+		/**
+		 * The bytes of the replaced lines.
+		 */
+		long from, to;
+
+		/**
+		 * The number of the first replaced line, counting from 1.
+		 */
+		long line;
+
+		List<Line> removed;
+
+		List<Line> added;
+
+		/**
+		 * @return The number of the first line after the change.
+		 */
+		long next()
+		{
+			return line + removed.size();
+		}
+	}
+
+	private final FileView view;
+
+	private final Charset charset;
+
+	/**
+	 * A line feed, as encoded in the file.
+	 */
+	private final byte[] lineFeed;
+
+	/**
+	 * Where line feeds have been counted up to.
+	 */
+	private long countedTo;
+
+	/**
+	 * The number of line feeds before {@link #countedTo}.
+	 */
+	private long lineFeeds = 0;
+
+	/**
+	 * @param view The file.
+	 */
+	UnifiedDiff(FileView view)
+	{
+		this.view = view;
+		charset = view.getCharset();
+		countedTo = view.getStart();
+
+		// Encoding two line feeds leaves out anything the encoder adds first,
+		// such as a byte order mark
+		byte[] single = "\n".getBytes(charset);
+		byte[] twice = "\n\n".getBytes(charset);
+		lineFeed = Arrays.copyOfRange(twice, single.length, twice.length);
+	}
+
+	/**
+	 * Builds the diff.
+	 * @param spans The edits, resolved into spans in order.
+	 * @param oldName The name of the file before the edits.
+	 * @param newName The name of the file after the edits.
+	 * @return The diff, or null if the edits don't change the text.
+	 * @throws IOException Could not read the file.
+	 */
+	String diff(List<Edits.Span> spans, String oldName, String newName) throws IOException
+	{
+		// Edits on the same lines are a single change
+		List<Change> changes = new ArrayList<>();
+		int i = 0;
+		while(i < spans.size())
+		{
+			long from = lineStart(spans.get(i).start);
+			long to = lineEnd(spans.get(i).end);
+			int j = i + 1;
+			while(j < spans.size() && lineStart(spans.get(j).start) < to)
+			{
+				to = Math.max(to, lineEnd(spans.get(j).end));
+				j++;
+			}
+
+			Change change = change(spans.subList(i, j), from, to);
+			if(change != null) changes.add(change);
+			i = j;
+		}
+
+		if(changes.isEmpty()) return null;
+
+		StringBuilder diff = new StringBuilder();
+		diff.append("--- ").append(oldName).append('\n');
+		diff.append("+++ ").append(newName).append('\n');
+
+		long delta = 0;
+		i = 0;
+		while(i < changes.size())
+		{
+			// Changes whose context would touch share a hunk
+			int end = i + 1;
+			while(end < changes.size() &&
+					changes.get(end).line - changes.get(end - 1).next() <= 2 * CONTEXT)
+			{
+				end++;
+			}
+
+			StringBuilder body = new StringBuilder();
+			List<Line> before = linesBefore(changes.get(i).from, CONTEXT);
+			long oldCount = 0;
+			long newCount = 0;
+			for(Line line : before) append(body, ' ', line);
+			oldCount += before.size();
+			newCount += before.size();
+
+			for(int k = i; k < end; k++)
+			{
+				Change change = changes.get(k);
+				if(k > i)
+				{
+					List<Line> between = split(read(changes.get(k - 1).to, change.from));
+					for(Line line : between) append(body, ' ', line);
+					oldCount += between.size();
+					newCount += between.size();
+				}
+
+				for(Line line : change.removed) append(body, '-', line);
+				for(Line line : change.added) append(body, '+', line);
+				oldCount += change.removed.size();
+				newCount += change.added.size();
+			}
+
+			List<Line> after = linesAfter(changes.get(end - 1).to, CONTEXT);
+			for(Line line : after) append(body, ' ', line);
+			oldCount += after.size();
+			newCount += after.size();
+
+			long oldStart = changes.get(i).line - before.size();
+			diff.append("@@ -").append(range(oldStart, oldCount)).append(" +")
+					.append(range(oldStart + delta, newCount)).append(" @@\n").append(body);
+			delta += newCount - oldCount;
+			i = end;
+		}
+
+		return diff.toString();
+	}
+
+	/**
+	 * Works out which lines some edits change.
+	 * @param spans The edits.
+	 * @param from The start of the first line they touch.
+	 * @param to The end of the last line they touch.
+	 * @return The change, or null if the lines are unchanged.
+	 * @throws IOException Could not read the file.
+	 */
+	private Change change(List<Edits.Span> spans, long from, long to) throws IOException
+	{
+		byte[] old = read(from, to);
+		ByteArrayOutputStream edited = new ByteArrayOutputStream();
+		long position = from;
+		for(Edits.Span span : spans)
+		{
+			edited.write(old, (int) (position - from), (int) (span.start - position));
+			edited.write(span.bytes, 0, span.bytes.length);
+			position = span.end;
+		}
+		edited.write(old, (int) (position - from), (int) (to - position));
+
+		List<Line> oldLines = split(old);
+		List<Line> newLines = split(edited.toByteArray());
+
+		// Lines the edits leave as they were are context instead
+		int shorter = Math.min(oldLines.size(), newLines.size());
+		int prefix = 0;
+		while(prefix < shorter && oldLines.get(prefix).sameAs(newLines.get(prefix))) prefix++;
+		int suffix = 0;
+		while(suffix < shorter - prefix && oldLines.get(oldLines.size() - 1 - suffix)
+				.sameAs(newLines.get(newLines.size() - 1 - suffix)))
+		{
+			suffix++;
+		}
+		if(prefix + suffix == oldLines.size() && prefix + suffix == newLines.size()) return null;
+
+		Change change = new Change();
+		change.from = from;
+		for(Line line : oldLines.subList(0, prefix)) change.from += line.length;
+		change.to = to;
+		for(Line line : oldLines.subList(oldLines.size() - suffix, oldLines.size()))
+		{
+			change.to -= line.length;
+		}
+		change.line = lineNumber(from) + prefix;
+		change.removed = oldLines.subList(prefix, oldLines.size() - suffix);
+		change.added = newLines.subList(prefix, newLines.size() - suffix);
+		return change;
+	}
+
+	/**
+	 * Appends a line of a hunk.
+	 */
+	private static void append(StringBuilder body, char prefix, Line line)
+	{
+		body.append(prefix).append(line.text).append('\n');
+		if(!line.terminated) body.append("\\ No newline at end of file\n");
+	}
+
+	/**
+	 * @return A hunk header's range, in which an empty range starts at the line
+	 * before it and a single line has no count.
+	 */
+	private static String range(long start, long count)
+	{
+		if(count == 0) return (start - 1) + ",0";
+		if(count == 1) return Long.toString(start);
+		return start + "," + count;
+	}
+
+	/**
+	 * @return Up to a number of lines before the start of a line.
+	 */
+	private List<Line> linesBefore(long position, int count) throws IOException
+	{
+		long from = position;
+		for(int i = 0; i < count && from > view.getStart(); i++) from = lineStart(from - 1);
+
+		return split(read(from, position));
+	}
+
+	/**
+	 * @return Up to a number of lines from the start of a line.
+	 */
+	private List<Line> linesAfter(long position, int count) throws IOException
+	{
+		long to = position;
+		for(int i = 0; i < count && to < view.getSize(); i++) to = lineEnd(to);
+
+		return split(read(position, to));
+	}
+
+	/**
+	 * @return The number of the line starting at a position, counting from 1.
+	 * Positions must not be before earlier ones.
+	 */
+	private long lineNumber(long position) throws IOException
+	{
+		while(countedTo < position)
+		{
+			long to = Math.min(position, countedTo + align(COUNT_WINDOW));
+			byte[] bytes = read(countedTo, to);
+			for(int i = 0; i + lineFeed.length <= bytes.length; i += lineFeed.length)
+			{
+				if(isLineFeed(bytes, i)) lineFeeds++;
+			}
+			countedTo = to;
+		}
+
+		return lineFeeds + 1;
+	}
+
+	/**
+	 * @return The start of the line containing a position: just after the
+	 * last line feed that ends at or before it.
+	 */
+	private long lineStart(long position) throws IOException
+	{
+		long start = view.getStart();
+		long end = start + align(position - start);
+		while(end > start)
+		{
+			long from = Math.max(start, end - align(WINDOW));
+			byte[] bytes = read(from, end);
+			for(int i = bytes.length - lineFeed.length; i >= 0; i -= lineFeed.length)
+			{
+				if(isLineFeed(bytes, i)) return from + i + lineFeed.length;
+			}
+			end = from;
+		}
+
+		return start;
+	}
+
+	/**
+	 * @return The end of the line containing a position: just after the first
+	 * line feed that starts at or after it, or the end of the file.
+	 */
+	private long lineEnd(long position) throws IOException
+	{
+		long start = view.getStart();
+		long from = start + align(position - start + lineFeed.length - 1);
+		while(from < view.getSize())
+		{
+			long to = Math.min(view.getSize(), from + align(WINDOW));
+			byte[] bytes = read(from, to);
+			for(int i = 0; i + lineFeed.length <= bytes.length; i += lineFeed.length)
+			{
+				if(isLineFeed(bytes, i)) return from + i + lineFeed.length;
+			}
+			from = to;
+		}
+
+		return view.getSize();
+	}
+
+	/**
+	 * @return A distance rounded down to a whole number of line feeds, so that
+	 * line feeds are only looked for where characters start.
+	 */
+	private long align(long distance)
+	{
+		return distance - distance % lineFeed.length;
+	}
+
+	private boolean isLineFeed(byte[] bytes, int index)
+	{
+		for(int i = 0; i < lineFeed.length; i++)
+		{
+			if(bytes[index + i] != lineFeed[i]) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Splits bytes that start at the start of a line into lines.
+	 */
+	private List<Line> split(byte[] bytes)
+	{
+		List<Line> lines = new ArrayList<>();
+		int start = 0;
+		for(int i = 0; i + lineFeed.length <= bytes.length; i += lineFeed.length)
+		{
+			if(isLineFeed(bytes, i))
+			{
+				lines.add(new Line(new String(bytes, start, i - start, charset), true,
+						i + lineFeed.length - start));
+				start = i + lineFeed.length;
+			}
+		}
+		if(start < bytes.length)
+		{
+			lines.add(new Line(new String(bytes, start, bytes.length - start, charset), false,
+					bytes.length - start));
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Reads part of the file.
+	 */
+	private byte[] read(long from, long to) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+		while(buffer.hasRemaining())
+		{
+			if(view.getChannel().read(buffer, from + buffer.position()) < 0)
+			{
+				throw new IOException("File shrank while reading.");
+			}
+		}
+
+		return buffer.array();
+	}
+}
@@ -1,25 +1,44 @@
 package com.mikehoffert.easyappend.view;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.StandardCharsets;
 import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collection;
-import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.commons.io.FileUtils;
 
-import com.google.common.base.Charsets;
-import com.google.common.io.Files;
 import com.mikehoffert.easyappend.control.Controller;
+import com.mikehoffert.easyappend.control.DirectoryRules;
+import com.mikehoffert.easyappend.control.FileWalker;
 import com.mikehoffert.easyappend.control.Message;
 import com.mikehoffert.easyappend.control.Observer;
+import com.mikehoffert.easyappend.control.Stats;
 import com.mikehoffert.easyappend.control.TextAddition;
+import com.mikehoffert.easyappend.control.Watcher;
 import com.mikehoffert.easyappend.model.BufferedFile;
+import com.mikehoffert.easyappend.model.Durability;
+import com.mikehoffert.easyappend.model.SegmentedMatcher;
 
 /**
  * A command line interface for interacting with the control classes.
@@ -28,6 +47,32 @@ public class CommandLineInterface implements Observer
 {
 	private static final int LINE_WIDTH = 80;
 	
+	/**
+	 * Classpath location of the help text.
+	 */
+	private static final String HELP_RESOURCE = "/help_text.txt";
+	
+	/**
+	 * The most files worked on at once with <tt>--jobs=auto</tt>.
+	 */
+	private static final int AUTO_MAX_JOBS = 64;
+	
+	/**
+	 * The most files in flight with <tt>--async</tt>.
+	 */
+	private static final int DEFAULT_ASYNC_IN_FLIGHT = 64;
+	
+	/**
+	 * The name of the rule files read with <tt>--rules</tt>.
+	 */
+	private static final String DEFAULT_RULE_FILE_NAME = ".easyappend";
+	
+	/**
+	 * Wrapper for verbose messages. Created on the first message so that
+	 * non-verbose runs never load Guava.
+	 */
+	private TextWrapper wrapper = null;
+	
 	/**
 	 * The controller used to interact with the system.
 	 */
@@ -55,16 +100,135 @@ public class CommandLineInterface implements Observer
 	 */
 	private boolean recursiveMode = false;
 	
+	/**
+	 * Patterns that files found in recursive mode must match.
+	 */
+	private List<String> includes = new ArrayList<>();
+	
+	/**
+	 * Patterns of files and folders to skip in recursive mode.
+	 */
+	private List<String> excludes = new ArrayList<>();
+	
+	/**
+	 * The name of the ignore files to obey in recursive mode, or null for none.
+	 */
+	private String ignoreFileName = null;
+	
+	/**
+	 * The name of the rule files that define text additions for their folders
+	 * in recursive mode, or null for none.
+	 */
+	private String ruleFileName = null;
+	
+	/**
+	 * The additions rule files define for each folder. Created when first
+	 * needed, which is only once all the arguments are parsed, since it keeps
+	 * a copy of the command line's additions.
+	 */
+	private DirectoryRules rules = null;
+	
+	/**
+	 * True once all the arguments have been parsed.
+	 */
+	private boolean parsed = false;
+	
+	/**
+	 * The files and folders listed on the command line, in order. They are
+	 * added once all the options have been parsed.
+	 */
+	private List<File> listed = new ArrayList<>();
+	
+	/**
+	 * True if backups are made or restored, so that recursive mode skips the
+	 * backups of earlier runs.
+	 */
+	private boolean skipBackups = false;
+	
+	/**
+	 * The folder backups are kept in, or null if they are kept next to the
+	 * files.
+	 */
+	private Path backupDirectory = null;
+	
+	/**
+	 * Walks folders in recursive mode. Created when first needed, once the
+	 * patterns are known.
+	 */
+	private FileWalker walker = null;
+	
 	/**
 	 * True if running a test and program shouldn't exit (even if error occurred).
 	 */
 	private static boolean testing = false;
 	
+	/**
+	 * The longest a shutdown (such as from Ctrl-C) waits for the files being
+	 * written in watch mode to be committed and the stats to be written.
+	 */
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+	
+	/**
+	 * Counted down once the files have been written and the stats reported.
+	 */
+	private final CountDownLatch finished = new CountDownLatch(1);
+	
 	/**
 	 * The charset to use for all files. Defaults to UTF-8.
 	 */
 	private Charset charset = StandardCharsets.UTF_8;
 	
+	/**
+	 * Location of a list of NUL-delimited paths to stream in, or "-" for
+	 * standard input. Null if not used.
+	 */
+	private String filesFrom = null;
+	
+	/**
+	 * Location of a JSON lines job manifest to stream in, or "-" for standard
+	 * input. Null if not used.
+	 */
+	private String manifest = null;
+	
+	/**
+	 * The backup folder to roll back a run from. Null if not restoring from a
+	 * backup folder.
+	 */
+	private Path restoreFrom = null;
+	
+	/**
+	 * If true, listed folders are watched for changes instead of being added.
+	 */
+	private boolean watch = false;
+	
+	/**
+	 * How long a changed file must be left unchanged before it is modified in
+	 * watch mode.
+	 */
+	private long debounceMillis = Watcher.DEFAULT_DEBOUNCE_MILLIS;
+	
+	/**
+	 * The folders to watch.
+	 */
+	private List<Path> watchRoots = new ArrayList<>();
+	
+	/**
+	 * Where to write the stats of the run, or "-" for standard output. Null if
+	 * the stats aren't written.
+	 */
+	private String statsLocation = null;
+	
+	/**
+	 * If true, the listed files are stats files to merge instead of files to
+	 * modify.
+	 */
+	private boolean mergeStats = false;
+	
+	/**
+	 * The stats files to merge.
+	 */
+	private List<File> statsFiles = new ArrayList<>();
+	
 	public static void main(String[] args)
 	{
 		CommandLineInterface cli = new CommandLineInterface();
@@ -123,11 +287,51 @@ public class CommandLineInterface implements Observer
 			{
 				i = createTextAddition(args, i, false);
 			}
+			else if(!filesOnly && args[i].equals("--async"))
+			{
+				controller.setAsync(DEFAULT_ASYNC_IN_FLIGHT);
+			}
+			else if(!filesOnly && args[i].startsWith("--async="))
+			{
+				parseAsync(args[i].substring(args[i].indexOf('=') + 1));
+			}
+			else if(!filesOnly && args[i].startsWith("--atomic"))
+			{
+				parseAtomic(args[i]);
+			}
+			else if(!filesOnly && args[i].equals("--backup"))
+			{
+				controller.setBackup(null);
+				skipBackups = true;
+				backupDirectory = null;
+			}
+			else if(!filesOnly && args[i].startsWith("--backup="))
+			{
+				backupDirectory = Paths.get(args[i].substring(args[i].indexOf('=') + 1));
+				controller.setBackup(backupDirectory);
+				skipBackups = true;
+			}
+			else if(!filesOnly && args[i].equals("--binary"))
+			{
+				controller.setSkipBinary(false);
+			}
+			else if(!filesOnly && args[i].equals("--skip-invalid-utf8"))
+			{
+				controller.setSkipInvalidUtf8(true);
+			}
+			else if(!filesOnly && args[i].startsWith("--buffer-pool="))
+			{
+				parseBufferPool(args[i].substring(args[i].indexOf('=') + 1));
+			}
 			else if(!filesOnly && args[i].startsWith("--charset"))
 			{
 				String[] charsetString = args[i].split("=");
 				
-				if(charsetString.length > 0)
+				if(charsetString.length > 1 && charsetString[1].equals("auto"))
+				{
+					controller.setDetectFormat(true);
+				}
+				else if(charsetString.length > 0)
 				{
 					try
 					{
@@ -151,35 +355,159 @@ public class CommandLineInterface implements Observer
 				controller.setDryRun(true);
 				verbose = true;
 			}
+			else if(!filesOnly && args[i].equals("--diff"))
+			{
+				controller.setDryRun(true);
+				controller.setDiff(new PrintWriter(new OutputStreamWriter(System.out,
+						StandardCharsets.UTF_8)));
+			}
+			else if(!filesOnly && args[i].startsWith("--files-from="))
+			{
+				filesFrom = args[i].substring(args[i].indexOf('=') + 1);
+			}
+			else if(!filesOnly && args[i].equals("--gzip"))
+			{
+				controller.setGzip(true);
+			}
 			else if(!filesOnly && (args[i].equals("--help") || args[i].equals("-h")))
 			{
 				displayHelp();
 			}
+			else if(!filesOnly && args[i].equals("--in-place"))
+			{
+				controller.setInPlace(true, true);
+			}
+			else if(!filesOnly && args[i].equals("--in-place=nojournal"))
+			{
+				controller.setInPlace(true, false);
+			}
+			else if(!filesOnly && args[i].startsWith("--insert-after="))
+			{
+				i = createInsertion(args, i, false);
+			}
+			else if(!filesOnly && args[i].startsWith("--insert-before="))
+			{
+				i = createInsertion(args, i, true);
+			}
+			else if(!filesOnly && args[i].startsWith("--jobs="))
+			{
+				parseJobs(args[i].substring(args[i].indexOf('=') + 1));
+			}
 			else if(!filesOnly && args[i].startsWith("--location"))
 			{
 				String[] locationString = args[i].split("=");
 				
 				if(locationString.length > 0)
 				{
-					controller.setLocation(Paths.get(locationString[1]));
+					try
+					{
+						// Each use adds another location to write to
+						controller.addLocation(Paths.get(locationString[1]));
+					}
+					catch(IllegalArgumentException e)
+					{
+						System.err.println(e.getMessage());
+						malformedArguments = true;
+					}
 				}
 				else
 				{
 					malformedArguments = true;
 				}
 			}
+			else if(!filesOnly && args[i].startsWith("--manifest="))
+			{
+				manifest = args[i].substring(args[i].indexOf('=') + 1);
+			}
+			else if(!filesOnly && args[i].equals("--parallel-regex"))
+			{
+				controller.setParallelRegex(SegmentedMatcher.DEFAULT_OVERLAP);
+			}
+			else if(!filesOnly && args[i].startsWith("--parallel-regex="))
+			{
+				parseParallelRegex(args[i].substring(args[i].indexOf('=') + 1));
+			}
 			else if(!filesOnly && args[i].equals("--prepend"))
 			{
 				i = createTextAddition(args, i, true);
 			}
+			else if(!filesOnly && args[i].equals("--restore"))
+			{
+				controller.setRestore(true);
+				skipBackups = true;
+			}
+			else if(!filesOnly && args[i].startsWith("--restore="))
+			{
+				restoreFrom = Paths.get(args[i].substring(args[i].indexOf('=') + 1));
+			}
 			else if(!filesOnly && (args[i].equals("--recursive") || args[i].equals("-r")))
 			{
 				recursiveMode = true;
 			}
+			else if(!filesOnly && args[i].startsWith("--include="))
+			{
+				includes.add(args[i].substring(args[i].indexOf('=') + 1));
+			}
+			else if(!filesOnly && args[i].startsWith("--exclude="))
+			{
+				excludes.add(args[i].substring(args[i].indexOf('=') + 1));
+			}
+			else if(!filesOnly && args[i].startsWith("--ignore-file="))
+			{
+				ignoreFileName = args[i].substring(args[i].indexOf('=') + 1);
+			}
+			else if(!filesOnly && args[i].equals("--rules"))
+			{
+				ruleFileName = DEFAULT_RULE_FILE_NAME;
+			}
+			else if(!filesOnly && args[i].startsWith("--rules="))
+			{
+				ruleFileName = args[i].substring(args[i].indexOf('=') + 1);
+			}
 			else if(!filesOnly && (args[i].equals("--verbose") || args[i].equals("-v")))
 			{
 				verbose = true;
 			}
+			else if(!filesOnly && args[i].equals("--schedule=locality"))
+			{
+				controller.setLocalitySchedule(true);
+			}
+			else if(!filesOnly && args[i].equals("--schedule=listed"))
+			{
+				controller.setLocalitySchedule(false);
+			}
+			else if(!filesOnly && args[i].startsWith("--shard="))
+			{
+				parseShard(args[i].substring(args[i].indexOf('=') + 1));
+			}
+			else if(!filesOnly && args[i].equals("--stats"))
+			{
+				statsLocation = "-";
+			}
+			else if(!filesOnly && args[i].startsWith("--stats="))
+			{
+				statsLocation = args[i].substring(args[i].indexOf('=') + 1);
+			}
+			else if(!filesOnly && args[i].equals("--merge-stats"))
+			{
+				mergeStats = true;
+			}
+			else if(!filesOnly && args[i].equals("--watch"))
+			{
+				watch = true;
+			}
+			else if(!filesOnly && args[i].startsWith("--watch="))
+			{
+				watch = true;
+				try
+				{
+					debounceMillis = Long.parseLong(args[i].substring(args[i].indexOf('=') + 1));
+				}
+				catch(NumberFormatException e)
+				{
+					malformedArguments = true;
+				}
+			}
 			else if(!filesOnly && args[i].equals("--"))
 			{
 				// Symbolizes that all further tokens must be file names
@@ -197,30 +525,9 @@ public class CommandLineInterface implements Observer
 			else
 			{
 				File file = new File(args[i]);
-				if(file.isFile())
-				{
-					controller.addFile(new BufferedFile(file));
-				}
-				else if(file.isDirectory())
+				if(file.isFile() || file.isDirectory())
 				{
-					// We only allow specifying directories if recursive mode is
-					// on. This is a safety feature to prevent typos (etc) from
-					// accidentally modifying a large number of files.
-					if(recursiveMode)
-					{
-						Collection<File> contents = FileUtils.listFiles(file, null, true);
-						for(File content : contents)
-						{
-							controller.addFile(new BufferedFile(content));
-						}
-					}
-					else
-					{
-						System.err.println("In order to add directories, `--recursive`" +
-								" must be enabled.");
-						exitStatus = 5;
-						exit();
-					}
+					listed.add(file);
 				}
 				else
 				{
@@ -235,6 +542,321 @@ public class CommandLineInterface implements Observer
 				break;
 			}
 		}
+		
+		// Only one input can be read from standard input
+		if("-".equals(filesFrom) && "-".equals(manifest))
+		{
+			malformedArguments = true;
+		}
+		
+		// Listed folders are watched instead of walked, and listed files are
+		// merged instead of modified
+		for(Iterator<File> it = listed.iterator(); it.hasNext();)
+		{
+			File file = it.next();
+			if(file.isFile() && mergeStats)
+			{
+				statsFiles.add(file);
+				it.remove();
+			}
+			else if(file.isDirectory() && watch)
+			{
+				watchRoots.add(file.toPath());
+				it.remove();
+			}
+		}
+		
+		if(watch && watchRoots.isEmpty())
+		{
+			System.err.println("In order to watch, at least one folder must be listed.");
+			malformedArguments = true;
+		}
+		
+		parsed = true;
+		if(!malformedArguments) addListed();
+	}
+	
+	/**
+	 * Adds the listed files, in the order they were listed, and walks the
+	 * listed folders. This is done once all the arguments are parsed, so that
+	 * options given after a folder (such as exclude patterns) still apply to
+	 * it.
+	 */
+	private void addListed()
+	{
+		for(File file : listed)
+		{
+			if(file.isFile())
+			{
+				controller.addFile(new BufferedFile(file));
+			}
+			// We only allow specifying directories if recursive mode is on.
+			// This is a safety feature to prevent typos (etc) from accidentally
+			// modifying a large number of files.
+			else if(recursiveMode)
+			{
+				try
+				{
+					final Path root = file.toPath();
+					getWalker().walk(file, new FileWalker.Visitor()
+					{
+						@Override
+						public void visit(File content)
+						{
+							if(isRuleFile(content)) return;
+							
+							BufferedFile walked = new BufferedFile(content);
+							walked.setWalked(true);
+							List<TextAddition> fileAdditions = getRules(content, root);
+							if(fileAdditions == null)
+							{
+								controller.addFile(walked);
+							}
+							else
+							{
+								controller.addFile(walked, fileAdditions);
+							}
+						}
+					});
+				}
+				catch(IOException e)
+				{
+					System.err.println("Could not list the files in " + file + ".");
+					exitStatus = 2;
+					exit();
+					return;
+				}
+			}
+			else
+			{
+				System.err.println("In order to add directories, `--recursive`" +
+						" must be enabled.");
+				exitStatus = 5;
+				exit();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Parses the <tt>--atomic</tt> flag, which may optionally specify the
+	 * durability as <tt>--atomic=&lt;none|fsync|group&gt;</tt>.
+	 * @param arg The argument.
+	 */
+	private void parseAtomic(String arg)
+	{
+		if(arg.equals("--atomic") || arg.equals("--atomic=none"))
+		{
+			controller.setAtomic(Durability.NONE);
+		}
+		else if(arg.equals("--atomic=fsync"))
+		{
+			controller.setAtomic(Durability.FILE);
+		}
+		else if(arg.equals("--atomic=group"))
+		{
+			controller.setAtomic(Durability.GROUP);
+		}
+		else
+		{
+			malformedArguments = true;
+		}
+	}
+	
+	/**
+	 * @return The walker for recursive mode.
+	 */
+	private FileWalker getWalker()
+	{
+		if(walker == null)
+		{
+			walker = new FileWalker(includes, excludes, ignoreFileName);
+			walker.setSkipBackups(skipBackups, backupDirectory);
+		}
+		return walker;
+	}
+	
+	/**
+	 * @param file A file found in recursive mode.
+	 * @return True if the file is a rule file, which text is never added to.
+	 */
+	private boolean isRuleFile(File file)
+	{
+		return ruleFileName != null && file.getName().equals(ruleFileName);
+	}
+	
+	/**
+	 * Determines the additions for a file found in recursive mode, from the
+	 * rule files in the folders from the walked folder down to the file's.
+	 * @param file The file.
+	 * @param root The walked folder.
+	 * @return The additions, or null if rule files aren't used (so the
+	 * command line's additions apply).
+	 */
+	private List<TextAddition> getRules(File file, Path root)
+	{
+		if(ruleFileName == null) return null;
+		
+		try
+		{
+			return getDirectoryRules().forDirectory(file.getAbsoluteFile().toPath().getParent(),
+					root);
+		}
+		catch(IOException e)
+		{
+			System.err.println("Could not read the rule files: " + e.getMessage());
+			exitStatus = 6;
+			exit();
+			return Collections.<TextAddition>emptyList();
+		}
+	}
+	
+	/**
+	 * @return The additions that rule files define for each folder, or null
+	 * if rule files aren't used.
+	 */
+	private DirectoryRules getDirectoryRules()
+	{
+		if(ruleFileName == null) return null;
+		if(!parsed) throw new IllegalStateException("Rules are needed before parsing is done.");
+		
+		if(rules == null)
+		{
+			rules = new DirectoryRules(ruleFileName, new DirectoryRules.Reader()
+			{
+				@Override
+				public DirectoryRules.Rules read(Path ruleFile) throws IOException
+				{
+					return Manifest.readRules(ruleFile, charset);
+				}
+			}, controller.getAdditions());
+		}
+		
+		return rules;
+	}
+	
+	/**
+	 * Parses the shard of the job to handle, in the form <tt>i/n</tt>, where
+	 * shards are numbered from 1 to n.
+	 * @param shard The shard.
+	 */
+	private void parseShard(String shard)
+	{
+		String[] parts = shard.split("/");
+		try
+		{
+			int index = Integer.parseInt(parts[0]);
+			int count = Integer.parseInt(parts[1]);
+			if(parts.length == 2 && index >= 1 && index <= count)
+			{
+				controller.setShard(index - 1, count);
+				return;
+			}
+		}
+		catch(NumberFormatException | IndexOutOfBoundsException e)
+		{
+			// Handled below
+		}
+		
+		malformedArguments = true;
+	}
+	
+	/**
+	 * Parses how much memory to keep in free buffers, in megabytes.
+	 * @param megabytes The value of the <tt>--buffer-pool</tt> flag.
+	 */
+	private void parseBufferPool(String megabytes)
+	{
+		try
+		{
+			long size = Long.parseLong(megabytes);
+			if(size >= 0)
+			{
+				controller.setBufferPool(size * 1024 * 1024);
+				return;
+			}
+		}
+		catch(NumberFormatException e)
+		{
+			// Handled below
+		}
+		
+		malformedArguments = true;
+	}
+	
+	/**
+	 * Parses how far past its end each segment is scanned when finding regexes
+	 * in segments at once.
+	 * @param overlap The value of the <tt>--parallel-regex</tt> flag, in chars.
+	 */
+	private void parseParallelRegex(String overlap)
+	{
+		try
+		{
+			int chars = Integer.parseInt(overlap);
+			if(chars >= 0)
+			{
+				controller.setParallelRegex(chars);
+				return;
+			}
+		}
+		catch(NumberFormatException e)
+		{
+			// Handled below
+		}
+		
+		malformedArguments = true;
+	}
+	
+	/**
+	 * Parses the most files to keep in flight with asynchronous I/O.
+	 * @param inFlight The value of the <tt>--async</tt> flag.
+	 */
+	private void parseAsync(String inFlight)
+	{
+		try
+		{
+			int count = Integer.parseInt(inFlight);
+			if(count >= 1)
+			{
+				controller.setAsync(count);
+				return;
+			}
+		}
+		catch(NumberFormatException e)
+		{
+			// Handled below
+		}
+		
+		malformedArguments = true;
+	}
+	
+	/**
+	 * Parses the number of files to work on at once, which is either a fixed
+	 * number, a range <tt>min-max</tt> to adjust within, or <tt>auto</tt>.
+	 * @param jobs The value of the <tt>--jobs</tt> flag.
+	 */
+	private void parseJobs(String jobs)
+	{
+		if(jobs.equals("auto")) jobs = "1-" + AUTO_MAX_JOBS;
+		
+		String[] parts = jobs.split("-");
+		try
+		{
+			int min = Integer.parseInt(parts[0]);
+			int max = Integer.parseInt(parts[parts.length - 1]);
+			if(parts.length <= 2 && min >= 1 && min <= max)
+			{
+				controller.setJobs(min, max);
+				return;
+			}
+		}
+		catch(NumberFormatException e)
+		{
+			// Handled below
+		}
+		
+		malformedArguments = true;
 	}
 	
 	/**
@@ -247,6 +869,49 @@ public class CommandLineInterface implements Observer
 	 * @return New value of <tt>i</tt> after reading this block.
 	 */
 	private int createTextAddition(String[] args, int i, boolean prepend)
+	{
+		return createTextAddition(args, i, prepend, null, false);
+	}
+	
+	/**
+	 * Creates a text addition block that inserts text next to a line matching
+	 * an anchor.
+	 * @param args The arguments.
+	 * @param i The index of the <tt>--insert-after</tt> or
+	 * <tt>--insert-before</tt> flag.
+	 * @param anchorLast True to insert before the last matching line, false to
+	 * insert after the first.
+	 * @return The index of the last argument in the block.
+	 */
+	private int createInsertion(String[] args, int i, boolean anchorLast)
+	{
+		String anchor = args[i].substring(args[i].indexOf('=') + 1);
+		try
+		{
+			Pattern.compile(anchor);
+		}
+		catch(PatternSyntaxException e)
+		{
+			System.err.println("The supplied anchor is not a valid regex.");
+			malformedArguments = true;
+		}
+		
+		return createTextAddition(args, i, false, anchor, anchorLast);
+	}
+	
+	/**
+	 * Creates a text addition block.
+	 * @param args The arguments.
+	 * @param i The index of the flag that starts the block.
+	 * @param prepend True to prepend the text, false to append it.
+	 * @param anchor The regex of a line to insert the text next to, or null to
+	 * prepend or append it.
+	 * @param anchorLast True to insert before the last matching line, false to
+	 * insert after the first.
+	 * @return The index of the last argument in the block.
+	 */
+	private int createTextAddition(String[] args, int i, boolean prepend, String anchor,
+			boolean anchorLast)
 	{
 		String text = null;
 		String contains = null;
@@ -305,7 +970,8 @@ public class CommandLineInterface implements Observer
 			malformedArguments = true;
 		}
 		
-		controller.addText(new TextAddition(text, contains, inverted, prepend, sameLine));
+		controller.addText(anchor == null ? new TextAddition(text, contains, inverted, prepend,
+				sameLine) : new TextAddition(text, contains, inverted, sameLine, anchor, anchorLast));
 		
 		return i;
 	}
@@ -323,9 +989,34 @@ public class CommandLineInterface implements Observer
 			return;
 		}
 		
+		if(mergeStats)
+		{
+			writeMergedStats();
+			return;
+		}
+		
+		if(restoreFrom != null)
+		{
+			try
+			{
+				controller.restoreFrom(restoreFrom);
+			}
+			catch(IOException e)
+			{
+				System.err.println("Could not restore from the backup folder.");
+				exitStatus = 3;
+				return;
+			}
+		}
+		
 		try
 		{
 			controller.writeFiles();
+			
+			if(filesFrom != null) streamFileList();
+			if(manifest != null) streamManifest();
+			
+			if(watch) watch();
 		}
 		catch(FileNotFoundException e)
 		{
@@ -337,6 +1028,224 @@ public class CommandLineInterface implements Observer
 			System.err.println("Could not write the output file(s).");
 			exitStatus = 3;
 		}
+		
+		// Commit whatever was written, even if some files failed
+		try
+		{
+			controller.finish();
+		}
+		catch(IOException e)
+		{
+			System.err.println("Could not write the output file(s).");
+			exitStatus = 3;
+		}
+		
+		long skipped = controller.getStats().get("files.skipped.binary");
+		if(skipped > 0)
+		{
+			System.err.println("Skipped " + skipped + " file(s) that look like binary files. " +
+					"Use `--binary` to add text to them, or `--verbose` to list them.");
+		}
+		
+		if(statsLocation != null) writeStats(controller.getStats());
+		finished.countDown();
+	}
+	
+	/**
+	 * Watches the folders until the program is stopped, such as by Ctrl-C.
+	 * Stopping it lets the files that were written be committed and the stats
+	 * be reported before exiting.
+	 * @throws IOException Could not watch the folders or write a file.
+	 */
+	private void watch() throws IOException
+	{
+		final Watcher watcher = new Watcher(controller, watchRoots, debounceMillis);
+		watcher.setWalker(getWalker());
+		watcher.setRules(getDirectoryRules());
+		Runtime.getRuntime().addShutdownHook(new Thread("easy-append-shutdown")
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					watcher.stop();
+					finished.await(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				}
+				catch(IOException e)
+				{
+					System.err.println("Could not stop watching.");
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		
+		watcher.run();
+	}
+	
+	/**
+	 * Writes the stats of the run to the stats location.
+	 * @param stats The stats.
+	 */
+	private void writeStats(Stats stats)
+	{
+		if(statsLocation.equals("-"))
+		{
+			stats.write(new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+			return;
+		}
+		
+		try(PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(statsLocation),
+				StandardCharsets.UTF_8)))
+		{
+			stats.write(writer);
+		}
+		catch(IOException e)
+		{
+			System.err.println("Could not write the stats.");
+			exitStatus = 3;
+		}
+	}
+	
+	/**
+	 * Merges the listed stats files (such as from the shards of a job) and
+	 * writes the result.
+	 */
+	private void writeMergedStats()
+	{
+		Stats merged = new Stats();
+		for(File file : statsFiles)
+		{
+			try(Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+			{
+				merged.merge(Stats.read(reader));
+			}
+			catch(IOException e)
+			{
+				System.err.println("Could not read the stats file " + file + ".");
+				exitStatus = 6;
+				return;
+			}
+		}
+		
+		if(statsLocation == null) statsLocation = "-";
+		writeStats(merged);
+	}
+	
+	/**
+	 * Opens a streamed input.
+	 * @param location The location of the input, or "-" for standard input.
+	 * @return The stream.
+	 * @throws FileNotFoundException The input does not exist.
+	 */
+	private static InputStream openInput(String location) throws FileNotFoundException
+	{
+		return location.equals("-") ? System.in : new FileInputStream(location);
+	}
+	
+	/**
+	 * Writes each file of the NUL-delimited file list as its path arrives.
+	 */
+	private void streamFileList()
+	{
+		try(PathStream paths = new PathStream(openInput(filesFrom), Charset.defaultCharset()))
+		{
+			String path;
+			while((path = paths.next()) != null)
+			{
+				if(!writeStreamedFile(new File(path), null)) return;
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println("Could not read the file list: " + e.getMessage());
+			exitStatus = 6;
+		}
+	}
+	
+	/**
+	 * Writes each file named in the job manifest as its line arrives.
+	 */
+	private void streamManifest()
+	{
+		try(Manifest lines = new Manifest(new BufferedReader(new InputStreamReader(
+				openInput(manifest), StandardCharsets.UTF_8)), charset))
+		{
+			Manifest.Entry entry;
+			while((entry = lines.next()) != null)
+			{
+				for(String path : entry.getPaths())
+				{
+					if(!writeStreamedFile(new File(path), entry.getAdditions())) return;
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println("Could not read the manifest: " + e.getMessage());
+			exitStatus = 6;
+		}
+	}
+	
+	/**
+	 * Writes a single streamed file (or the files inside a streamed directory,
+	 * in recursive mode). Files that do not exist are reported and skipped, so
+	 * that one bad path doesn't stop a large job.
+	 * @param file The file to write.
+	 * @param additions The additions to apply, or null for the additions from
+	 * the command line.
+	 * @return False if writing failed and the stream should be abandoned.
+	 */
+	private boolean writeStreamedFile(File file, final List<TextAddition> additions)
+	{
+		try
+		{
+			if(file.isFile())
+			{
+				controller.writeFile(new BufferedFile(file), additions);
+			}
+			else if(file.isDirectory() && recursiveMode)
+			{
+				final Path root = file.toPath();
+				getWalker().walk(file, new FileWalker.Visitor()
+				{
+					@Override
+					public void visit(File content) throws IOException
+					{
+						if(isRuleFile(content)) return;
+						
+						// Rule files only apply along with the command line's
+						// additions
+						BufferedFile walked = new BufferedFile(content);
+						walked.setWalked(true);
+						controller.writeFile(walked, additions != null ? additions :
+								getRules(content, root));
+					}
+				});
+			}
+			else if(file.isDirectory())
+			{
+				System.err.println("Skipping directory " + file + ", as `--recursive`" +
+						" is not enabled.");
+				exitStatus = 5;
+			}
+			else
+			{
+				System.err.println("Skipping " + file + ", which does not exist.");
+				exitStatus = 2;
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println("Could not write the output file(s).");
+			exitStatus = 3;
+			return false;
+		}
+		
+		return true;
 	}
 	
 	/**
@@ -352,31 +1261,65 @@ public class CommandLineInterface implements Observer
 	 */
 	private void displayHelp()
 	{
-		// The help text content is located in a separate file, for ease of
-		// formatting and modification.
-		String text = "";
-		try(Scanner scanner = new Scanner(new File("resource/help_text.txt")))
+		String text = HelpText.get();
+		if(text == null)
 		{
-			while(scanner.hasNextLine()) text += scanner.nextLine() + "\n";
+			System.err.println("Couldn't open the help file. Something is horribly wrong.");
 		}
-		catch(FileNotFoundException e)
+		else
 		{
-			System.err.println("Couldn't open the help file. Something is horribly wrong.");
+			System.out.println(text);
 		}
 		
-		System.out.println(text);
-		
 		// Exit, as `--help` cannot be combined with other arguments
 		exit();
 	}
+	
+	/**
+	 * Holder for the help text, which is bundled as a classpath resource. The
+	 * text is only loaded the first time that it is needed.
+	 */
+	private static class HelpText
+	{
+		private static final String TEXT = load();
+		
+		/**
+		 * @return The help text, or null if it could not be read.
+		 */
+		static String get()
+		{
+			return TEXT;
+		}
+		
+		private static String load()
+		{
+			InputStream stream = CommandLineInterface.class.getResourceAsStream(HELP_RESOURCE);
+			if(stream == null) return null;
+			
+			StringBuilder builder = new StringBuilder();
+			char[] buffer = new char[4096];
+			try(Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8))
+			{
+				int read;
+				while((read = reader.read(buffer)) != -1) builder.append(buffer, 0, read);
+			}
+			catch(IOException e)
+			{
+				return null;
+			}
+			
+			return builder.toString();
+		}
+	}
 
 	@Override
 	public void message(Message message)
 	{
 		if(verbose)
 		{
-			String output = TextWrapper.forWidth(LINE_WIDTH).hard()
-					.setIndentLevel(message.getLevel() * 3).wrap(message.getMessage());
+			if(wrapper == null) wrapper = TextWrapper.forWidth(LINE_WIDTH).hard();
+			String output = wrapper.setIndentLevel(message.getLevel() * 3)
+					.wrap(message.getMessage());
 			System.out.println(output);
 		}
 	}
@@ -0,0 +1,325 @@
+package com.mikehoffert.easyappend.view;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.mikehoffert.easyappend.control.DirectoryRules;
+import com.mikehoffert.easyappend.control.TextAddition;
+
+/**
+ * Reads a job manifest, which is a stream of JSON objects, one per line. Each
+ * line either names files to modify or defines a named group of text
+ * additions. Lines are read as they arrive, so the full manifest is never held
+ * in memory (only the groups are kept).<p>
+ *
+ * A group is defined with <tt>{"group": "license", "additions": [...]}</tt>.
+ * Files are specified with <tt>"path"</tt> (or a <tt>"paths"</tt> array) and
+ * optionally either a <tt>"group"</tt> that was defined on an earlier line or
+ * an inline <tt>"additions"</tt> array. Files without either use the text
+ * additions from the command line.<p>
+ *
+ * Additions are objects mirroring the command line blocks, such as
+ * <tt>{"type": "prepend", "contains": "^foo$", "invert": true,
+ * "same-line": false, "text": "foo"}</tt>, where <tt>"file"</tt> may be used in
+ * place of <tt>"text"</tt>.<p>
+ *
+ * Rule files (see {@link #readRules(Path, Charset)}) use the same additions.
+ */
+public class Manifest implements Closeable
+{
+	/**
+	 * Files named on a single manifest line and the additions to apply to them.
+	 */
+	public static class Entry
+	{
+		private List<String> paths;
+		private List<TextAddition> additions;
+
+		private Entry(List<String> paths, List<TextAddition> additions)
+		{
+			this.paths = paths;
+			this.additions = additions;
+		}
+
+		public List<String> getPaths()
+		{
+			return paths;
+		}
+
+		/**
+		 * @return The additions to apply, or null if the additions from the
+		 * command line should be used.
+		 */
+		public List<TextAddition> getAdditions()
+		{
+			return additions;
+		}
+	}
+
+	/**
+	 * The reader that lines are read from.
+	 */
+	private BufferedReader reader;
+
+	/**
+	 * The charset used to read text additions from files.
+	 */
+	private Charset charset;
+
+	/**
+	 * Groups of additions defined so far, by name.
+	 */
+	private Map<String, List<TextAddition>> groups = new HashMap<>();
+
+	/**
+	 * The number of the last line read, for error messages.
+	 */
+	private int lineNumber = 0;
+
+	/**
+	 * Initializes the manifest.
+	 * @param reader The reader to read lines from.
+	 * @param charset The charset used to read text additions from files.
+	 */
+	public Manifest(BufferedReader reader, Charset charset)
+	{
+		this.reader = reader;
+		this.charset = charset;
+	}
+
+	/**
+	 * Reads up to the next line that names files. Group definitions along the
+	 * way are remembered.
+	 * @return The next entry, or null if the end of the manifest was reached.
+	 * @throws IOException Could not read the manifest, or it is malformed.
+	 */
+	public Entry next() throws IOException
+	{
+		String line;
+		while((line = reader.readLine()) != null)
+		{
+			lineNumber++;
+			if(line.trim().isEmpty()) continue;
+
+			try
+			{
+				JsonObject object = JsonParser.parseString(line).getAsJsonObject();
+				Entry entry = parseLine(object);
+				if(entry != null) return entry;
+			}
+			catch(JsonParseException | IllegalStateException | UnsupportedOperationException e)
+			{
+				throw malformed(e.getMessage());
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Parses a single manifest line.
+	 * @param object The line's JSON object.
+	 * @return The entry, or null if the line only defined a group.
+	 * @throws IOException The line is malformed or refers to a text addition
+	 * file that can't be read.
+	 */
+	private Entry parseLine(JsonObject object) throws IOException
+	{
+		List<String> paths = new ArrayList<>();
+		if(object.has("path"))
+		{
+			paths.add(object.get("path").getAsString());
+		}
+		if(object.has("paths"))
+		{
+			for(JsonElement path : object.getAsJsonArray("paths"))
+			{
+				paths.add(path.getAsString());
+			}
+		}
+
+		String group = object.has("group") ? object.get("group").getAsString() : null;
+		List<TextAddition> additions = object.has("additions") ?
+				parseAdditions(object.getAsJsonArray("additions"), charset, null,
+				"manifest on line " + lineNumber) : null;
+
+		// Group definition
+		if(paths.isEmpty())
+		{
+			if(group == null || additions == null)
+			{
+				throw malformed("Expected a path or a group definition.");
+			}
+
+			groups.put(group, Collections.unmodifiableList(additions));
+			return null;
+		}
+
+		if(group != null)
+		{
+			if(additions != null)
+			{
+				throw malformed("Only one of a group or additions may be used.");
+			}
+
+			additions = groups.get(group);
+			if(additions == null)
+			{
+				throw malformed("Group \"" + group + "\" has not been defined.");
+			}
+		}
+
+		return new Entry(paths, additions);
+	}
+
+	/**
+	 * Reads a rule file, which defines the text additions for the folder it is
+	 * in and the folders below it. It is a single JSON object, such as
+	 * <tt>{"additions": [...], "inherit": false}</tt>, whose additions are the
+	 * same as a manifest's. Files named by <tt>"file"</tt> are relative to the
+	 * rule file's folder. Unless <tt>"inherit"</tt> is false, the additions
+	 * come after the ones from the folders above.
+	 * @param file The rule file, which is always UTF-8.
+	 * @param charset The charset used to read text additions from files.
+	 * @return The rules.
+	 * @throws IOException Could not read the rule file or a text addition file,
+	 * or the rule file is malformed.
+	 */
+	public static DirectoryRules.Rules readRules(Path file, Charset charset) throws IOException
+	{
+		String location = "rule file " + file;
+		try
+		{
+			JsonObject object = JsonParser.parseString(new String(Files.readAllBytes(file),
+					StandardCharsets.UTF_8)).getAsJsonObject();
+			if(!object.has("additions")) throw malformed(location, "Expected \"additions\".");
+			
+			boolean inherit = !object.has("inherit") || object.get("inherit").getAsBoolean();
+			return new DirectoryRules.Rules(parseAdditions(object.getAsJsonArray("additions"),
+					charset, file.toAbsolutePath().getParent(), location), inherit);
+		}
+		catch(JsonParseException | IllegalStateException | UnsupportedOperationException e)
+		{
+			throw malformed(location, e.getMessage());
+		}
+	}
+
+	/**
+	 * Parses an array of text additions.
+	 * @param array The JSON array.
+	 * @param charset The charset used to read text additions from files.
+	 * @param directory The folder that text addition files are relative to, or
+	 * null for the working directory.
+	 * @param location Where the additions are, for errors.
+	 * @return The text additions.
+	 * @throws IOException The additions are malformed, or a text addition file
+	 * can't be read.
+	 */
+	private static List<TextAddition> parseAdditions(JsonArray array, Charset charset,
+			Path directory, String location) throws IOException
+	{
+		List<TextAddition> additions = new ArrayList<>();
+		for(JsonElement element : array)
+		{
+			JsonObject object = element.getAsJsonObject();
+
+			String type = object.has("type") ? object.get("type").getAsString() : "";
+			boolean anchored = type.equals("insert-after") || type.equals("insert-before");
+			if(!type.equals("prepend") && !type.equals("append") && !anchored)
+			{
+				throw malformed(location, "Additions must have a type of \"prepend\", \"append\", " +
+						"\"insert-after\" or \"insert-before\".");
+			}
+			if(anchored)
+			{
+				if(!object.has("anchor")) throw malformed(location, "Insertions must have an \"anchor\".");
+				try
+				{
+					Pattern.compile(object.get("anchor").getAsString());
+				}
+				catch(PatternSyntaxException e)
+				{
+					throw malformed(location, "The anchor is not a valid regex.");
+				}
+			}
+
+			String text;
+			if(object.has("text"))
+			{
+				text = object.get("text").getAsString();
+			}
+			else if(object.has("file"))
+			{
+				Path path = new File(object.get("file").getAsString()).toPath();
+				if(directory != null) path = directory.resolve(path);
+				text = new String(Files.readAllBytes(path), charset);
+			}
+			else
+			{
+				throw malformed(location, "Additions must have a \"text\" or \"file\".");
+			}
+
+			String contains = object.has("contains") ? object.get("contains").getAsString() : null;
+			boolean inverted = object.has("invert") && object.get("invert").getAsBoolean();
+			boolean sameLine = object.has("same-line") && object.get("same-line").getAsBoolean();
+
+			if(anchored)
+			{
+				additions.add(new TextAddition(text, contains, inverted, sameLine,
+						object.get("anchor").getAsString(), type.equals("insert-before")));
+			}
+			else
+			{
+				additions.add(new TextAddition(text, contains, inverted, type.equals("prepend"),
+						sameLine));
+			}
+		}
+
+		return additions;
+	}
+
+	/**
+	 * Creates an exception for a malformed line.
+	 * @param reason Why the line is malformed.
+	 * @return The exception.
+	 */
+	private IOException malformed(String reason)
+	{
+		return malformed("manifest on line " + lineNumber, reason);
+	}
+
+	/**
+	 * Creates an exception for malformed JSON.
+	 * @param location Where the JSON is.
+	 * @param reason Why it is malformed.
+	 * @return The exception.
+	 */
+	private static IOException malformed(String location, String reason)
+	{
+		return new IOException("Malformed " + location + ": " + reason);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		reader.close();
+	}
+}
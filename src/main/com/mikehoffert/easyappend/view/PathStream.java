@@ -0,0 +1,83 @@
+package com.mikehoffert.easyappend.view;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads a stream of NUL-delimited paths, as produced by <tt>find -print0</tt>.
+ * Paths are read one at a time as they arrive, so the full list is never held
+ * in memory.
+ */
+public class PathStream implements Closeable
+{
+	/**
+	 * The stream the paths are read from.
+	 */
+	private InputStream input;
+
+	/**
+	 * The charset that paths are encoded in.
+	 */
+	private Charset charset;
+
+	/**
+	 * Holds the bytes of the path currently being read.
+	 */
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	/**
+	 * Initializes the path stream.
+	 * @param input The stream to read paths from.
+	 * @param charset The charset that paths are encoded in.
+	 */
+	public PathStream(InputStream input, Charset charset)
+	{
+		this.input = new BufferedInputStream(input);
+		this.charset = charset;
+	}
+
+	/**
+	 * Reads the next path. Blocks until a full path has arrived. Empty paths
+	 * are skipped, and a trailing path without a terminating NUL is accepted.
+	 * @return The next path, or null if the end of the stream was reached.
+	 * @throws IOException Could not read from the stream.
+	 */
+	public String next() throws IOException
+	{
+		int read;
+		while((read = input.read()) != -1)
+		{
+			if(read != 0)
+			{
+				buffer.write(read);
+			}
+			else if(buffer.size() > 0)
+			{
+				return takePath();
+			}
+		}
+
+		return buffer.size() > 0 ? takePath() : null;
+	}
+
+	/**
+	 * Decodes the buffered bytes as a path and clears the buffer.
+	 * @return The path.
+	 */
+	private String takePath()
+	{
+		String path = new String(buffer.toByteArray(), charset);
+		buffer.reset();
+		return path;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		input.close();
+	}
+}
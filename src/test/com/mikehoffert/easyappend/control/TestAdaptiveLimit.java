@@ -0,0 +1,155 @@
+package com.mikehoffert.easyappend.control;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestAdaptiveLimit
+{
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/**
+	 * The size of a small file.
+	 */
+	private static final long SMALL = 4096;
+
+	/**
+	 * The size of a large file, which is 256 times as much work to transfer as
+	 * a small one.
+	 */
+	private static final long LARGE = (long) (255 * AdaptiveLimit.BYTES_PER_FILE);
+
+	/**
+	 * Simulates a round of small files: as many as the limit allows are
+	 * started at once, then each finishes with the given latency.
+	 */
+	private static void round(AdaptiveLimit limit, long... latencies)
+			throws InterruptedException
+	{
+		int files = limit.getLimit();
+		for(int i = 0; i < files; i++) limit.acquire();
+		for(int i = 0; i < files; i++)
+		{
+			limit.release(latencies[Math.min(i, latencies.length - 1)], SMALL);
+		}
+	}
+
+	/**
+	 * Simulates a round of small files with a single large one among them,
+	 * which finishes first with the given latency.
+	 */
+	private static void largeRound(AdaptiveLimit limit, long latency)
+			throws InterruptedException
+	{
+		int files = limit.getLimit();
+		for(int i = 0; i < files; i++) limit.acquire();
+		limit.release(latency, LARGE);
+		for(int i = 1; i < files; i++) limit.release(FAST, SMALL);
+	}
+
+	@Test
+	public void testGrowsWhileFast() throws InterruptedException
+	{
+		AdaptiveLimit limit = new AdaptiveLimit(1, 8);
+		assertEquals(1, limit.getLimit());
+
+		// Each round reaches the limit without slowing down, so it grows by one
+		for(int i = 2; i <= 8; i++)
+		{
+			round(limit, FAST);
+			assertEquals(i, limit.getLimit());
+		}
+
+		// But never beyond the maximum
+		round(limit, FAST);
+		assertEquals(8, limit.getLimit());
+		assertEquals(8, limit.getPeak());
+	}
+
+	@Test
+	public void testBacksOffWhenSlow() throws InterruptedException
+	{
+		AdaptiveLimit limit = new AdaptiveLimit(1, 64);
+		while(limit.getLimit() < 16) round(limit, FAST);
+
+		// The storage saturates: the limit is cut by a quarter, and the files
+		// that were in flight with it don't cut it again
+		round(limit, SLOW);
+		assertEquals(12, limit.getLimit());
+		assertEquals(16, limit.getPeak());
+
+		// Once the slower latency is usual, the limit grows again
+		for(int i = 0; i < 100; i++) round(limit, SLOW);
+		assertTrue(limit.getLimit() > 12);
+	}
+
+	@Test
+	public void testSpikes() throws InterruptedException
+	{
+		AdaptiveLimit limit = new AdaptiveLimit(4, 32);
+
+		// A single slow file in each round keeps cutting the limit, but never
+		// below the minimum
+		for(int i = 0; i < 50; i++)
+		{
+			round(limit, FAST);
+			round(limit, 100 * FAST, FAST);
+			assertTrue(limit.getLimit() >= 4);
+		}
+		assertTrue(limit.getLimit() < 32);
+	}
+
+	@Test
+	public void testLargeFiles() throws InterruptedException
+	{
+		AdaptiveLimit limit = new AdaptiveLimit(1, 64);
+		while(limit.getLimit() < 16) round(limit, FAST);
+
+		// A large file takes much longer, but not for its size, so it doesn't
+		// look like saturation
+		for(int i = 17; i <= 24; i++)
+		{
+			largeRound(limit, 100 * FAST);
+			assertEquals(i, limit.getLimit());
+		}
+
+		// But one that is slow even for its size still cuts the limit
+		largeRound(limit, 1000 * FAST);
+		assertTrue(limit.getLimit() < 24);
+	}
+
+	@Test
+	public void testWaits() throws InterruptedException
+	{
+		final AdaptiveLimit limit = new AdaptiveLimit(1, 1);
+		limit.acquire();
+
+		Thread waiting = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					limit.acquire();
+				}
+				catch(InterruptedException e)
+				{
+					// Fails the test below
+				}
+			}
+		};
+		waiting.start();
+
+		// Only one file is allowed in flight until the first finishes
+		waiting.join(200);
+		assertTrue(waiting.isAlive());
+		limit.release(FAST, SMALL);
+		waiting.join(5000);
+		assertFalse(waiting.isAlive());
+	}
+}
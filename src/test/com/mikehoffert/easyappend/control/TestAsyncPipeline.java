@@ -0,0 +1,303 @@
+package com.mikehoffert.easyappend.control;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mikehoffert.easyappend.model.BufferPool;
+import com.mikehoffert.easyappend.model.BufferedFile;
+
+public class TestAsyncPipeline
+{
+	private static final String[] NAMES = { "a.txt", "b.txt", "sub/c.txt", "sub/d.txt" };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Records what happens to each file.
+	 */
+	private static class Recorder implements AsyncPipeline.Listener
+	{
+		final List<Path> written = Collections.synchronizedList(new ArrayList<Path>());
+		final List<Path> failed = Collections.synchronizedList(new ArrayList<Path>());
+		final List<Path> unchanged = Collections.synchronizedList(new ArrayList<Path>());
+
+		@Override
+		public void written(Path source, Path destination, Recipe.Result result)
+		{
+			written.add(source);
+		}
+
+		@Override
+		public void unchanged(Path source, Recipe.Result result)
+		{
+			unchanged.add(source);
+		}
+
+		@Override
+		public void skippedBinary(Path source)
+		{
+		}
+
+		@Override
+		public void failed(Path source, IOException e)
+		{
+			failed.add(source);
+		}
+	}
+
+	@Test
+	public void testPrepend() throws IOException
+	{
+		assertSameOutput(false, new TextAddition("P", null, false, true, false));
+	}
+
+	@Test
+	public void testAppend() throws IOException
+	{
+		// Only appending writes at the end without reading the whole file
+		assertSameOutput(false, new TextAddition("X", null, false, false, false),
+				new TextAddition("Y", "world", false, false, false));
+	}
+
+	@Test
+	public void testPrependAndAppend() throws IOException
+	{
+		assertSameOutput(false, new TextAddition("P", "^A", true, true, false),
+				new TextAddition("X", null, false, false, true));
+	}
+
+	@Test
+	public void testLocation() throws IOException
+	{
+		assertSameOutput(true, new TextAddition("P", null, false, true, false),
+				new TextAddition("X", null, false, false, false));
+	}
+
+	@Test
+	public void testUnchanged() throws IOException
+	{
+		Path file = write("a.txt", "A");
+		FileTime modified = FileTime.fromMillis(1000000000000L);
+		Files.setLastModifiedTime(file, modified);
+
+		// Nothing is added, so the file isn't written over itself
+		Recorder recorder = new Recorder();
+		try(AsyncPipeline pipeline = new AsyncPipeline(Recipe.compile(Arrays.asList(
+				new TextAddition("X", "zzz", false, false, false)), StandardCharsets.UTF_8), 4,
+				false, BufferPool.UNPOOLED, recorder))
+		{
+			assertTrue(pipeline.submit(file, file, false));
+			pipeline.await();
+		}
+
+		assertEquals(Arrays.asList(file), recorder.unchanged);
+		assertTrue(recorder.written.isEmpty());
+		assertEquals(modified, Files.getLastModifiedTime(file));
+	}
+
+	@Test
+	public void testLargeFile() throws IOException
+	{
+		Path large = folder.getRoot().toPath().resolve("large.txt");
+		byte[] contents = new byte[AsyncPipeline.MAX_BUFFERED_SIZE + 1];
+		Arrays.fill(contents, (byte) 'a');
+		Files.write(large, contents);
+
+		// Files too large to buffer are left to the regular path, unless
+		// they're only appended to
+		Recorder recorder = new Recorder();
+		try(AsyncPipeline pipeline = new AsyncPipeline(Recipe.compile(Arrays.asList(
+				new TextAddition("P", null, false, true, false)), StandardCharsets.UTF_8), 4,
+				false, BufferPool.UNPOOLED, recorder))
+		{
+			assertFalse(pipeline.submit(large, large, false));
+			pipeline.await();
+		}
+		try(AsyncPipeline pipeline = new AsyncPipeline(Recipe.compile(Arrays.asList(
+				new TextAddition("X", null, false, false, false)), StandardCharsets.UTF_8), 4,
+				false, BufferPool.UNPOOLED, recorder))
+		{
+			assertTrue(pipeline.submit(large, large, true));
+			pipeline.await();
+		}
+		assertEquals(Arrays.asList(large), recorder.written);
+		assertEquals(contents.length + 2, Files.size(large));
+
+		// The controller writes them the regular way
+		Controller controller = new Controller();
+		controller.addText(new TextAddition("P", null, false, true, false));
+		controller.setAsync(4);
+		controller.addFile(new BufferedFile(large.toFile()));
+		controller.writeFiles();
+		controller.finish();
+		assertEquals(1, controller.getStats().get("files.async.large"));
+		assertEquals(1, controller.getStats().get("files.written"));
+		assertEquals(contents.length + 4, Files.size(large));
+		assertEquals("P\na", new String(Arrays.copyOf(Files.readAllBytes(large), 3),
+				StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testErrors() throws IOException
+	{
+		Path good = write("good.txt", "A");
+		Path bad = write("bad.txt", "B");
+
+		// A regular file where a folder should be, so the output can't be made
+		Path blocked = write("blocked", "");
+
+		Recorder recorder = new Recorder();
+		BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_MAX_RETAINED);
+		try(AsyncPipeline pipeline = new AsyncPipeline(Recipe.compile(Arrays.asList(
+				new TextAddition("P", null, false, true, false)), StandardCharsets.UTF_8), 1,
+				false, bufferPool, recorder))
+		{
+			pipeline.submit(good, good, false);
+			pipeline.submit(bad, blocked.resolve("bad.txt"), false);
+			try
+			{
+				pipeline.await();
+				fail("Wrote into a file as if it were a folder.");
+			}
+			catch(IOException e)
+			{
+				// Expected
+			}
+
+			// No more files are started after one fails
+			try
+			{
+				pipeline.submit(good, good, false);
+				fail("Started a file after one failed.");
+			}
+			catch(IOException e)
+			{
+				// Expected
+			}
+		}
+
+		// Each file is reported on its own
+		assertEquals(Arrays.asList(good), recorder.written);
+		assertEquals(Arrays.asList(bad), recorder.failed);
+		assertEquals("P\nA", read(good));
+		assertEquals("B", read(bad));
+
+		// Both files were read into the same buffer, which came back even
+		// though the second one failed
+		assertEquals(1, bufferPool.getMisses());
+		assertEquals(1, bufferPool.getHits());
+		bufferPool.release(bufferPool.acquireBytes(1));
+		assertEquals(2, bufferPool.getHits());
+	}
+
+	@Test
+	public void testMissingFile() throws IOException
+	{
+		Path missing = folder.getRoot().toPath().resolve("missing.txt");
+		Recorder recorder = new Recorder();
+		try(AsyncPipeline pipeline = new AsyncPipeline(Recipe.compile(Arrays.asList(
+				new TextAddition("P", null, false, true, false)), StandardCharsets.UTF_8), 4,
+				false, BufferPool.UNPOOLED, recorder))
+		{
+			pipeline.submit(missing, missing, false);
+			fail("Opened a file that doesn't exist.");
+		}
+		catch(FileNotFoundException e)
+		{
+			// Expected
+		}
+
+		assertTrue(recorder.written.isEmpty());
+	}
+
+	/**
+	 * Writes the same files with and without asynchronous I/O, and checks
+	 * that the output is the same.
+	 * @param location True to write into another folder instead of in place.
+	 * @param additions The additions to apply.
+	 */
+	private void assertSameOutput(boolean location, TextAddition... additions)
+			throws IOException
+	{
+		File synchronous = write(folder.newFolder(), location, false, additions);
+		File asynchronous = write(folder.newFolder(), location, true, additions);
+
+		for(String name : NAMES)
+		{
+			assertEquals(name, read(new File(synchronous, name).toPath()),
+					read(new File(asynchronous, name).toPath()));
+		}
+	}
+
+	/**
+	 * Creates the test files in a folder and writes them.
+	 * @return The folder that the output was written to.
+	 */
+	private File write(File root, boolean location, boolean async, TextAddition... additions)
+			throws IOException
+	{
+		String[] contents = { "A\nB", "hello world\n", "", "line\r\n" };
+		Controller controller = new Controller();
+		for(TextAddition addition : additions) controller.addText(addition);
+		if(async) controller.setAsync(4);
+
+		File src = new File(root, "src");
+		for(int i = 0; i < NAMES.length; i++)
+		{
+			File file = new File(src, NAMES[i]);
+			file.getParentFile().mkdirs();
+			Files.write(file.toPath(), contents[i].getBytes(StandardCharsets.UTF_8));
+			controller.addFile(new BufferedFile(file));
+		}
+
+		final List<String> messages = new ArrayList<>();
+		controller.attach(new Observer()
+		{
+			@Override
+			public void message(Message message)
+			{
+				messages.add(message.getMessage());
+			}
+		});
+
+		File out = new File(root, "out");
+		if(location) controller.addLocation(out.toPath());
+		controller.writeFiles();
+		controller.finish();
+
+		for(String message : messages)
+		{
+			assertFalse(message, message.startsWith("Asynchronous I/O can't be used"));
+		}
+		assertEquals(NAMES.length, controller.getStats().get("files.written"));
+		return location ? out : src;
+	}
+
+	private Path write(String name, String text) throws IOException
+	{
+		Path path = folder.getRoot().toPath().resolve(name);
+		Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+		return path;
+	}
+
+	private static String read(Path path) throws IOException
+	{
+		return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+	}
+}
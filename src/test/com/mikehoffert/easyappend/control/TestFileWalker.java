@@ -0,0 +1,113 @@
+package com.mikehoffert.easyappend.control;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestFileWalker
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setup() throws IOException
+	{
+		String[] files = {
+			"Main.java",
+			"notes.txt",
+			"src/App.java",
+			"src/gen/Generated.java",
+			"target/classes/App.class",
+			"node_modules/lib/index.js",
+			"docs/.gitignore",
+			"docs/guide.txt",
+			"docs/draft.txt"
+		};
+
+		for(String name : files)
+		{
+			File file = new File(folder.getRoot(), name);
+			file.getParentFile().mkdirs();
+			file.createNewFile();
+		}
+
+		Files.write(new File(folder.getRoot(), "docs/.gitignore").toPath(),
+				Arrays.asList("*.txt", "!guide.txt"), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Walks the temporary folder.
+	 * @return The paths found, relative to the folder and sorted.
+	 */
+	private List<String> walk(FileWalker walker) throws IOException
+	{
+		final List<String> found = new ArrayList<>();
+		walker.walk(folder.getRoot(), new FileWalker.Visitor()
+		{
+			@Override
+			public void visit(File file)
+			{
+				found.add(folder.getRoot().toPath().relativize(file.toPath()).toString()
+						.replace(File.separatorChar, '/'));
+			}
+		});
+
+		Collections.sort(found);
+		return found;
+	}
+
+	@Test
+	public void testExcludes() throws IOException
+	{
+		FileWalker walker = new FileWalker(Collections.<String>emptyList(),
+				Arrays.asList("target/", "node_modules", "src/**/gen", ".gitignore"), ".gitignore");
+
+		assertEquals(Arrays.asList("Main.java", "docs/guide.txt", "notes.txt", "src/App.java"),
+				walk(walker));
+	}
+
+	@Test
+	public void testIncludes() throws IOException
+	{
+		FileWalker walker = new FileWalker(Arrays.asList("*.java"),
+				Arrays.asList("/src/gen/"), null);
+
+		assertEquals(Arrays.asList("Main.java", "src/App.java"), walk(walker));
+	}
+
+	@Test
+	public void testAccepts() throws IOException
+	{
+		FileWalker walker = new FileWalker(Arrays.asList("*.java", "*.txt"),
+				Arrays.asList("target/", "src/**/gen"), ".gitignore");
+		Path root = folder.getRoot().toPath();
+
+		// Single paths are filtered the same way as the walk
+		List<String> walked = walk(walker);
+		for(String name : new String[] { "Main.java", "notes.txt", "src/App.java",
+				"src/gen/Generated.java", "target/classes/App.class", "docs/guide.txt",
+				"docs/draft.txt" })
+		{
+			assertEquals(name, walked.contains(name), walker.accepts(root, root.resolve(name),
+					false));
+		}
+
+		assertTrue(walker.accepts(root, root, true));
+		assertTrue(walker.accepts(root, root.resolve("src"), true));
+		assertFalse(walker.accepts(root, root.resolve("src/gen"), true));
+		assertFalse(walker.accepts(root, root.resolve("target/classes"), true));
+	}
+}
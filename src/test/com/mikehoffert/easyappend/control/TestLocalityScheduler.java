@@ -0,0 +1,92 @@
+package com.mikehoffert.easyappend.control;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mikehoffert.easyappend.model.BufferedFile;
+
+public class TestLocalityScheduler
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testGroupsFolders() throws IOException
+	{
+		List<BufferedFile> files = files("b/1", "a/1", "b/2", "a/2");
+		List<String> scheduled = names(new LocalityScheduler().schedule(files));
+
+		assertEquals(Arrays.asList("a", "a", "b", "b"), Arrays.asList(
+				parent(scheduled.get(0)), parent(scheduled.get(1)),
+				parent(scheduled.get(2)), parent(scheduled.get(3))));
+	}
+
+	@Test
+	public void testInterleave() throws IOException
+	{
+		List<BufferedFile> files = files("a/1", "a/2", "a/3", "a/4", "a/5", "a/6", "a/7",
+				"a/8");
+		List<String> large = Arrays.asList("a/2", "a/3");
+		for(String name : large)
+		{
+			try(RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(), name),
+					"rw"))
+			{
+				file.setLength(LocalityScheduler.LARGE_SIZE);
+			}
+		}
+
+		// The large files are spread evenly, starting with one
+		LocalityScheduler scheduler = new LocalityScheduler();
+		scheduler.setInterleave(true);
+		List<String> scheduled = names(scheduler.schedule(files));
+		assertEquals(8, scheduled.size());
+		assertTrue(large.contains(scheduled.get(0)));
+		assertTrue(large.contains(scheduled.get(4)));
+		for(int i = 0; i < scheduled.size(); i++)
+		{
+			if(i != 0 && i != 4) assertFalse(large.contains(scheduled.get(i)));
+		}
+	}
+
+	private List<BufferedFile> files(String... names) throws IOException
+	{
+		List<BufferedFile> files = new ArrayList<>();
+		for(String name : names)
+		{
+			File file = new File(folder.getRoot(), name);
+			file.getParentFile().mkdirs();
+			file.createNewFile();
+			files.add(new BufferedFile(file));
+		}
+
+		return files;
+	}
+
+	private List<String> names(List<BufferedFile> files)
+	{
+		List<String> names = new ArrayList<>();
+		for(BufferedFile file : files)
+		{
+			names.add(folder.getRoot().toPath().relativize(file.getFile().toPath()).toString()
+					.replace(File.separatorChar, '/'));
+		}
+
+		return names;
+	}
+
+	private static String parent(String name)
+	{
+		return name.substring(0, name.indexOf('/'));
+	}
+}
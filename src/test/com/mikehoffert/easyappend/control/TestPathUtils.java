@@ -0,0 +1,91 @@
+package com.mikehoffert.easyappend.control;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mikehoffert.easyappend.model.BufferedFile;
+
+public class TestPathUtils
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRelativePathThroughLink() throws IOException
+	{
+		Path real = folder.newFolder("real", "src").toPath();
+		File file = Files.createFile(real.resolve("a.txt")).toFile();
+		Path link = Files.createSymbolicLink(folder.getRoot().toPath().resolve("link"),
+				real.getParent());
+		File linked = link.resolve("src").resolve("a.txt").toFile();
+
+		// The common path is canonical, so files listed through the link must
+		// still be inside it
+		Path base = PathUtils.determineCommonPath(Arrays.asList(new BufferedFile(linked),
+				new BufferedFile(new File(link.toFile(), "b.txt"))));
+		assertEquals("src/a.txt", PathUtils.determineRelativePath(linked, base));
+		assertEquals("src/a.txt", PathUtils.determineRelativePath(file, base));
+
+		// Bases given through the link work as well
+		assertEquals("src/a.txt", PathUtils.determineRelativePath(file, link));
+		assertEquals("real/src/a.txt", PathUtils.determineArchiveEntry(linked,
+				folder.getRoot().toPath()));
+	}
+
+	@Test
+	public void testShardStability() throws IOException
+	{
+		// The same tree in two places (such as mounted differently on two
+		// machines) is split into the same shards
+		Path first = folder.newFolder("first").toPath();
+		Path second = folder.newFolder("second").toPath();
+		Path link = Files.createSymbolicLink(folder.getRoot().toPath().resolve("link"), second);
+
+		for(int i = 0; i < 100; i++)
+		{
+			String name = "dir" + (i % 7) + "/file" + i + ".txt";
+			int shard = PathUtils.determineShard(first.resolve(name).toFile(), first, 4);
+			assertEquals(name, shard, PathUtils.determineShard(second.resolve(name).toFile(),
+					second, 4));
+			assertEquals(name, shard, PathUtils.determineShard(link.resolve(name).toFile(),
+					second, 4));
+			assertEquals(name, shard, PathUtils.determineShard(second.resolve(name).toFile(),
+					link, 4));
+		}
+	}
+
+	@Test
+	public void testShardDistribution()
+	{
+		Path base = folder.getRoot().toPath();
+		int shards = 4;
+		int files = 4000;
+		Map<Integer, Integer> counts = new HashMap<>();
+
+		for(int i = 0; i < files; i++)
+		{
+			File file = base.resolve("src/module" + (i % 10) + "/File" + i + ".java").toFile();
+			int shard = PathUtils.determineShard(file, base, shards);
+			assertTrue(shard >= 0 && shard < shards);
+			counts.put(shard, counts.containsKey(shard) ? counts.get(shard) + 1 : 1);
+		}
+
+		// Each shard gets close to its share of the files
+		assertEquals(shards, counts.size());
+		for(int count : counts.values())
+		{
+			assertTrue("Uneven shard: " + counts, Math.abs(count - files / shards) < files / 20);
+		}
+	}
+}
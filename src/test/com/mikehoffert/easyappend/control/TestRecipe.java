@@ -0,0 +1,125 @@
+package com.mikehoffert.easyappend.control;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestRecipe
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	File testFile;
+
+	@Before
+	public void setup() throws IOException
+	{
+		testFile = folder.newFile();
+		Files.write(testFile.toPath(), "A\nB\nC".getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testApplyToPath() throws IOException
+	{
+		Recipe recipe = Recipe.compile(Arrays.asList(
+				new TextAddition("1", "^A$", false, true, false),
+				new TextAddition("2", "^A$", true, true, false),
+				new TextAddition("3", null, false, false, false)), StandardCharsets.UTF_8);
+
+		File output = new File(folder.getRoot(), "out/file.txt");
+		Recipe.Result result = recipe.apply(testFile.toPath(), output.toPath());
+
+		assertEquals("1\nA\nB\nC\n3", new String(Files.readAllBytes(output.toPath()),
+				StandardCharsets.UTF_8));
+		assertTrue(result.isApplied(0));
+		assertFalse(result.isApplied(1));
+		assertTrue(result.isApplied(2));
+		assertEquals(5, result.getOriginalSize());
+		assertEquals(2, result.getPrependedBytes());
+		assertEquals(2, result.getAppendedBytes());
+
+		// Recipes can be reused
+		recipe.apply(output.toPath());
+		assertEquals("1\n1\nA\nB\nC\n3\n3", new String(Files.readAllBytes(output.toPath()),
+				StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testApplyToChannel() throws IOException
+	{
+		Recipe recipe = Recipe.compile(Arrays.asList(
+				new TextAddition("x", "^B$", false, true, true),
+				new TextAddition("y", null, false, false, true)), StandardCharsets.UTF_8);
+
+		try(FileChannel channel = FileChannel.open(testFile.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE))
+		{
+			assertTrue(recipe.apply(channel).isModified());
+		}
+
+		assertEquals("xA\nB\nCy", new String(Files.readAllBytes(testFile.toPath()),
+				StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testApplyUnchanged() throws IOException
+	{
+		Recipe recipe = Recipe.compile(Arrays.asList(
+				new TextAddition("x", "zzz", false, false, false)), StandardCharsets.UTF_8);
+		FileTime modified = FileTime.fromMillis(1000000000000L);
+		Files.setLastModifiedTime(testFile.toPath(), modified);
+
+		// Nothing is added, so the file isn't written over itself
+		assertFalse(recipe.apply(testFile.toPath()).isModified());
+		try(FileChannel channel = FileChannel.open(testFile.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE))
+		{
+			assertFalse(recipe.apply(channel).isModified());
+		}
+		assertEquals(modified, Files.getLastModifiedTime(testFile.toPath()));
+	}
+
+	@Test
+	public void testApplyToStream() throws IOException
+	{
+		Recipe recipe = Recipe.compile(Arrays.asList(
+				new TextAddition("foo", "foo", true, false, false)), StandardCharsets.UTF_8);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		recipe.apply(new ByteArrayInputStream("foo".getBytes(StandardCharsets.UTF_8)), output);
+		assertEquals("foo", output.toString("UTF-8"));
+
+		output.reset();
+		recipe.apply(new ByteArrayInputStream("bar".getBytes(StandardCharsets.UTF_8)), output);
+		assertEquals("bar\nfoo", output.toString("UTF-8"));
+	}
+
+	@Test
+	public void testTemplate() throws IOException
+	{
+		File file = new File(folder.newFolder("src"), "main.c");
+		Files.write(file.toPath(), "int x;".getBytes(StandardCharsets.UTF_8));
+
+		Recipe recipe = Recipe.compile(Arrays.asList(
+				new TextAddition("/* {relpath} ({name}), not {{name} or {other} */", null, false,
+				true, false)), StandardCharsets.UTF_8, folder.getRoot().toPath());
+		recipe.apply(file.toPath());
+
+		assertEquals("/* src/main.c (main.c), not {name} or {other} */\nint x;",
+				new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+	}
+}
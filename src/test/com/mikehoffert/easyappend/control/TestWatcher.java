@@ -0,0 +1,239 @@
+package com.mikehoffert.easyappend.control;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestWatcher
+{
+	/**
+	 * Short enough to keep the test quick, but long enough that the writes
+	 * below land well inside it.
+	 */
+	private static final long DEBOUNCE_MILLIS = 400;
+
+	/**
+	 * How long to wait for the watcher to modify a file before failing.
+	 */
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Watcher watcher;
+
+	private Thread thread;
+
+	private volatile Throwable failure;
+
+	@Before
+	public void setup()
+	{
+		Controller controller = new Controller();
+		controller.addText(new TextAddition("X", null, false, false, false));
+
+		watcher = new Watcher(controller, Collections.singletonList(folder.getRoot().toPath()),
+				DEBOUNCE_MILLIS);
+	}
+
+	/**
+	 * Starts watching on another thread.
+	 */
+	private void start() throws InterruptedException
+	{
+		thread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					watcher.run();
+				}
+				catch(Throwable e)
+				{
+					failure = e;
+				}
+			}
+		};
+		thread.start();
+
+		// Give the watcher time to register the folder
+		Thread.sleep(DEBOUNCE_MILLIS);
+	}
+
+	@After
+	public void teardown() throws IOException, InterruptedException
+	{
+		watcher.stop();
+		if(thread == null) return;
+
+		thread.join(TIMEOUT_MILLIS);
+		assertFalse("The watcher didn't stop.", thread.isAlive());
+		assertNull(failure);
+	}
+
+	@Test
+	public void testDebounce() throws IOException, InterruptedException
+	{
+		start();
+		Path file = folder.getRoot().toPath().resolve("a.txt");
+
+		// Each write restarts the wait, so none of them are modified
+		for(String text : new String[] { "A", "AB", "ABC" })
+		{
+			write(file, text);
+			Thread.sleep(DEBOUNCE_MILLIS / 4);
+		}
+		assertEquals("ABC", read(file));
+
+		// Once the file settles, it is modified exactly once
+		assertEquals("ABC\nX", await(file, "ABC"));
+	}
+
+	@Test
+	public void testOwnWrites() throws IOException, InterruptedException
+	{
+		start();
+		Path file = folder.getRoot().toPath().resolve("a.txt");
+		write(file, "A");
+		assertEquals("A\nX", await(file, "A"));
+
+		// The watcher's own write doesn't trigger another one
+		Thread.sleep(3 * DEBOUNCE_MILLIS);
+		assertEquals("A\nX", read(file));
+
+		// But later changes by others still do
+		write(file, "B");
+		assertEquals("B\nX", await(file, "B"));
+	}
+
+	@Test
+	public void testCreatedFolder() throws IOException, InterruptedException
+	{
+		start();
+		Path dir = Files.createDirectory(folder.getRoot().toPath().resolve("new"));
+		Path file = dir.resolve("a.txt");
+		write(file, "A");
+
+		assertEquals("A\nX", await(file, "A"));
+	}
+
+	@Test
+	public void testFilters() throws IOException, InterruptedException
+	{
+		Path root = folder.getRoot().toPath();
+		Files.createDirectories(root.resolve("build"));
+		Files.createDirectories(root.resolve("sub"));
+		write(root.resolve(".gitignore"), "*.log");
+		write(root.resolve("sub/.easyappend"), "R");
+
+		watcher.setWalker(new FileWalker(Collections.<String>emptyList(),
+				Arrays.asList("build/"), ".gitignore"));
+		watcher.setRules(new DirectoryRules(".easyappend", new DirectoryRules.Reader()
+		{
+			@Override
+			public DirectoryRules.Rules read(Path file) throws IOException
+			{
+				return new DirectoryRules.Rules(Arrays.asList(new TextAddition(
+						TestWatcher.read(file), null, false, false, false)), true);
+			}
+		}, Arrays.asList(new TextAddition("X", null, false, false, false))));
+		start();
+
+		write(root.resolve("build/a.txt"), "A");
+		write(root.resolve("a.log"), "A");
+		write(root.resolve("sub/b.txt"), "B");
+		write(root.resolve("a.txt"), "A");
+
+		// Rule files apply below their folder, and excluded or ignored files
+		// (including rule files) are left alone
+		assertEquals("A\nX", await(root.resolve("a.txt"), "A"));
+		assertEquals("B\nX\nR", await(root.resolve("sub/b.txt"), "B"));
+		assertEquals("A", read(root.resolve("build/a.txt")));
+		assertEquals("A", read(root.resolve("a.log")));
+		assertEquals("R", read(root.resolve("sub/.easyappend")));
+
+		// Changed rule files apply to the files that change afterwards
+		write(root.resolve("sub/.easyappend"), "S");
+		Thread.sleep(2 * DEBOUNCE_MILLIS);
+		write(root.resolve("sub/b.txt"), "C");
+		assertEquals("C\nX\nS", await(root.resolve("sub/b.txt"), "C"));
+	}
+
+	@Test
+	public void testFailure() throws IOException, InterruptedException
+	{
+		// A prepend in place can't keep its journal where a folder is, so
+		// that file fails
+		Path root = folder.getRoot().toPath();
+		Files.createDirectories(root.resolve(".bad.txt.shift"));
+		Controller controller = new Controller();
+		controller.addText(new TextAddition("P", null, false, true, false));
+		controller.setInPlace(true, true);
+		watcher = new Watcher(controller, Collections.singletonList(root), DEBOUNCE_MILLIS);
+		start();
+
+		write(root.resolve("bad.txt"), "B");
+		write(root.resolve("a.txt"), "A");
+		assertEquals("P\nA", await(root.resolve("a.txt"), "A"));
+		assertEquals("B", read(root.resolve("bad.txt")));
+		assertEquals(1, controller.getStats().get("files.failed"));
+
+		// And the watcher keeps going
+		write(root.resolve("c.txt"), "C");
+		assertEquals("P\nC", await(root.resolve("c.txt"), "C"));
+	}
+
+	@Test
+	public void testStopBeforeRun() throws IOException, InterruptedException
+	{
+		Watcher early = new Watcher(new Controller(),
+				Collections.singletonList(folder.getRoot().toPath()), DEBOUNCE_MILLIS);
+		early.stop();
+
+		// Returns at once instead of watching forever
+		early.run();
+	}
+
+	/**
+	 * Waits for the watcher to modify a file.
+	 * @param file The file.
+	 * @param unmodified The file's text before it's modified.
+	 * @return The file's text once it's modified and has stopped changing.
+	 */
+	private String await(Path file, String unmodified) throws IOException, InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while(read(file).equals(unmodified))
+		{
+			assertTrue("The file wasn't modified.", System.currentTimeMillis() < deadline);
+			Thread.sleep(50);
+		}
+
+		// Any extra modification would happen within another debounce
+		Thread.sleep(2 * DEBOUNCE_MILLIS);
+		return read(file);
+	}
+
+	private static void write(Path file, String text) throws IOException
+	{
+		Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String read(Path file) throws IOException
+	{
+		return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+	}
+}
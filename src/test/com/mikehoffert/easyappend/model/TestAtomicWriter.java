@@ -0,0 +1,185 @@
+package com.mikehoffert.easyappend.model;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestAtomicWriter
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testFileDurability() throws IOException
+	{
+		Path target = write("a.txt", "Alpha");
+
+		try(AtomicWriter writer = new AtomicWriter(Durability.FILE, AtomicWriter.DEFAULT_BATCH_SIZE))
+		{
+			Path temp = writer.begin(target);
+			Files.write(temp, "Bravo".getBytes(StandardCharsets.UTF_8));
+			writer.commit(temp, target, null);
+
+			// Replaced at once, after syncing the file and then its folder
+			assertEquals("Bravo", read(target));
+			assertEquals(2, writer.getBarriers());
+		}
+
+		assertEquals(0, countTemps());
+	}
+
+	@Test
+	public void testGroupDurability() throws IOException
+	{
+		Path[] targets = { write("a.txt", "Alpha"), write("b.txt", "Alpha"),
+				write("c.txt", "Alpha") };
+
+		try(AtomicWriter writer = new AtomicWriter(Durability.GROUP, 2))
+		{
+			for(int i = 0; i < targets.length; i++)
+			{
+				Path temp = writer.begin(targets[i]);
+				Files.write(temp, "Bravo".getBytes(StandardCharsets.UTF_8));
+				writer.commit(temp, targets[i], null);
+
+				// Nothing is replaced until the batch is full
+				if(i == 0) assertEquals("Alpha", read(targets[0]));
+			}
+
+			// The first batch was committed, with its files synced together and
+			// then their folder
+			assertEquals("Bravo", read(targets[0]));
+			assertEquals("Bravo", read(targets[1]));
+			assertEquals("Alpha", read(targets[2]));
+			assertEquals(2, writer.getBarriers());
+
+			writer.flush();
+			assertEquals("Bravo", read(targets[2]));
+			assertEquals(4, writer.getBarriers());
+		}
+
+		assertEquals(0, countTemps());
+	}
+
+	@Test
+	public void testSymbolicLink() throws IOException
+	{
+		Path real = write("a.txt", "Alpha");
+		Path link = Files.createSymbolicLink(folder.getRoot().toPath().resolve("link.txt"),
+				real.getFileName());
+
+		try(AtomicWriter writer = new AtomicWriter(Durability.FILE, AtomicWriter.DEFAULT_BATCH_SIZE))
+		{
+			BufferedFile bf = new BufferedFile(link.toFile());
+			bf.setAppendText("Bravo", false);
+			bf.write(link.toFile(), null, writer);
+		}
+
+		// The link is kept, and the file it links to is replaced
+		assertTrue(Files.isSymbolicLink(link));
+		assertEquals("Alpha\nBravo", read(real));
+		assertEquals(0, countTemps());
+	}
+
+	@Test
+	public void testFailedWrite() throws IOException
+	{
+		File missing = new File(folder.getRoot(), "missing.txt");
+		Path target = write("a.txt", "Alpha");
+
+		try(AtomicWriter writer = new AtomicWriter(Durability.NONE, 1))
+		{
+			BufferedFile bf = new BufferedFile(missing);
+			bf.setAppendText("Bravo", false);
+			try
+			{
+				bf.write(target.toFile(), null, writer);
+				fail("Wrote a file that doesn't exist.");
+			}
+			catch(FileNotFoundException e)
+			{
+				// Expected
+			}
+		}
+
+		// The temporary file is removed and the target is untouched
+		assertEquals("Alpha", read(target));
+		assertEquals(0, countTemps());
+	}
+
+	@Test
+	public void testBackupJournal() throws IOException
+	{
+		Path backupDirectory = folder.getRoot().toPath().resolve("backups");
+		Path a = write("a.txt", "Alpha");
+		Path b = write("b.txt", "Alpha");
+
+		try(AtomicWriter writer = new AtomicWriter(Durability.FILE, 1))
+		{
+			writer.setBackups(new Backups(backupDirectory, Durability.FILE));
+			Path temp = writer.begin(a);
+			Files.write(temp, "Bravo".getBytes(StandardCharsets.UTF_8));
+			writer.commit(temp, a, backupDirectory.resolve("a.txt"));
+
+			// Recorded as soon as the file is replaced, as if the run crashed
+			assertEquals(Arrays.asList(a.toAbsolutePath(),
+					backupDirectory.resolve("a.txt").toAbsolutePath()),
+					Backups.readJournal(backupDirectory));
+		}
+
+		// A run that backs nothing up keeps the last run's journal
+		try(AtomicWriter writer = new AtomicWriter(Durability.NONE, 1))
+		{
+			writer.setBackups(new Backups(backupDirectory, Durability.NONE));
+		}
+		assertEquals(2, Backups.readJournal(backupDirectory).size());
+
+		// But the next backup replaces it
+		try(AtomicWriter writer = new AtomicWriter(Durability.NONE, 1))
+		{
+			writer.setBackups(new Backups(backupDirectory, Durability.NONE));
+			Path temp = writer.begin(b);
+			Files.write(temp, "Bravo".getBytes(StandardCharsets.UTF_8));
+			writer.commit(temp, b, backupDirectory.resolve("b.txt"));
+		}
+		assertEquals(Arrays.asList(b.toAbsolutePath(),
+				backupDirectory.resolve("b.txt").toAbsolutePath()),
+				Backups.readJournal(backupDirectory));
+		assertEquals("Alpha", read(backupDirectory.resolve("b.txt")));
+	}
+
+	private Path write(String name, String text) throws IOException
+	{
+		Path path = folder.getRoot().toPath().resolve(name);
+		Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+		return path;
+	}
+
+	private static String read(Path path) throws IOException
+	{
+		return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+	}
+
+	private int countTemps() throws IOException
+	{
+		int temps = 0;
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(folder.getRoot().toPath(),
+				"*.tmp"))
+		{
+			for(@SuppressWarnings("unused") Path path : stream) temps++;
+		}
+
+		return temps;
+	}
+}
@@ -0,0 +1,104 @@
+package com.mikehoffert.easyappend.model;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestBufferPool
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReuse()
+	{
+		BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_RETAINED);
+		ByteBuffer bytes = pool.acquireBytes(100);
+		CharBuffer chars = pool.acquireChars(5000);
+		assertTrue(bytes.isDirect());
+		assertTrue(bytes.capacity() >= 100);
+		assertTrue(chars.capacity() >= 5000);
+		assertEquals(2, pool.getMisses());
+
+		// Released buffers come back cleared for any request in their class
+		bytes.put((byte) 1);
+		pool.release(bytes);
+		pool.release(chars);
+		ByteBuffer reused = pool.acquireBytes(200);
+		assertSame(bytes, reused);
+		assertEquals(0, reused.position());
+		assertSame(chars, pool.acquireChars(6000));
+		assertEquals(2, pool.getHits());
+		assertEquals(2, pool.getMisses());
+	}
+
+	@Test
+	public void testRetentionLimit()
+	{
+		// Only one of the smallest buffers fits
+		BufferPool pool = new BufferPool(4096);
+		ByteBuffer first = pool.acquireBytes(1);
+		ByteBuffer second = pool.acquireBytes(1);
+		pool.release(first);
+		pool.release(second);
+		assertSame(first, pool.acquireBytes(1));
+		assertNotSame(second, pool.acquireBytes(1));
+
+		// Buffers larger than any class are on the heap and never kept
+		BufferPool large = new BufferPool(BufferPool.DEFAULT_MAX_RETAINED);
+		ByteBuffer huge = large.acquireBytes(5 * 1024 * 1024);
+		assertFalse(huge.isDirect());
+		large.release(huge);
+		assertNotSame(huge, large.acquireBytes(5 * 1024 * 1024));
+		assertEquals(0, large.getHits());
+
+		// Nothing is kept without a budget
+		ByteBuffer unpooled = BufferPool.UNPOOLED.acquireBytes(1);
+		BufferPool.UNPOOLED.release(unpooled);
+		assertNotSame(unpooled, BufferPool.UNPOOLED.acquireBytes(1));
+	}
+
+	@Test
+	public void testReleasedOnFailure() throws IOException
+	{
+		File input = folder.newFile("a.txt");
+		Files.write(input.toPath(), "Alpha".getBytes(StandardCharsets.UTF_8));
+
+		// The shift can't keep its journal where a folder is, but only fails
+		// once it has its block
+		folder.newFolder(".a.txt.shift");
+		BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_RETAINED);
+
+		for(int i = 0; i < 2; i++)
+		{
+			BufferedFile bf = new BufferedFile(input);
+			bf.setBufferPool(pool);
+			bf.setInPlace(true, true);
+			bf.setPrependText("X", false);
+			try
+			{
+				bf.write(input);
+				fail("Kept a journal in a folder.");
+			}
+			catch(IOException e)
+			{
+				// Expected
+			}
+		}
+
+		// The second attempt reused everything the first one acquired
+		assertEquals(1, pool.getMisses());
+		assertEquals(1, pool.getHits());
+		assertEquals("Alpha", new String(Files.readAllBytes(input.toPath()),
+				StandardCharsets.UTF_8));
+	}
+}
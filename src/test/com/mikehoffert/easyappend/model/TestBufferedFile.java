@@ -8,12 +8,24 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import com.google.common.base.Strings;
 import com.google.common.io.CharStreams;
 
 public class TestBufferedFile
@@ -107,4 +119,339 @@ public class TestBufferedFile
 		assertTrue(bFile.contains("\\bBravo\\b"));
 		assertFalse(bFile.contains("^Foo$"));
 	}
+	
+	@Test
+	public void testIsBinary() throws FileNotFoundException, IOException
+	{
+		assertFalse(new BufferedFile(testFile).isBinary(true));
+		
+		// A jar and a file with a NUL byte
+		byte[][] binaries = {
+			{ 'P', 'K', 3, 4, 'a' },
+			{ 'a', 'b', 0, 'c' }
+		};
+		
+		for(byte[] binary : binaries)
+		{
+			File file = folder.newFile();
+			Files.write(file.toPath(), binary);
+			assertTrue(new BufferedFile(file).isBinary(false));
+		}
+		
+		// Invalid UTF-8 (such as ISO-8859-1 text) is only binary if asked for
+		File latin = folder.newFile();
+		Files.write(latin.toPath(), new byte[] { 'a', (byte) 0xE9, 'b' });
+		assertFalse(new BufferedFile(latin).isBinary(false));
+		assertTrue(new BufferedFile(latin).isBinary(true));
+		
+		// A multi-byte character cut off by the end of the prefix is still text
+		byte[] text = new byte[Sniffer.PREFIX_SIZE + 1];
+		Arrays.fill(text, (byte) 'a');
+		text[Sniffer.PREFIX_SIZE - 1] = (byte) 0xC3;
+		text[Sniffer.PREFIX_SIZE] = (byte) 0xA9;
+		File file = folder.newFile();
+		Files.write(file.toPath(), text);
+		assertFalse(new BufferedFile(file).isBinary(true));
+	}
+	
+	@Test
+	public void testDetectFormat() throws IOException
+	{
+		// UTF-16LE with a byte order mark and CRLF line endings
+		File file = folder.newFile();
+		byte[] byteOrderMark = { (byte) 0xFF, (byte) 0xFE };
+		byte[] body = "Bravo\r\nCharlie\r\n".getBytes(StandardCharsets.UTF_16LE);
+		Files.write(file.toPath(), byteOrderMark);
+		Files.write(file.toPath(), body, StandardOpenOption.APPEND);
+		
+		BufferedFile bf = new BufferedFile(file);
+		bf.setDetectFormat(true);
+		assertFalse(bf.isBinary(true));
+		assertEquals(StandardCharsets.UTF_16LE, bf.getFormat().getCharset());
+		assertEquals("\r\n", bf.getFormat().getLineEnding());
+		
+		bf.setPrependText("Alpha", false);
+		bf.setAppendText("Delta", false);
+		bf.write(file);
+		
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		assertArrayEquals(byteOrderMark, Arrays.copyOf(bytes, 2));
+		assertEquals("Alpha\r\nBravo\r\nCharlie\r\nDelta\r\n",
+				new String(bytes, 2, bytes.length - 2, StandardCharsets.UTF_16LE));
+	}
+	
+	@Test
+	public void testCrlfText() throws IOException
+	{
+		// Text read from a Windows file keeps one CR per line break, whichever
+		// line ending the file has
+		String[] endings = { "\r\n", "\n" };
+		for(String ending : endings)
+		{
+			File file = folder.newFile();
+			Files.write(file.toPath(), ("Bravo" + ending).getBytes(StandardCharsets.UTF_8));
+			
+			BufferedFile bf = new BufferedFile(file);
+			bf.setDetectFormat(true);
+			bf.setPrependText("Alpha\r\nAlpha", false);
+			bf.setAppendText("Charlie\r\n", true);
+			bf.write(file);
+			
+			assertEquals("Alpha" + ending + "Alpha" + ending + "Bravo" + ending + "Charlie" + ending,
+					new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		}
+	}
+	
+	@Test
+	public void testWriteInPlace() throws IOException
+	{
+		// Larger than several blocks, so the content is moved block by block
+		File file = folder.newFile();
+		StringBuilder builder = new StringBuilder();
+		for(int i = 0; builder.length() < 10 * 1024 * 1024; i++) builder.append(i).append('\n');
+		String body = builder.toString();
+		Files.write(file.toPath(), body.getBytes(StandardCharsets.UTF_8));
+		Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+		
+		BufferedFile bf = new BufferedFile(file);
+		bf.setInPlace(true, true);
+		bf.setPrependText("Alpha", false);
+		bf.setAppendText("Omega", true);
+		bf.write(file);
+		
+		assertEquals("Alpha\n" + body + "Omega", new String(Files.readAllBytes(file.toPath()),
+				StandardCharsets.UTF_8));
+		assertEquals(body.length(), bf.getShiftedBytes());
+		assertEquals(key, Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey());
+		assertFalse(Files.exists(BlockShifter.journalFor(file.toPath())));
+	}
+	
+	@Test
+	public void testResumeInPlace() throws IOException
+	{
+		int blockSize = 4 * 1024 * 1024;
+		File file = folder.newFile();
+		StringBuilder builder = new StringBuilder();
+		for(int i = 0; builder.length() < 10 * 1024 * 1024; i++) builder.append(i).append('\n');
+		byte[] body = builder.toString().getBytes(StandardCharsets.UTF_8);
+		byte[] insert = "Alpha\n".getBytes(StandardCharsets.UTF_8);
+	
+		// Leave the file as a prepend killed halfway through moving its second
+		// block: the last block has been moved, and only half of the second
+		int last = body.length - blockSize;
+		int second = last - blockSize;
+		byte[] partial = Arrays.copyOf(body, body.length + insert.length);
+		System.arraycopy(body, last, partial, last + insert.length, blockSize);
+		System.arraycopy(body, second, partial, second + insert.length, blockSize / 2);
+		Files.write(file.toPath(), partial);
+	
+		// Both blocks were journaled before they were moved
+		ByteBuffer insertions = ByteBuffer.allocate(8 + 4 + insert.length);
+		insertions.putLong(0).putInt(insert.length).put(insert);
+		ByteBuffer journal = ByteBuffer.allocate(28 + insertions.capacity() +
+				2 * (24 + blockSize));
+		journal.putInt(0x45415348).putLong(body.length).putInt(1).putInt(insertions.capacity())
+				.putLong(checksum(body.length, 1, insertions.array(), 0, insertions.capacity()))
+				.put(insertions.array());
+		for(int position : new int[] { last, second })
+		{
+			journal.putLong(position).putInt(blockSize).putInt(0)
+					.putLong(checksum(position, blockSize, body, position, blockSize))
+					.put(body, position, blockSize);
+		}
+		Path journalPath = BlockShifter.journalFor(file.toPath());
+		Files.write(journalPath, journal.array());
+	
+		BufferedFile bf = new BufferedFile(file);
+		bf.setInPlace(true, true);
+		assertTrue(bf.resumeInPlace());
+	
+		byte[] expected = Arrays.copyOf(insert, insert.length + body.length);
+		System.arraycopy(body, 0, expected, insert.length, body.length);
+		assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+		assertFalse(Files.exists(journalPath));
+	
+		// Once finished, there is nothing left to resume
+		assertFalse(bf.resumeInPlace());
+		assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+	}
+	
+	/**
+	 * Checksums a journal entry the way {@link BlockShifter} does.
+	 */
+	private static long checksum(long first, long second, byte[] bytes, int offset, int length)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(16).putLong(first).putLong(second).array());
+		crc.update(bytes, offset, length);
+		return crc.getValue();
+	}
+	
+	@Test
+	public void testContainsInSegments() throws IOException
+	{
+		// The first segment ends at the line break after "alpha", so a match
+		// of both lines crosses into the second segment
+		StringBuilder builder = new StringBuilder();
+		for(int i = 0; i < 10485; i++) builder.append(Strings.repeat("x", 99)).append('\n');
+		builder.append(Strings.repeat("y", 100)).append("alpha\nbravo\n");
+		while(builder.length() < 3 * 1024 * 1024) builder.append(Strings.repeat("z", 99)).append('\n');
+		
+		File file = folder.newFile();
+		Files.write(file.toPath(), builder.toString().getBytes(StandardCharsets.UTF_8));
+		
+		BufferedFile bf = new BufferedFile(file);
+		bf.setSegmentedMatcher(new SegmentedMatcher(SegmentedMatcher.DEFAULT_OVERLAP));
+		assertTrue(bf.contains("alpha\nbravo"));
+		assertTrue(bf.contains("^z+$"));
+		assertFalse(bf.contains("charlie"));
+		
+		// Without an overlap, the match is lost
+		bf.setSegmentedMatcher(new SegmentedMatcher(0));
+		assertFalse(bf.contains("alpha\nbravo"));
+	}
+	
+	@Test
+	public void testInsertAtAnchor() throws IOException
+	{
+		File file = folder.newFile();
+		Files.write(file.toPath(), "#!/bin/sh\n<a>\n</a>\n<a>\n</a>\n".getBytes(StandardCharsets.UTF_8));
+		
+		BufferedFile bf = new BufferedFile(file);
+		bf.addTransformer(new AnchoredInsertion("^#!", false, "# Alpha", false));
+		bf.addTransformer(new AnchoredInsertion("^</a>", true, "<b/>", false));
+		bf.addTransformer(new AnchoredInsertion("^<c>", false, "Missing", false));
+		
+		// Copied to another file, then added in place
+		File copy = new File(folder.getRoot(), "copy");
+		bf.write(copy);
+		bf.write(file);
+		
+		String expected = "#!/bin/sh\n# Alpha\n<a>\n</a>\n<a>\n<b/>\n</a>\n";
+		assertEquals(expected, new String(Files.readAllBytes(copy.toPath()), StandardCharsets.UTF_8));
+		assertEquals(expected, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		assertEquals(1, bf.getMissedEdits());
+	}
+	
+	@Test
+	public void testTransformer() throws IOException
+	{
+		File file = folder.newFile();
+		Files.write(file.toPath(), "Copyright 2014\nAlpha\n".getBytes(StandardCharsets.UTF_8));
+		
+		// Replaces the year, which needs the contents
+		BufferedFile bf = new BufferedFile(file);
+		bf.addTransformer(new Transformer()
+		{
+			@Override
+			public Need getNeed()
+			{
+				return Need.CONTENTS;
+			}
+			
+			@Override
+			public void transform(FileView view, Edits edits) throws IOException
+			{
+				int index = view.getContents().indexOf("2014");
+				edits.replace(view.offsetOf(index), view.offsetOf(index + 4), "2015");
+			}
+		});
+		bf.setPrependText("# Header", false);
+		bf.setAppendText("Bravo", true);
+		bf.write(file);
+		
+		assertEquals("# Header\nCopyright 2015\nAlpha\nBravo",
+				new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void testWriteToArchive() throws IOException
+	{
+		BufferedFile bf = new BufferedFile(testFile);
+		bf.setPrependText(content[0], false);
+		bf.setAppendText(content[content.length - 1], false);
+		String expected = "Alpha\nBravo\nCharlie\nDelta\nEcho";
+		
+		File tar = new File(folder.getRoot(), "out.tar");
+		try(ArchiveWriter archive = ArchiveWriter.open(tar.toPath()))
+		{
+			bf.write(archive, "dir/file.txt");
+		}
+		
+		// A header, the content padded to a block and two empty blocks
+		byte[] bytes = Files.readAllBytes(tar.toPath());
+		assertEquals(4 * 512, bytes.length);
+		assertEquals("dir/file.txt", new String(bytes, 0, 12, StandardCharsets.US_ASCII));
+		assertEquals(0, bytes[12]);
+		assertEquals(expected, new String(bytes, 512, expected.length(), StandardCharsets.UTF_8));
+		assertEquals(0, bytes[512 + expected.length()]);
+		
+		File zip = new File(folder.getRoot(), "out.zip");
+		try(ArchiveWriter archive = ArchiveWriter.open(zip.toPath()))
+		{
+			bf.write(archive, "dir/file.txt");
+		}
+		
+		try(ZipFile zipFile = new ZipFile(zip))
+		{
+			ZipEntry entry = zipFile.getEntry("dir/file.txt");
+			assertEquals(expected, CharStreams.toString(new InputStreamReader(
+					zipFile.getInputStream(entry), StandardCharsets.UTF_8)));
+		}
+	}
+	
+	@Test
+	public void testDiff() throws IOException
+	{
+		BufferedFile bf = new BufferedFile(testFile);
+		assertNull(bf.diff("a/file", "b/file"));
+		
+		bf.setPrependText(content[0], false);
+		bf.setAppendText(content[content.length - 1], false);
+		assertEquals("--- a/file\n+++ b/file\n@@ -1,3 +1,5 @@\n+Alpha\n Bravo\n Charlie\n" +
+				"-Delta\n\\ No newline at end of file\n+Delta\n+Echo\n" +
+				"\\ No newline at end of file\n", bf.diff("a/file", "b/file"));
+		
+		// Changes far apart are separate hunks
+		File file = folder.newFile();
+		StringBuilder builder = new StringBuilder();
+		for(int i = 1; i <= 20; i++) builder.append(i).append('\n');
+		Files.write(file.toPath(), builder.toString().getBytes(StandardCharsets.UTF_8));
+		
+		bf = new BufferedFile(file);
+		bf.setPrependText("0", false);
+		bf.setAppendText("21", true);
+		assertEquals("--- file\n+++ file\n@@ -1,3 +1,4 @@\n+0\n 1\n 2\n 3\n" +
+				"@@ -18,3 +19,4 @@\n 18\n 19\n 20\n+21\n" +
+				"\\ No newline at end of file\n", bf.diff("file", "file"));
+	}
+	
+	@Test
+	public void testWriteToSeveralLocations() throws IOException
+	{
+		BufferedFile bf = new BufferedFile(testFile);
+		bf.setPrependText(content[0], false);
+		String expected = "Alpha\nBravo\nCharlie\nDelta";
+		
+		// The first output is written and the others are copied from it
+		List<File> outputs = Arrays.asList(new File(folder.getRoot(), "a/file"),
+				new File(folder.getRoot(), "b/file"), new File(folder.getRoot(), "c/file"));
+		bf.write(outputs);
+		for(File output : outputs)
+		{
+			assertEquals(expected, new String(Files.readAllBytes(output.toPath()),
+					StandardCharsets.UTF_8));
+		}
+		
+		outputs = Arrays.asList(new File(folder.getRoot(), "d"), new File(folder.getRoot(), "e"));
+		try(AtomicWriter atomicWriter = new AtomicWriter(Durability.NONE, 1))
+		{
+			bf.write(outputs, Arrays.asList((File) null, null), atomicWriter);
+		}
+		for(File output : outputs)
+		{
+			assertEquals(expected, new String(Files.readAllBytes(output.toPath()),
+					StandardCharsets.UTF_8));
+		}
+	}
 }
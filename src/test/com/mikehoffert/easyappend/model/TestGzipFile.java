@@ -0,0 +1,131 @@
+package com.mikehoffert.easyappend.model;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestGzipFile
+{
+	private static final String ORIGINAL = "first line\nsecond line";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testIsGzip() throws IOException
+	{
+		assertTrue(GzipFile.isGzip(write("a.log.gz", ORIGINAL)));
+
+		// Both the name and the magic number are needed
+		File named = folder.newFile("b.log.gz");
+		Files.write(named.toPath(), ORIGINAL.getBytes(StandardCharsets.UTF_8));
+		assertFalse(GzipFile.isGzip(named));
+		File unnamed = write("c.log", ORIGINAL);
+		assertFalse(GzipFile.isGzip(unnamed));
+	}
+
+	@Test
+	public void testAppend() throws IOException
+	{
+		File file = write("a.log.gz", ORIGINAL);
+		byte[] compressed = Files.readAllBytes(file.toPath());
+
+		GzipFile gzip = new GzipFile(file);
+		gzip.setAppendText("third line", false);
+		gzip.write(file);
+
+		// The original member is left as it was, followed by a new one
+		byte[] written = Files.readAllBytes(file.toPath());
+		assertArrayEquals(compressed, Arrays.copyOf(written, compressed.length));
+		assertEquals(ORIGINAL + "\nthird line", decompress(written));
+	}
+
+	@Test
+	public void testPrepend() throws IOException
+	{
+		File file = write("a.log.gz", ORIGINAL);
+		byte[] compressed = Files.readAllBytes(file.toPath());
+
+		GzipFile gzip = new GzipFile(file);
+		gzip.setPrependText("header", false);
+		gzip.setAppendText("footer", false);
+		gzip.write(file);
+
+		// The file is rewritten with the new member first, but the original
+		// member is copied without being recompressed
+		byte[] written = Files.readAllBytes(file.toPath());
+		assertEquals("header\n" + ORIGINAL + "\nfooter", decompress(written));
+		assertTrue(indexOf(written, compressed) > 0);
+
+		// Written elsewhere, the original is left alone
+		File copy = new File(folder.getRoot(), "out/a.log.gz");
+		gzip = new GzipFile(file);
+		gzip.setPrependText("again", false);
+		gzip.write(copy);
+		assertEquals("again\nheader\n" + ORIGINAL + "\nfooter",
+				decompress(Files.readAllBytes(copy.toPath())));
+		assertArrayEquals(written, Files.readAllBytes(file.toPath()));
+	}
+
+	@Test
+	public void testContains() throws IOException
+	{
+		File file = write("a.log.gz", ORIGINAL);
+		GzipFile gzip = new GzipFile(file);
+
+		// Regexes are matched against the decompressed text
+		assertTrue(gzip.contains("^second"));
+		assertFalse(gzip.contains("third"));
+		assertFalse(gzip.isBinary(true));
+	}
+
+	private File write(String name, String text) throws IOException
+	{
+		File file = folder.newFile(name);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(GZIPOutputStream out = new GZIPOutputStream(bytes))
+		{
+			out.write(text.getBytes(StandardCharsets.UTF_8));
+		}
+		Files.write(file.toPath(), bytes.toByteArray());
+		return file;
+	}
+
+	/**
+	 * Decompresses every member of gzip data.
+	 */
+	private static String decompress(byte[] compressed) throws IOException
+	{
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		try(InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed)))
+		{
+			byte[] buffer = new byte[4096];
+			for(int read; (read = in.read(buffer)) >= 0;) text.write(buffer, 0, read);
+		}
+
+		return new String(text.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static int indexOf(byte[] bytes, byte[] target)
+	{
+		for(int i = 0; i + target.length <= bytes.length; i++)
+		{
+			if(Arrays.equals(Arrays.copyOfRange(bytes, i, i + target.length), target)) return i;
+		}
+
+		return -1;
+	}
+}
@@ -2,11 +2,23 @@ package com.mikehoffert.easyappend.view;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipFile;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -100,4 +112,333 @@ public class TestCommandLineInterface
 		}
 		scanner.close();
 	}
+	
+	@Test
+	public void testStreamedInput() throws IOException
+	{
+		File fileList = folder.newFile();
+		Files.write(fileList.toPath(), (file1 + "\0").getBytes(StandardCharsets.UTF_8));
+		
+		File manifest = folder.newFile();
+		FileWriter writer = new FileWriter(manifest);
+		writer.write("{\"group\": \"g\", \"additions\": [{\"type\": \"prepend\", " +
+				"\"contains\": \"^D$\", \"text\": \"grouped\"}]}\n");
+		writer.write("{\"path\": \"" + file2 + "\", \"group\": \"g\"}\n");
+		writer.close();
+		
+		String[] args = {
+			"--files-from=" + fileList,
+			"--manifest=" + manifest,
+			"--append",
+			"appended"
+		};
+		
+		CommandLineInterface.setTesting(true);
+		CommandLineInterface.main(args);
+		
+		List<String> expectedFile1 = Arrays.asList("A", "B", "C", "appended");
+		List<String> expectedFile2 = Arrays.asList("grouped", "D", "E", "F");
+		
+		assertEquals(expectedFile1, Files.readAllLines(file1.toPath(), StandardCharsets.UTF_8));
+		assertEquals(expectedFile2, Files.readAllLines(file2.toPath(), StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void testRuleFiles() throws IOException
+	{
+		File root = folder.newFolder("root");
+		File sub = new File(root, "sub");
+		File other = new File(root, "other");
+		sub.mkdir();
+		other.mkdir();
+		Files.write(new File(root, "a.txt").toPath(), "a".getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(sub, "b.txt").toPath(), "b".getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(other, "c.txt").toPath(), "c".getBytes(StandardCharsets.UTF_8));
+		
+		Files.write(new File(root, ".easyappend").toPath(), ("{\"additions\": [{\"type\": " +
+				"\"prepend\", \"text\": \"root\"}]}").getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(sub, ".easyappend").toPath(), ("{\"additions\": [{\"type\": " +
+				"\"append\", \"text\": \"sub\"}]}").getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(other, ".easyappend").toPath(), ("{\"inherit\": false, " +
+				"\"additions\": [{\"type\": \"append\", \"text\": \"other\"}]}")
+				.getBytes(StandardCharsets.UTF_8));
+		
+		String[] args = {
+			"--prepend",
+			"cli",
+			"--recursive",
+			"--rules",
+			root.toString()
+		};
+		
+		CommandLineInterface.setTesting(true);
+		CommandLineInterface.main(args);
+		
+		assertEquals(Arrays.asList("cli", "root", "a"), Files.readAllLines(
+				new File(root, "a.txt").toPath(), StandardCharsets.UTF_8));
+		assertEquals(Arrays.asList("cli", "root", "b", "sub"), Files.readAllLines(
+				new File(sub, "b.txt").toPath(), StandardCharsets.UTF_8));
+		assertEquals(Arrays.asList("c", "other"), Files.readAllLines(
+				new File(other, "c.txt").toPath(), StandardCharsets.UTF_8));
+		
+		// Rule files themselves are left alone
+		assertEquals(1, Files.readAllLines(new File(sub, ".easyappend").toPath(),
+				StandardCharsets.UTF_8).size());
+	}
+	
+	@Test
+	public void testOptionsAfterFolder() throws IOException
+	{
+		File root = folder.newFolder("root");
+		File sub = new File(root, "sub");
+		sub.mkdir();
+		Path x = new File(root, "x.txt").toPath();
+		Path y = new File(sub, "y.txt").toPath();
+		Files.write(x, "x".getBytes(StandardCharsets.UTF_8));
+		Files.write(y, "y".getBytes(StandardCharsets.UTF_8));
+		
+		// Folders are walked once every option is known, wherever it is given
+		CommandLineInterface.setTesting(true);
+		CommandLineInterface.main(new String[] { "-r", root.toString(), "--exclude=sub",
+				"--append", "E" });
+		assertEquals(Arrays.asList("x", "E"), Files.readAllLines(x, StandardCharsets.UTF_8));
+		assertEquals(Arrays.asList("y"), Files.readAllLines(y, StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void testRulesWithLaterAdditions() throws IOException
+	{
+		File root = folder.newFolder("root");
+		File sub = new File(root, "sub");
+		sub.mkdir();
+		Path x = new File(root, "x.txt").toPath();
+		Path y = new File(sub, "y.txt").toPath();
+		Files.write(x, "x".getBytes(StandardCharsets.UTF_8));
+		Files.write(y, "y".getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(sub, ".easyappend").toPath(), ("{\"additions\": [{\"type\": " +
+				"\"append\", \"text\": \"sub\"}]}").getBytes(StandardCharsets.UTF_8));
+		
+		// Additions given after the folder apply along with the rule files
+		CommandLineInterface.setTesting(true);
+		CommandLineInterface.main(new String[] { "-r", "--rules", root.toString(),
+				"--append", "HEAD" });
+		assertEquals(Arrays.asList("x", "HEAD"), Files.readAllLines(x, StandardCharsets.UTF_8));
+		assertEquals(Arrays.asList("y", "HEAD", "sub"), Files.readAllLines(y,
+				StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void testBinaryFiles() throws IOException
+	{
+		File root = folder.newFolder("root");
+		File text = new File(root, "a.txt");
+		File image = new File(root, "b.png");
+		File latin = new File(root, "c.txt");
+		Files.write(text.toPath(), "a".getBytes(StandardCharsets.UTF_8));
+		Files.write(image.toPath(), new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' });
+		Files.write(latin.toPath(), new byte[] { 'c', (byte) 0xE9 });
+		long imageSize = image.length();
+		
+		CommandLineInterface.setTesting(true);
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		PrintStream oldErr = System.err;
+		System.setErr(new PrintStream(err, true));
+		try
+		{
+			CommandLineInterface.main(new String[] { "--append", "x", "--recursive",
+					root.toString() });
+		}
+		finally
+		{
+			System.setErr(oldErr);
+		}
+		
+		// Binary files found in folders are skipped and counted, but invalid
+		// UTF-8 alone isn't binary
+		assertEquals(imageSize, image.length());
+		assertEquals(Arrays.asList("a", "x"), Files.readAllLines(text.toPath(),
+				StandardCharsets.UTF_8));
+		assertEquals(4, latin.length());
+		assertTrue(err.toString().contains("Skipped 1 file(s)"));
+		
+		// Unless asked for
+		CommandLineInterface.main(new String[] { "--append", "y", "--skip-invalid-utf8",
+				"--recursive", root.toString() });
+		assertEquals(4, latin.length());
+		assertEquals(Arrays.asList("a", "x", "y"), Files.readAllLines(text.toPath(),
+				StandardCharsets.UTF_8));
+		
+		// Files listed by name are never skipped
+		CommandLineInterface.main(new String[] { "--append", "z", image.toString() });
+		assertEquals(imageSize + 2, image.length());
+	}
+	
+	@Test
+	public void testHardLinks() throws IOException
+	{
+		File root = folder.newFolder("root");
+		Path a = root.toPath().resolve("a.txt");
+		Files.write(a, "a".getBytes(StandardCharsets.UTF_8));
+		Path b = Files.createLink(root.toPath().resolve("b.txt"), a);
+		File out = new File(folder.getRoot(), "out");
+		File zip = new File(folder.getRoot(), "out.zip");
+		
+		// Each link has its own output, so both are written
+		CommandLineInterface.setTesting(true);
+		CommandLineInterface.main(new String[] { "--append", "x", "--location=" + out,
+				a.toString(), b.toString() });
+		assertEquals(Arrays.asList("a", "x"), Files.readAllLines(new File(out, "a.txt").toPath(),
+				StandardCharsets.UTF_8));
+		assertEquals(Arrays.asList("a", "x"), Files.readAllLines(new File(out, "b.txt").toPath(),
+				StandardCharsets.UTF_8));
+		
+		CommandLineInterface.main(new String[] { "--append", "x", "--location=" + zip,
+				a.toString(), b.toString() });
+		try(ZipFile archive = new ZipFile(zip))
+		{
+			assertNotNull(archive.getEntry("a.txt"));
+			assertNotNull(archive.getEntry("b.txt"));
+		}
+		
+		// But the same output path is only written once
+		File again = new File(folder.getRoot(), "again");
+		CommandLineInterface.main(new String[] { "--append", "x", "--location=" + again,
+				a.toString(), root + "/./a.txt" });
+		assertEquals(Arrays.asList("a", "x"), Files.readAllLines(
+				new File(again, "a.txt").toPath(), StandardCharsets.UTF_8));
+		
+		// In place, the links are the same file, which is only modified once
+		CommandLineInterface.main(new String[] { "--append", "y", a.toString(), b.toString() });
+		assertEquals(Arrays.asList("a", "y"), Files.readAllLines(a, StandardCharsets.UTF_8));
+		assertEquals(Arrays.asList("a", "y"), Files.readAllLines(b, StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void testGzip() throws IOException
+	{
+		File root = folder.newFolder("root");
+		Path matching = root.toPath().resolve("a.log.gz");
+		Path other = root.toPath().resolve("b.log.gz");
+		Files.write(matching, gzip("error: disk full"));
+		Files.write(other, gzip("all good"));
+		byte[] otherBytes = Files.readAllBytes(other);
+		
+		// Regexes are matched against the decompressed text of gzip files
+		// found in folders
+		CommandLineInterface.setTesting(true);
+		CommandLineInterface.main(new String[] { "--gzip", "--append", "--contains=^error",
+				"checked", "--recursive", root.toString() });
+		assertEquals("error: disk full\nchecked", gunzip(Files.readAllBytes(matching)));
+		assertArrayEquals(otherBytes, Files.readAllBytes(other));
+		
+		// Prepending rewrites the file with a new member first
+		CommandLineInterface.main(new String[] { "--gzip", "--prepend", "header",
+				matching.toString(), other.toString() });
+		assertEquals("header\nerror: disk full\nchecked", gunzip(Files.readAllBytes(matching)));
+		assertEquals("header\nall good", gunzip(Files.readAllBytes(other)));
+	}
+	
+	@Test
+	public void testBackupAndRestore() throws IOException
+	{
+		CommandLineInterface.setTesting(true);
+		List<String> original1 = Files.readAllLines(file1.toPath(), StandardCharsets.UTF_8);
+		List<String> original2 = Files.readAllLines(file2.toPath(), StandardCharsets.UTF_8);
+		
+		// A plain file, backed up next to itself
+		CommandLineInterface.main(new String[] { "--backup", "--append", "X", file1.toString() });
+		assertEquals(Arrays.asList("A", "B", "C", "X"),
+				Files.readAllLines(file1.toPath(), StandardCharsets.UTF_8));
+		CommandLineInterface.main(new String[] { "--restore", file1.toString() });
+		assertEquals(original1, Files.readAllLines(file1.toPath(), StandardCharsets.UTF_8));
+		assertFalse(new File(file1 + ".orig").exists());
+		
+		// A symbolic link, whose target is backed up and restored
+		Path link = Files.createSymbolicLink(folder.getRoot().toPath().resolve("link"),
+				file2.toPath());
+		CommandLineInterface.main(new String[] { "--backup", "--append", "X", link.toString() });
+		assertTrue(Files.isSymbolicLink(link));
+		assertEquals(Arrays.asList("D", "E", "F", "X"),
+				Files.readAllLines(file2.toPath(), StandardCharsets.UTF_8));
+		CommandLineInterface.main(new String[] { "--restore", link.toString() });
+		assertTrue(Files.isSymbolicLink(link));
+		assertEquals(original2, Files.readAllLines(file2.toPath(), StandardCharsets.UTF_8));
+		
+		// A backup folder, rolled back as a whole
+		Path backups = folder.getRoot().toPath().resolve("backups");
+		CommandLineInterface.main(new String[] { "--backup=" + backups, "--append", "X",
+				file1.toString(), link.toString() });
+		assertEquals("X", Files.readAllLines(file1.toPath(), StandardCharsets.UTF_8).get(3));
+		assertEquals("X", Files.readAllLines(file2.toPath(), StandardCharsets.UTF_8).get(3));
+		CommandLineInterface.main(new String[] { "--restore=" + backups });
+		assertEquals(original1, Files.readAllLines(file1.toPath(), StandardCharsets.UTF_8));
+		assertEquals(original2, Files.readAllLines(file2.toPath(), StandardCharsets.UTF_8));
+		assertTrue(Files.isSymbolicLink(link));
+	}
+	
+	@Test
+	public void testRecursiveBackups() throws IOException
+	{
+		File root = folder.newFolder("root");
+		Path file = root.toPath().resolve("x.txt");
+		Path backup = root.toPath().resolve("x.txt.orig");
+		Files.write(file, "A".getBytes(StandardCharsets.UTF_8));
+		
+		// The backup of the first run isn't modified or backed up by the second
+		CommandLineInterface.setTesting(true);
+		for(int i = 0; i < 2; i++)
+		{
+			CommandLineInterface.main(new String[] { "--backup", "-r", "--prepend", "X",
+					root.toString() });
+		}
+		assertEquals(Arrays.asList("X", "X", "A"), Files.readAllLines(file,
+				StandardCharsets.UTF_8));
+		assertEquals(Arrays.asList("X", "A"), Files.readAllLines(backup,
+				StandardCharsets.UTF_8));
+		assertFalse(Files.exists(root.toPath().resolve("x.txt.orig.orig")));
+		
+		// Restoring doesn't look for backups of backups either
+		CommandLineInterface.main(new String[] { "--restore", "-r", root.toString() });
+		assertEquals(Arrays.asList("X", "A"), Files.readAllLines(file, StandardCharsets.UTF_8));
+		assertFalse(Files.exists(backup));
+		
+		// Nor is a backup folder inside the walked folder
+		Path backups = root.toPath().resolve("backups");
+		for(int i = 0; i < 2; i++)
+		{
+			CommandLineInterface.main(new String[] { "--backup=" + backups, "-r", "--append",
+					"Y", root.toString() });
+		}
+		assertEquals(Arrays.asList("X", "A", "Y", "Y"), Files.readAllLines(file,
+				StandardCharsets.UTF_8));
+		assertEquals(Arrays.asList("X", "A", "Y"), Files.readAllLines(backups.resolve("x.txt"),
+				StandardCharsets.UTF_8));
+		assertFalse(Files.exists(backups.resolve("backups")));
+	}
+	
+		private static byte[] gzip(String text) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(GZIPOutputStream out = new GZIPOutputStream(bytes))
+		{
+			out.write(text.getBytes(StandardCharsets.UTF_8));
+		}
+		
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Decompresses every member of gzip data.
+	 */
+	private static String gunzip(byte[] compressed) throws IOException
+	{
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		try(InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed)))
+		{
+			byte[] buffer = new byte[4096];
+			for(int read; (read = in.read(buffer)) >= 0;) text.write(buffer, 0, read);
+		}
+		
+		return new String(text.toByteArray(), StandardCharsets.UTF_8);
+	}
 }